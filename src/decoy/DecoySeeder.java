@@ -2,6 +2,8 @@ package decoy;
 
 import java.util.*;
 
+import topo.ASNIndex;
+
 /**
  * Class that implements a random AS based deployment strategy. Basically, this
  * class implements the deployment strategy put forward in Cirripede (well, one
@@ -27,6 +29,11 @@ public class DecoySeeder implements Seeder {
 	 */
 	private HashMap<Integer, DecoyAS> purgedAS;
 
+	/**
+	 * Dense id mapping for the topology, used to draw ASes uniformly at random
+	 */
+	private ASNIndex asnIndex;
+
 	/**
 	 * Flag for ensuring that only transit ASes get selected to deploy decoy
 	 * routers (sane strategy for the decoy router deployer).
@@ -61,6 +68,7 @@ public class DecoySeeder implements Seeder {
 		this.purgedAS = purgedAS;
 		this.onlyTransit = onlyTranist;
 		this.noWardenNeighbor = noWardenNeighbor;
+		this.asnIndex = ASNIndex.fromTopo(liveAS);
 	}
 
 	public Set<Integer> seedDecoys() {
@@ -82,12 +90,13 @@ public class DecoySeeder implements Seeder {
 		HashSet<Integer> markedSet = new HashSet<Integer>();
 		while (markedSet.size() < this.decoyCount) {
 			/*
-			 * Get a random ASN, we'll see if it hasn't been picked, exists, and
-			 * meets our critera (yes there are better ways to do this (read:
-			 * more efficient), but meh, this will get us to a valid deploy,
-			 * just a little slowly)
+			 * Get a random AS (by dense id, so every AS in the topology is
+			 * fair game regardless of ASN), we'll see if it hasn't been
+			 * picked, exists, and meets our critera (yes there are better ways
+			 * to do this (read: more efficient), but meh, this will get us to a
+			 * valid deploy, just a little slowly)
 			 */
-			int test = rng.nextInt(40000);
+			int test = this.asnIndex.getASN(rng.nextInt(this.asnIndex.size()));
 			if (markedSet.contains(test)) {
 				continue;
 			}
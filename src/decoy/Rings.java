@@ -4,7 +4,10 @@ import java.util.*;
 import java.io.*;
 
 import topo.AS;
+import topo.ASNIndex;
 import topo.BGPPath;
+import topo.LiveRouteView;
+import topo.RouteView;
 
 /**
  * Class that implements a static deployment strategy which aims to encircle the
@@ -24,16 +27,25 @@ public class Rings implements Seeder {
 	private HashMap<Integer, DecoyAS> activeMap;
 	private HashMap<Integer, DecoyAS> prunedMap;
 	private HashSet<AS> wardenASes;
+	private ASNIndex asnIndex;
+	private RouteView routes;
 
 	private HashMap<Integer, DecoyAS> seederSet = null;
 	private int size;
 
 	public Rings(HashMap<Integer, DecoyAS> activeMap,
 			HashMap<Integer, DecoyAS> prunedMap) {
+		this(activeMap, prunedMap, new LiveRouteView(activeMap));
+	}
+
+	public Rings(HashMap<Integer, DecoyAS> activeMap,
+			HashMap<Integer, DecoyAS> prunedMap, RouteView routes) {
 		super();
+		this.routes = routes;
 		this.activeMap = activeMap;
 		this.prunedMap = prunedMap;
 		this.wardenASes = new HashSet<AS>();
+		this.asnIndex = ASNIndex.fromTopo(activeMap);
 		this.size = -1;
 
 		for (AS tAS : this.activeMap.values()) {
@@ -70,14 +82,14 @@ public class Rings implements Seeder {
 	 */
 	public void setupSeeder(int depth) {
 		HashSet<AS> previous = new HashSet<AS>();
-		HashSet<AS> visited = new HashSet<AS>();
+		BitSet visited = new BitSet(this.asnIndex.size());
 		previous.addAll(this.wardenASes);
 
 		/*
 		 * Populates every ring
 		 */
 		for (int currDepth = 1; currDepth <= depth; currDepth++) {
-			visited.addAll(previous);
+			this.markVisited(previous, visited);
 			System.out.println("Size of previous: " + previous.size());
 			previous = this.computeRingMembers(previous, visited);
 		}
@@ -188,7 +200,7 @@ public class Rings implements Seeder {
 		long startTime = System.currentTimeMillis();
 		System.out.println("starting ring compuatation.");
 
-		HashSet<AS> visited = new HashSet<AS>();
+		BitSet visited = new BitSet(this.asnIndex.size());
 		HashMap<Integer, HashSet<AS>> rings = new HashMap<Integer, HashSet<AS>>();
 
 		/*
@@ -201,7 +213,7 @@ public class Rings implements Seeder {
 		 * Populates every ring
 		 */
 		for (int depth = 1; depth < MAX_DEPTH; depth++) {
-			visited.addAll(previous);
+			this.markVisited(previous, visited);
 			previous = this.computeRingMembers(previous, visited);
 			rings.put(depth, previous);
 		}
@@ -227,41 +239,43 @@ public class Rings implements Seeder {
 	 * @param previousRing
 	 *            - the directly previous ring's members (AS objects)
 	 * @param visited
-	 *            - set of all AS objects that have been seen in any prior ring
+	 *            - bitset (by dense id) of all ASes that have been seen in any
+	 *            prior ring
 	 * @return - the set of all ASes directly connected to the previousRing set
 	 *         that were not in a prior ring
 	 */
 	private HashSet<AS> computeRingMembers(HashSet<AS> previousRing,
-			HashSet<AS> visited) {
+			BitSet visited) {
 		HashSet<AS> nextRing = new HashSet<AS>();
 
 		for (AS tAS : previousRing) {
 
 			/*
-			 * Grab all neighbors
+			 * Grab all neighbors, pruning out those that we've already seen or
+			 * that are in the pruned portion of the topology
 			 */
-			HashSet<AS> considerSet = new HashSet<AS>();
-			considerSet.addAll(tAS.getCustomers());
-			considerSet.addAll(tAS.getPeers());
-			considerSet.addAll(tAS.getProviders());
+			this.addUnvisited(tAS.getCustomers(), visited, nextRing);
+			this.addUnvisited(tAS.getPeers(), visited, nextRing);
+			this.addUnvisited(tAS.getProviders(), visited, nextRing);
+		}
 
-			/*
-			 * Prune out those that we've already seen or that are in the pruned
-			 * portion of the topology
-			 */
-			considerSet.removeAll(visited);
-			HashSet<AS> nonTransitSet = new HashSet<AS>();
-			for (AS tConsider : considerSet) {
-				if (this.prunedMap.containsKey(tConsider.getASN())) {
-					nonTransitSet.add(tConsider);
-				}
-			}
-			considerSet.removeAll(nonTransitSet);
+		return nextRing;
+	}
 
-			nextRing.addAll(considerSet);
+	private void addUnvisited(Set<AS> considerSet, BitSet visited,
+			HashSet<AS> nextRing) {
+		for (AS tConsider : considerSet) {
+			int tID = tConsider.getDenseID();
+			if (!visited.get(tID) && this.asnIndex.isRouted(tID)) {
+				nextRing.add(tConsider);
+			}
 		}
+	}
 
-		return nextRing;
+	private void markVisited(HashSet<AS> ring, BitSet visited) {
+		for (AS tAS : ring) {
+			visited.set(tAS.getDenseID());
+		}
 	}
 
 	/**
@@ -313,7 +327,8 @@ public class Rings implements Seeder {
 	 */
 	private double evaluateShadow(HashSet<AS> ring) {
 
-		HashSet<Integer> ringASNs = AS.buildASNSet(ring);
+		BitSet ringIDs = new BitSet(this.asnIndex.size());
+		this.markVisited(ring, ringIDs);
 
 		int consideredCount = 0;
 		int outOfShadowCount = 0;
@@ -321,18 +336,13 @@ public class Rings implements Seeder {
 			/*
 			 * don't consider warden ASes and those in the ring
 			 */
-			if (tDest.isWardenAS() || ring.contains(tDest)) {
+			if (tDest.isWardenAS() || ringIDs.get(tDest.getDenseID())) {
 				continue;
 			}
 
 			consideredCount++;
-			HashSet<BGPPath> allPaths = new HashSet<BGPPath>();
-			for (AS tChina : this.wardenASes) {
-				allPaths.addAll(tChina.getAllPathsTo(tDest.getASN()));
-			}
-
-			for (BGPPath tPath : allPaths) {
-				if (!tPath.containsAnyOf(ringASNs)) {
+			for (BGPPath tPath : this.routes.getWardenPaths(tDest.getASN())) {
+				if (!this.pathHitsRing(tPath, ringIDs)) {
 					outOfShadowCount++;
 					break;
 				}
@@ -342,4 +352,22 @@ public class Rings implements Seeder {
 		return (double) outOfShadowCount / (double) consideredCount;
 	}
 
+	/**
+	 * Predicate that tests if a path crosses any AS in a ring.
+	 * 
+	 * @param path
+	 *            - the path to test
+	 * @param ringIDs
+	 *            - bitset (by dense id) of the ring's members
+	 * @return - true if some hop of the path is in the ring
+	 */
+	private boolean pathHitsRing(BGPPath path, BitSet ringIDs) {
+		for (int tHop : path) {
+			if (ringIDs.get(this.asnIndex.getID(tHop))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 }
@@ -0,0 +1,295 @@
+package sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import topo.AS;
+import topo.ASNIndex;
+import topo.BGPUpdate;
+import topo.UpdateSink;
+
+/**
+ * BGP engine that only ever looks at ASes that have something to do. It
+ * alternates the same two phases the round based BGPMaster loop does, first
+ * every AS with pending messages handles them all, then (once no messages are
+ * left anywhere) every AS with dirty prefixes has its MRAI fire. Instead of
+ * walking the whole topology to find out who has work, ASes are put in the
+ * next phase's work list the moment they get work, a message delivered to
+ * them during MRAI expiration or a best path change while handling messages.
+ * We're converged when both lists come up empty.
+ * 
+ * Both phases run on a ForkJoinPool, the work list is split recursively so
+ * idle workers steal from busy ones, and the work of hub ASes is itself split
+ * by destination (see HubSplitter), which takes care of the few ASes with
+ * huge queues.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class ActiveSetEngine implements UpdateSink {
+
+	private ForkJoinPool pool;
+	private int batchSize;
+	private HubSplitter hubSplitter;
+
+	/**
+	 * 1 if the AS with that dense id is already in the pending message list
+	 * (scheduled) or the dirty list (dirtyScheduled)
+	 */
+	private AtomicIntegerArray scheduled;
+	private AtomicIntegerArray dirtyScheduled;
+	private ConcurrentLinkedQueue<AS> messageList;
+	private ConcurrentLinkedQueue<AS> dirtyList;
+
+	/**
+	 * Number of ASes handed to a single task before it stops splitting
+	 */
+	private static final int SPLIT_THRESHOLD = 16;
+
+	private int phaseCount;
+	private CheckpointManager checkpointer;
+	private long asActivations;
+	private long processTime;
+	private long mraiTime;
+
+	public ActiveSetEngine(ASNIndex asnIndex, int threadCount, int batchSize) {
+		this.pool = new ForkJoinPool(threadCount);
+		this.batchSize = batchSize;
+		this.hubSplitter = new HubSplitter(this.pool, SimConfig.HUB_DEGREE, SimConfig.HUB_QUEUE, threadCount * 4);
+		this.scheduled = new AtomicIntegerArray(asnIndex.size());
+		this.dirtyScheduled = new AtomicIntegerArray(asnIndex.size());
+		this.messageList = new ConcurrentLinkedQueue<AS>();
+		this.dirtyList = new ConcurrentLinkedQueue<AS>();
+		this.phaseCount = 0;
+		this.checkpointer = null;
+		this.asActivations = 0;
+		this.processTime = 0;
+		this.mraiTime = 0;
+	}
+
+	/**
+	 * Runs BGP to convergence. The ASes must already have their initial
+	 * advertisements queued.
+	 * 
+	 * @param asMap
+	 *            - the ASes taking part in routing
+	 */
+	public void run(Map<Integer, ? extends AS> asMap) {
+		/*
+		 * Initial activation is the only scan of the topology we do
+		 */
+		for (AS tAS : asMap.values()) {
+			if (tAS.hasWorkToDo()) {
+				this.schedule(tAS);
+			}
+			if (tAS.hasDirtyPrefixes()) {
+				this.scheduleMRAI(tAS);
+			}
+		}
+
+		while (true) {
+			if (this.checkpointer != null) {
+				this.checkpointer.atBarrier(this.phaseCount, asMap.values());
+			}
+
+			/*
+			 * Handle messages, ASes whose best paths changed land in the dirty
+			 * list
+			 */
+			AS[] work = this.takeAll(this.messageList, this.scheduled);
+			if (work.length > 0) {
+				long phaseStart = System.nanoTime();
+				this.pool.invoke(new HandleTask(work, 0, work.length));
+				this.processTime += System.nanoTime() - phaseStart;
+				this.phaseCount++;
+			}
+
+			/*
+			 * No messages left anywhere, so fire the MRAI of the dirty ASes,
+			 * whoever gets an update lands in the message list
+			 */
+			AS[] dirty = this.takeAll(this.dirtyList, this.dirtyScheduled);
+			if (dirty.length == 0) {
+				break;
+			}
+			long phaseStart = System.nanoTime();
+			this.pool.invoke(new MRAITask(dirty, 0, dirty.length));
+			this.mraiTime += System.nanoTime() - phaseStart;
+			this.phaseCount++;
+		}
+	}
+
+	/**
+	 * Has the engine checkpoint through the given manager at the top of each
+	 * phase pair (when nothing is in flight), and continue the phase count
+	 * of the run the manager resumed, if any.
+	 * 
+	 * @param checkpointer
+	 *            - the checkpoint manager, or null for no checkpoints
+	 */
+	public void setCheckpointer(CheckpointManager checkpointer) {
+		this.checkpointer = checkpointer;
+		if (checkpointer != null) {
+			this.phaseCount = checkpointer.getResumedCount();
+		}
+	}
+
+	public void deliver(AS target, BGPUpdate update) {
+		target.receiveUpdate(update);
+		this.schedule(target);
+	}
+
+	/**
+	 * Shuts down the worker threads.
+	 */
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+
+	/**
+	 * Fetches the number of phases (message handling or MRAI) that were run.
+	 * 
+	 * @return - the phase count
+	 */
+	public int getPhaseCount() {
+		return this.phaseCount;
+	}
+
+	/**
+	 * Fetches the total number of times an AS was scheduled to handle
+	 * messages, compare to phase count times the topology size to see how
+	 * much work the active set skipped.
+	 * 
+	 * @return - the number of AS activations
+	 */
+	public long getActivationCount() {
+		return this.asActivations;
+	}
+
+	/**
+	 * Fetches the wall clock time spent handling messages.
+	 * 
+	 * @return - message phase time in milliseconds
+	 */
+	public long getProcessTime() {
+		return this.processTime / 1000000;
+	}
+
+	/**
+	 * Fetches the wall clock time spent firing MRAI timers.
+	 * 
+	 * @return - MRAI phase time in milliseconds
+	 */
+	public long getMRAITime() {
+		return this.mraiTime / 1000000;
+	}
+
+	private void schedule(AS target) {
+		if (this.scheduled.compareAndSet(target.getDenseID(), 0, 1)) {
+			this.messageList.add(target);
+		}
+	}
+
+	/**
+	 * Puts an AS in the dirty list, unless it is already there (an AS that
+	 * was dirty at the start can be added again when it handles its mail), so
+	 * no AS has its MRAI fired twice at once.
+	 */
+	private void scheduleMRAI(AS target) {
+		if (this.dirtyScheduled.compareAndSet(target.getDenseID(), 0, 1)) {
+			this.dirtyList.add(target);
+		}
+	}
+
+	/**
+	 * Empties a work list, clearing the flags that keep ASes from being in it
+	 * twice.
+	 */
+	private AS[] takeAll(ConcurrentLinkedQueue<AS> list, AtomicIntegerArray inList) {
+		List<AS> taken = new ArrayList<AS>();
+		AS tAS;
+		while ((tAS = list.poll()) != null) {
+			inList.set(tAS.getDenseID(), 0);
+			taken.add(tAS);
+		}
+		this.asActivations += taken.size();
+		return taken.toArray(new AS[taken.size()]);
+	}
+
+	/**
+	 * Drains the mailboxes of a range of ASes.
+	 */
+	@SuppressWarnings("serial")
+	private class HandleTask extends RecursiveAction {
+
+		private AS[] work;
+		private int start;
+		private int end;
+
+		private HandleTask(AS[] work, int start, int end) {
+			this.work = work;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if (this.end - this.start > ActiveSetEngine.SPLIT_THRESHOLD) {
+				int mid = (this.start + this.end) >>> 1;
+				invokeAll(new HandleTask(this.work, this.start, mid), new HandleTask(this.work, mid,
+						this.end));
+				return;
+			}
+
+			for (int counter = this.start; counter < this.end; counter++) {
+				AS tAS = this.work[counter];
+				HubSplitter splitter = ActiveSetEngine.this.hubSplitter;
+				while (tAS.hasWorkToDo()) {
+					if (splitter.isHub(tAS)) {
+						splitter.handle(tAS, ActiveSetEngine.this.batchSize);
+					} else {
+						tAS.handleAdvertisements(ActiveSetEngine.this.batchSize);
+					}
+				}
+				if (tAS.hasDirtyPrefixes()) {
+					ActiveSetEngine.this.scheduleMRAI(tAS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fires the MRAI timer of a range of ASes.
+	 */
+	@SuppressWarnings("serial")
+	private class MRAITask extends RecursiveAction {
+
+		private AS[] work;
+		private int start;
+		private int end;
+
+		private MRAITask(AS[] work, int start, int end) {
+			this.work = work;
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if (this.end - this.start > ActiveSetEngine.SPLIT_THRESHOLD) {
+				int mid = (this.start + this.end) >>> 1;
+				invokeAll(new MRAITask(this.work, this.start, mid), new MRAITask(this.work, mid,
+						this.end));
+				return;
+			}
+
+			for (int counter = this.start; counter < this.end; counter++) {
+				AS tAS = this.work[counter];
+				if (ActiveSetEngine.this.hubSplitter.isHub(tAS)) {
+					ActiveSetEngine.this.hubSplitter.expire(tAS, ActiveSetEngine.this);
+				} else {
+					tAS.mraiExpire(ActiveSetEngine.this);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package sim;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import topo.AS;
+import topo.ASNIndex;
+import topo.BGPUpdate;
+import topo.UpdateSink;
+
+/**
+ * Barrier free BGP engine, every AS is an actor that only runs when its
+ * mailbox has something in it. An actor drains its mailbox, and if its best
+ * paths changed immediately sends its updates (so the MRAI is effectively 0),
+ * waking up the neighbors it sent to. There are no rounds at all, the run is
+ * over when no actor is scheduled, which means every mailbox is empty and no
+ * prefixes are dirty.
+ * 
+ * Actors run on virtual threads when the JVM has them (Java 21+), otherwise on
+ * a work stealing pool of platform threads.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class ActorEngine implements UpdateSink {
+
+	private ExecutorService executor;
+	private boolean virtualThreads;
+	private int batchSize;
+
+	/**
+	 * 1 if the actor for the AS with that dense id is scheduled or running
+	 */
+	private AtomicIntegerArray scheduled;
+
+	/**
+	 * Number of actors scheduled or running, 0 means quiescence
+	 */
+	private AtomicLong outstanding;
+	private CountDownLatch quiescent;
+
+	private AtomicLong activations;
+
+	public ActorEngine(ASNIndex asnIndex, int threadCount, int batchSize) {
+		this.executor = ActorEngine.buildVirtualExecutor();
+		this.virtualThreads = this.executor != null;
+		if (!this.virtualThreads) {
+			this.executor = new ForkJoinPool(threadCount, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null,
+					true);
+		}
+		this.batchSize = batchSize;
+		this.scheduled = new AtomicIntegerArray(asnIndex.size());
+		this.outstanding = new AtomicLong(0);
+		this.quiescent = new CountDownLatch(1);
+		this.activations = new AtomicLong(0);
+	}
+
+	/**
+	 * Looks up Executors.newVirtualThreadPerTaskExecutor, which we can't call
+	 * directly and still build on older JDKs.
+	 * 
+	 * @return - the executor, or null if this JVM has no virtual threads
+	 */
+	private static ExecutorService buildVirtualExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs BGP to convergence. The ASes must already have their initial
+	 * advertisements queued.
+	 * 
+	 * @param asMap
+	 *            - the ASes taking part in routing
+	 */
+	public void run(Map<Integer, ? extends AS> asMap) {
+		/*
+		 * Hold off quiescence until everyone with initial work is scheduled
+		 */
+		this.outstanding.incrementAndGet();
+		for (AS tAS : asMap.values()) {
+			if (tAS.hasWorkToDo() || tAS.hasDirtyPrefixes()) {
+				this.wake(tAS);
+			}
+		}
+		this.release();
+
+		try {
+			this.quiescent.await();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-2);
+		}
+	}
+
+	public void deliver(AS target, BGPUpdate update) {
+		target.receiveUpdate(update);
+		this.wake(target);
+	}
+
+	/**
+	 * Shuts down the executor.
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Predicate to test if the actors ran on virtual threads.
+	 * 
+	 * @return - true if virtual threads were available
+	 */
+	public boolean usedVirtualThreads() {
+		return this.virtualThreads;
+	}
+
+	/**
+	 * Fetches the number of times an actor was woken up.
+	 * 
+	 * @return - the number of actor activations
+	 */
+	public long getActivationCount() {
+		return this.activations.get();
+	}
+
+	private void wake(final AS target) {
+		if (this.scheduled.compareAndSet(target.getDenseID(), 0, 1)) {
+			this.outstanding.incrementAndGet();
+			this.executor.execute(new Runnable() {
+				public void run() {
+					ActorEngine.this.runActor(target);
+				}
+			});
+		}
+	}
+
+	private void runActor(AS self) {
+		while (true) {
+			this.activations.incrementAndGet();
+			while (self.hasWorkToDo()) {
+				self.handleAdvertisements(this.batchSize);
+			}
+			if (self.hasDirtyPrefixes()) {
+				self.mraiExpire(this);
+			}
+
+			/*
+			 * Unschedule, then look again, anyone who added to our mailbox
+			 * before we cleared the flag failed to wake us, so we have to pick
+			 * their update up ourselves
+			 */
+			this.scheduled.set(self.getDenseID(), 0);
+			if (!self.hasWorkToDo() || !this.scheduled.compareAndSet(self.getDenseID(), 0, 1)) {
+				break;
+			}
+		}
+		this.release();
+	}
+
+	private void release() {
+		if (this.outstanding.decrementAndGet() == 0) {
+			this.quiescent.countDown();
+		}
+	}
+}
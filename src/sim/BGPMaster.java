@@ -1,5 +1,6 @@
 package sim;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
@@ -7,28 +8,208 @@ import java.util.concurrent.*;
 import decoy.DecoyAS;
 import decoy.LargeASDecoyPlacer;
 import topo.AS;
+import topo.ASNIndex;
 import topo.ASTopoParser;
 import topo.BGPPath;
+import topo.BGPPathTable;
+import topo.MappedRIB;
 
 public class BGPMaster {
 
 	private int blockCount;
-	private Semaphore workSem;
 	private Semaphore completeSem;
-	private Queue<Set<AS>> workQueue;
 
-	private static final int NUM_THREADS = 8;
+	/**
+	 * Each slave's work, a slave only ever gets blocks of its own partition
+	 */
+	private List<BlockingQueue<Set<AS>>> workQueues;
+	private ForkJoinPool splitPool;
+	private HubSplitter hubSplitter;
+	private volatile int phase;
+
 	private static final int WORK_BLOCK_SIZE = 40;
 
-	@SuppressWarnings("unchecked")
+	/*
+	 * Types of work the slaves do
+	 */
+	public static final int PROCESS_PHASE = 0;
+	public static final int MRAI_PHASE = 1;
+
 	public static HashMap<Integer, DecoyAS>[] buildBGPConnection(int chinaAvoidanceSize, String countryFile) throws IOException {
 
 		/*
 		 * Build AS map
 		 */
+		HashMap<Integer, DecoyAS>[] topoArray = BGPMaster.buildTopology(countryFile);
+		HashMap<Integer, DecoyAS> usefulASMap = topoArray[0];
+		HashMap<Integer, DecoyAS> prunedASMap = topoArray[1];
+
+		/*
+		 * If a RIB snapshot of this topology was saved by an earlier run,
+		 * serve routes from it and skip BGP altogether
+		 */
+		MappedRIB mappedRib = null;
+		if (SimConfig.RIB_SNAPSHOT != null) {
+			mappedRib = MappedRIB.open(new File(SimConfig.RIB_SNAPSHOT), usefulASMap);
+		}
+
+		/*
+		 * Either converge everything here, or farm the destinations out to
+		 * shard worker processes and pull their RIBs back in
+		 */
+		if (mappedRib != null) {
+			System.out.println("Routes loaded from RIB snapshot " + SimConfig.RIB_SNAPSHOT + ", skipping BGP");
+		} else if (SimConfig.SHARDS > 1) {
+			ShardCoordinator coordinator = new ShardCoordinator(ASNIndex.fromTopo(usefulASMap), SimConfig.SHARDS,
+					new File(SimConfig.SHARD_DIR));
+			coordinator.run(chinaAvoidanceSize, countryFile);
+			coordinator.openRIBs();
+		} else if (SimConfig.CHECKPOINT_DIR != null) {
+			/*
+			 * Checkpointing, either pick up a dead run or start fresh. Only
+			 * the round and active set engines stop at barriers checkpoints
+			 * can be taken at, any other engine is swapped for the active set
+			 * engine rather than quietly taking none
+			 */
+			CheckpointManager checkpointer = new CheckpointManager(ASNIndex.fromTopo(usefulASMap), new File(
+					SimConfig.CHECKPOINT_DIR), SimConfig.CHECKPOINT_SECS);
+			int engineType = SimConfig.ENGINE;
+			if (engineType != SimConfig.ROUND_ENGINE && engineType != SimConfig.ACTIVE_SET_ENGINE) {
+				System.out.println("Configured engine can't take checkpoints, using the active set engine instead");
+				engineType = SimConfig.ACTIVE_SET_ENGINE;
+			}
+			if (!SimConfig.RESUME || !checkpointer.resume()) {
+				BGPMaster.seedOrigins(usefulASMap, chinaAvoidanceSize);
+			}
+			BGPMaster.converge(usefulASMap, engineType, null, checkpointer);
+			checkpointer.finish();
+		} else {
+			BGPMaster.seedOrigins(usefulASMap, chinaAvoidanceSize);
+			BGPMaster.converge(usefulASMap, SimConfig.ENGINE, null, null);
+		}
+		if (mappedRib == null && SimConfig.RIB_SNAPSHOT != null) {
+			long startTime = System.currentTimeMillis();
+			long routeCount = MappedRIB.write(new File(SimConfig.RIB_SNAPSHOT), usefulASMap);
+			System.out.println("Saved " + routeCount + " routes to RIB snapshot " + SimConfig.RIB_SNAPSHOT + " in "
+					+ (System.currentTimeMillis() - startTime) + " ms");
+		}
+		if (SimConfig.VERIFY_SOLVER) {
+			BGPMaster.verifyAgainstSolver(usefulASMap, chinaAvoidanceSize, countryFile);
+		}
+
+		BGPMaster.verifyConnected(usefulASMap);
+
+		//self.tellDone();
+		return BGPMaster.buildMapPair(usefulASMap, prunedASMap);
+	}
+
+	/**
+	 * Parses and prunes the topology, without running BGP.
+	 * 
+	 * @param countryFile
+	 *            - the warden AS file
+	 * @return - the routed AS map and the pruned AS map
+	 * @throws IOException
+	 *             - if there is an issue reading the topology files
+	 */
+	public static HashMap<Integer, DecoyAS>[] buildTopology(String countryFile) throws IOException {
+		AS.setMailboxType(SimConfig.MAILBOX_TYPE);
 		HashMap<Integer, DecoyAS> usefulASMap = ASTopoParser.doNetworkBuild(countryFile);
 		HashMap<Integer, DecoyAS> prunedASMap = ASTopoParser.doNetworkPrune(usefulASMap);
+		return BGPMaster.buildMapPair(usefulASMap, prunedASMap);
+	}
+
+	/**
+	 * Packs the routed and pruned AS maps into the array buildTopology and
+	 * buildBGPConnection hand back.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static HashMap<Integer, DecoyAS>[] buildMapPair(HashMap<Integer, DecoyAS> usefulASMap,
+			HashMap<Integer, DecoyAS> prunedASMap) {
+		HashMap<Integer, DecoyAS>[] retArray = new HashMap[2];
+		retArray[0] = usefulASMap;
+		retArray[1] = prunedASMap;
+		return retArray;
+	}
+
+	/**
+	 * Converges BGP a slice of destinations at a time, so peak RIB state is
+	 * bounded by the slice size instead of the number of destinations. Each
+	 * destination is handed to the consumer once it has converged, then the
+	 * slice's RIB state (and interned paths) are thrown away before the next
+	 * slice starts. With the per destination engines (dest and solver) the
+	 * consumer runs as each destination finishes, alongside routing for the
+	 * rest of the slice, the other engines hand over the whole slice once it
+	 * converges. The ASes hold no RIB state when this returns.
+	 * 
+	 * @param usefulASMap
+	 *            - the routed ASes, from buildTopology
+	 * @param chinaAvoidanceSize
+	 *            - number of large ASes the warden avoids
+	 * @param sliceSize
+	 *            - number of destinations converged at a time
+	 * @param consumer
+	 *            - told about every destination as it converges
+	 */
+	public static void streamBGP(HashMap<Integer, DecoyAS> usefulASMap, int chinaAvoidanceSize, int sliceSize,
+			DestinationConsumer consumer) {
+		ASNIndex asnIndex = ASNIndex.fromTopo(usefulASMap);
+		int routedCount = asnIndex.getRoutedCount();
+		for (int sliceStart = 0; sliceStart < routedCount; sliceStart += sliceSize) {
+			int sliceEnd = Math.min(sliceStart + sliceSize, routedCount);
+			System.out.println("Converging destinations [" + sliceStart + ", " + sliceEnd + ") of " + routedCount);
+
+			BGPMaster.dropRIBs(usefulASMap);
+			asnIndex.setRIBRange(sliceStart, sliceEnd);
+			BGPMaster.seedOrigins(usefulASMap, chinaAvoidanceSize);
+			BGPMaster.converge(usefulASMap, SimConfig.ENGINE, consumer, null);
+		}
+		BGPMaster.dropRIBs(usefulASMap);
+		asnIndex.setRIBRange(0, routedCount);
+	}
+
+	private static void dropRIBs(HashMap<Integer, DecoyAS> usefulASMap) {
+		for (AS tAS : usefulASMap.values()) {
+			tAS.dropRIBs();
+		}
+		BGPPathTable.clear();
+	}
+
+	/**
+	 * Builds the topology and converges BGP for only the destinations with
+	 * dense ids in [destStart, destEnd), ASes only allocate RIB state for
+	 * those. This is what a ShardWorker process runs.
+	 * 
+	 * @param chinaAvoidanceSize
+	 *            - number of large ASes the warden avoids
+	 * @param countryFile
+	 *            - the warden AS file
+	 * @param destStart
+	 *            - first destination id to converge
+	 * @param destEnd
+	 *            - one past the last destination id to converge
+	 * @return - the routed AS map, with RIBs for the shard's destinations
+	 */
+	public static HashMap<Integer, DecoyAS> buildBGPShard(int chinaAvoidanceSize, String countryFile,
+			int destStart, int destEnd) throws IOException {
+		HashMap<Integer, DecoyAS> usefulASMap = BGPMaster.buildTopology(countryFile)[0];
+		ASNIndex.fromTopo(usefulASMap).setRIBRange(destStart, destEnd);
+
+		BGPMaster.seedOrigins(usefulASMap, chinaAvoidanceSize);
+		BGPMaster.converge(usefulASMap, SimConfig.ENGINE, null, null);
+		return usefulASMap;
+	}
 
+	/**
+	 * Has every AS (whose destination is in the RIB range) advertise its own
+	 * network to start BGP off.
+	 * 
+	 * @param usefulASMap
+	 *            - the ASes taking part in routing
+	 * @param chinaAvoidanceSize
+	 *            - number of large ASes the warden avoids
+	 */
+	private static void seedOrigins(HashMap<Integer, DecoyAS> usefulASMap, int chinaAvoidanceSize) {
 		/*
 		 * If we're doing active return path avoidance, setup here
 		 */
@@ -38,85 +219,245 @@ public class BGPMaster {
 		/*
 		 * Give everyone their self network
 		 */
+		ASNIndex asnIndex = ASNIndex.fromTopo(usefulASMap);
 		for (AS tAS : usefulASMap.values()) {
+			if (!asnIndex.isInRIBRange(tAS.getDenseID())) {
+				continue;
+			}
 			if (tAS.isWardenAS()) {
-				BGPPath tempPath = new BGPPath(tAS.getASN());
+				BGPPath tempPath = BGPPath.buildOriginPath(tAS.getASN());
 				for(int tAvoid: avoidSet){
-					tempPath.prependASToPath(tAvoid);
+					tempPath = tempPath.prependASToPath(tAvoid);
 				}
 			} else {
-				tAS.advPath(new BGPPath(tAS.getASN()));
+				tAS.advPath(BGPPath.buildOriginPath(tAS.getASN()));
 			}
 		}
+	}
+
+	/**
+	 * Runs BGP back to convergence after IncrementalBGP changed the topology
+	 * or origins of an already converged map, starting from the current RIBs
+	 * and whatever updates the change queued. The per destination engines
+	 * only know how to start from origin advertisements, so if one of them
+	 * is configured the active set engine is used instead.
+	 * 
+	 * @param usefulASMap
+	 *            - the ASes taking part in routing
+	 */
+	static void reconverge(HashMap<Integer, DecoyAS> usefulASMap) {
+		BGPMaster.converge(usefulASMap, BGPMaster.getMessageEngine(), null, null);
+	}
+
+	/**
+	 * Fetches the configured engine if it can start from any queued updates
+	 * and dirty state, or the active set engine if the configured one is a
+	 * per destination engine (which only start from origin advertisements).
+	 */
+	private static int getMessageEngine() {
+		if (SimConfig.ENGINE == SimConfig.DESTINATION_ENGINE || SimConfig.ENGINE == SimConfig.SOLVER_ENGINE) {
+			return SimConfig.ACTIVE_SET_ENGINE;
+		}
+		return SimConfig.ENGINE;
+	}
+
+	/**
+	 * Runs BGP to convergence with the given engine and reports on it.
+	 * 
+	 * @param usefulASMap
+	 *            - the ASes taking part in routing, already seeded
+	 * @param engineType
+	 *            - which engine to use, one of the SimConfig *_ENGINE codes
+	 * @param consumer
+	 *            - told about every destination in the RIB range once it has
+	 *            converged, null for no one
+	 * @param checkpointer
+	 *            - checkpoints the run at barriers, only the round and active
+	 *            set engines take checkpoints, null for none
+	 */
+	private static void converge(HashMap<Integer, DecoyAS> usefulASMap, int engineType,
+			DestinationConsumer consumer, CheckpointManager checkpointer) {
+		long bgpStartTime = System.currentTimeMillis();
+		System.out.println("Starting up the BGP processing.");
+
+		if (engineType == SimConfig.ROUND_ENGINE) {
+			BGPMaster.runRounds(usefulASMap, checkpointer);
+		} else if (engineType == SimConfig.BSP_ENGINE) {
+			int[] partOf = BGPMaster.buildPartitions(usefulASMap, SimConfig.THREADS);
+			BSPEngine engine = new BSPEngine(ASNIndex.fromTopo(usefulASMap), usefulASMap, SimConfig.THREADS,
+					partOf, SimConfig.BATCH_SIZE);
+			engine.run();
+			engine.shutdown();
+			System.out.println("Supersteps run: " + engine.getSuperstepCount() + " cross partition updates: "
+					+ (engine.getCrossPartitionRatio() * 100.0) + "%");
+		} else if (engineType == SimConfig.MRAI_TIMER_ENGINE) {
+			MRAITimerEngine engine = new MRAITimerEngine(ASNIndex.fromTopo(usefulASMap), SimConfig.MRAI_TICKS,
+					SimConfig.LINK_DELAY_TICKS);
+			engine.run(usefulASMap);
+			System.out.println("Converged at virtual time " + engine.getConvergenceTime() + " after "
+					+ engine.getHandleEventCount() + " mailbox events and " + engine.getTimerFireCount()
+					+ " MRAI fires");
+		} else if (engineType == SimConfig.DISCRETE_EVENT_ENGINE) {
+			DiscreteEventEngine engine = new DiscreteEventEngine(ASNIndex.fromTopo(usefulASMap), SimConfig.THREADS,
+					SimConfig.MRAI_TICKS, SimConfig.LINK_DELAY_TICKS, SimConfig.LINK_JITTER_TICKS,
+					SimConfig.PROCESS_DELAY_TICKS);
+			engine.run(usefulASMap);
+			engine.shutdown();
+			System.out.println("Converged at virtual time " + engine.getConvergenceTime() + " after "
+					+ engine.getEventCount() + " events in " + engine.getWindowCount() + " windows ("
+					+ (long) engine.getEventsPerSecond() + " events/sec)");
+		} else if (engineType == SimConfig.DESTINATION_ENGINE) {
+			DestinationEngine engine = new DestinationEngine(ASNIndex.fromTopo(usefulASMap), SimConfig.THREADS);
+			engine.setConsumer(consumer);
+			engine.run(usefulASMap);
+			engine.shutdown();
+			System.out.println("Destinations converged: " + engine.getDestinationCount() + " AS activations: "
+					+ engine.getActivationCount());
+		} else if (engineType == SimConfig.SOLVER_ENGINE) {
+			RoutingSolver solver = new RoutingSolver(ASNIndex.fromTopo(usefulASMap), SimConfig.THREADS);
+			solver.setConsumer(consumer);
+			solver.run(usefulASMap);
+			solver.shutdown();
+			System.out.println("Destinations solved: " + solver.getDestinationCount());
+		} else if (engineType == SimConfig.ACTOR_ENGINE) {
+			ActorEngine engine = new ActorEngine(ASNIndex.fromTopo(usefulASMap), SimConfig.THREADS,
+					SimConfig.BATCH_SIZE);
+			engine.run(usefulASMap);
+			engine.shutdown();
+			System.out.println("Actor activations: " + engine.getActivationCount() + " on "
+					+ (engine.usedVirtualThreads() ? "virtual threads" : "platform threads"));
+		} else {
+			ActiveSetEngine engine = new ActiveSetEngine(ASNIndex.fromTopo(usefulASMap), SimConfig.THREADS,
+					SimConfig.BATCH_SIZE);
+			engine.setCheckpointer(checkpointer);
+			engine.run(usefulASMap);
+			engine.shutdown();
+			System.out.println("Phases run: " + engine.getPhaseCount() + " AS activations: "
+					+ engine.getActivationCount());
+			System.out.println("Processing phase: " + engine.getProcessTime() + " ms, MRAI phase: "
+					+ engine.getMRAITime() + " ms");
+		}
 
 		/*
-		 * dole out ases into blocks
+		 * The per destination engines already told the consumer as they went
 		 */
-		List<Set<AS>> asBlocks = new LinkedList<Set<AS>>();
-		int currentBlockSize = 0;
-		Set<AS> currentSet = new HashSet<AS>();
-		for (AS tAS : usefulASMap.values()) {
-			currentSet.add(tAS);
-			currentBlockSize++;
+		if (consumer != null && engineType != SimConfig.DESTINATION_ENGINE
+				&& engineType != SimConfig.SOLVER_ENGINE) {
+			ASNIndex asnIndex = ASNIndex.fromTopo(usefulASMap);
+			int ribEnd = asnIndex.getRIBStart() + asnIndex.getRIBSize();
+			for (int tDestID = asnIndex.getRIBStart(); tDestID < ribEnd; tDestID++) {
+				consumer.destinationConverged(tDestID);
+			}
+		}
+
+		bgpStartTime = System.currentTimeMillis() - bgpStartTime;
+		System.out.println("BGP done, this took: " + (bgpStartTime / 60000) + " minutes.");
+		System.out.println("Distinct paths interned: " + BGPPathTable.size());
+		if (SimConfig.MAILBOX_TYPE == AS.COALESCING_MAILBOX) {
+			long absorbed = 0;
+			for (AS tAS : usefulASMap.values()) {
+				absorbed += tAS.getAbsorbedUpdateCount();
+			}
+			System.out.println("Updates absorbed by coalescing: " + absorbed);
+		}
+
+		/*
+		 * Routing is quiet, let go of the paths only path exploration used,
+		 * the ones still in RIBs live on through the RIBs
+		 */
+		BGPPathTable.clear();
+	}
 
+	/**
+	 * The original BGP engine, every round every block of ASes is handed to
+	 * the slave threads, then the master checks the whole topology for
+	 * pending work, firing everyone's MRAI once no messages are left. Each
+	 * slave owns one partition (see buildPartitions) and only ever gets that
+	 * partition's blocks, the share of updates sent across partitions is
+	 * reported at the end.
+	 * 
+	 * @param usefulASMap
+	 *            - the ASes taking part in routing
+	 * @param checkpointer
+	 *            - checkpoints the run between rounds, null for none
+	 */
+	private static void runRounds(HashMap<Integer, DecoyAS> usefulASMap, CheckpointManager checkpointer) {
+		/*
+		 * dole out ases into blocks, one list of blocks per partition, in
+		 * locality order so neighbors tend to land in the same block
+		 */
+		int[] partOf = BGPMaster.buildPartitions(usefulASMap, SimConfig.THREADS);
+		List<List<Set<AS>>> partBlocks = new ArrayList<List<Set<AS>>>();
+		for (int counter = 0; counter < SimConfig.THREADS; counter++) {
+			partBlocks.add(new LinkedList<Set<AS>>());
+		}
+		int blockCount = 0;
+		int currentPart = -1;
+		Set<AS> currentSet = new LinkedHashSet<AS>();
+		for (AS tAS : LocalityPartitioner.localityOrder(usefulASMap.values(), partOf)) {
 			/*
-			 * if it's a full block, send it to the list
+			 * if it's a full block, or we've moved on to the next partition,
+			 * send it to its partition's list
 			 */
-			if (currentBlockSize >= BGPMaster.WORK_BLOCK_SIZE) {
-				asBlocks.add(currentSet);
-				currentSet = new HashSet<AS>();
-				currentBlockSize = 0;
+			if (currentSet.size() >= BGPMaster.WORK_BLOCK_SIZE
+					|| (currentSet.size() > 0 && partOf[tAS.getDenseID()] != currentPart)) {
+				partBlocks.get(currentPart).add(currentSet);
+				currentSet = new LinkedHashSet<AS>();
+				blockCount++;
 			}
+			currentPart = partOf[tAS.getDenseID()];
+			currentSet.add(tAS);
 		}
 		/*
 		 * add the partial set at the end if it isn't empty
 		 */
 		if (currentSet.size() > 0) {
-			asBlocks.add(currentSet);
+			partBlocks.get(currentPart).add(currentSet);
+			blockCount++;
 		}
 
 		/*
 		 * build the master and slaves, spin the slaves up
 		 */
-		BGPMaster self = new BGPMaster(asBlocks.size());
+		BGPMaster self = new BGPMaster(blockCount, SimConfig.THREADS);
+		List<BGPSlave> slaves = new ArrayList<BGPSlave>();
 		List<Thread> slaveThreads = new LinkedList<Thread>();
-		for (int counter = 0; counter < BGPMaster.NUM_THREADS; counter++) {
-			slaveThreads.add(new Thread(new BGPSlave(self)));
+		for (int counter = 0; counter < SimConfig.THREADS; counter++) {
+			BGPSlave tSlave = new BGPSlave(self, counter, partOf);
+			slaves.add(tSlave);
+			slaveThreads.add(new Thread(tSlave));
 		}
 		for (Thread tThread : slaveThreads) {
 			tThread.setDaemon(true);
 			tThread.start();
 		}
 
-		long bgpStartTime = System.currentTimeMillis();
-		System.out.println("Starting up the BGP processing.");
-
 		int stepCounter = 0;
+		if (checkpointer != null) {
+			stepCounter = checkpointer.getResumedCount();
+		}
+		long processTime = 0;
+		long scanTime = 0;
+		long mraiTime = 0;
 		boolean stuffToDo = true;
 		boolean skipToMRAI = false;
 		while (stuffToDo) {
 			stuffToDo = false;
-
-			/*
-			 * dole out work to slaves
-			 */
-			for (Set<AS> tempBlock : asBlocks) {
-				self.addWork(tempBlock);
+			if (checkpointer != null) {
+				checkpointer.atBarrier(stepCounter, usefulASMap.values());
 			}
 
 			/*
-			 * Wait till this round is done
+			 * dole out work to slaves, and wait till this round is done
 			 */
-			try {
-				self.wall();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-				System.exit(-2);
-			}
+			long phaseStart = System.nanoTime();
+			self.runPhase(partBlocks, BGPMaster.PROCESS_PHASE);
+			processTime += System.nanoTime() - phaseStart;
 
 			/*
 			 * check if nodes still have stuff to do
 			 */
+			phaseStart = System.nanoTime();
 			for (AS tAS : usefulASMap.values()) {
 				if (tAS.hasWorkToDo()) {
 					stuffToDo = true;
@@ -126,56 +467,178 @@ public class BGPMaster {
 				}
 			}
 
+			scanTime += System.nanoTime() - phaseStart;
+
 			/*
 			 * If we have no pending BGP messages, release all pending updates,
 			 * this is slightly different from a normal MRAI, but it gets the
-			 * point
+			 * point. The slaves do this in parallel, which is safe since
+			 * mailboxes take updates from any number of threads.
 			 */
 			if (!stuffToDo && skipToMRAI) {
-				for (AS tAS : usefulASMap.values()) {
-					tAS.mraiExpire();
-				}
+				phaseStart = System.nanoTime();
+				self.runPhase(partBlocks, BGPMaster.MRAI_PHASE);
+				mraiTime += System.nanoTime() - phaseStart;
 				skipToMRAI = false;
 				stuffToDo = true;
 			}
 
+			stepCounter++;
+
 			/*
 			 * A tiny bit of logging
 			 */
-			//			stepCounter++;
 			//			if (stepCounter % 1000 == 0) {
 			//				System.out.println("" + (stepCounter / 1000) + " (1k msgs)");
 			//			}
 		}
 
-		bgpStartTime = System.currentTimeMillis() - bgpStartTime;
-		System.out.println("BGP done, this took: " + (bgpStartTime / 60000) + " minutes.");
+		/*
+		 * Stop the slaves (they quit when interrupted waiting for work) and
+		 * the hub splitter, streaming and incremental runs converge over and
+		 * over and would otherwise leak a set of threads each time
+		 */
+		for (Thread tThread : slaveThreads) {
+			tThread.interrupt();
+		}
+		self.shutdown();
 
-		BGPMaster.verifyConnected(usefulASMap);
+		long localUpdates = 0;
+		long crossUpdates = 0;
+		for (BGPSlave tSlave : slaves) {
+			localUpdates += tSlave.getLocalUpdateCount();
+			crossUpdates += tSlave.getCrossUpdateCount();
+		}
+		double crossRatio = 0.0;
+		if (localUpdates + crossUpdates > 0) {
+			crossRatio = (double) crossUpdates / (double) (localUpdates + crossUpdates);
+		}
 
-		//self.tellDone();
-		HashMap<Integer, DecoyAS>[] retArray = new HashMap[2];
-		retArray[0] = usefulASMap;
-		retArray[1] = prunedASMap;
-		return retArray;
+		System.out.println("Rounds run: " + stepCounter + " cross partition updates: " + (crossRatio * 100.0) + "%");
+		System.out.println("Processing phase: " + (processTime / 1000000) + " ms, work scan: "
+				+ (scanTime / 1000000) + " ms, MRAI phase: " + (mraiTime / 1000000) + " ms");
 	}
 
-	public BGPMaster(int blockCount) {
+	/**
+	 * Splits the ASes into partitions, either by topology locality or in
+	 * dense id order depending on config, and reports how many AS to AS edges
+	 * cross partitions.
+	 * 
+	 * @param usefulASMap
+	 *            - the ASes taking part in routing
+	 * @param partCount
+	 *            - the number of partitions
+	 * @return - the partition of each AS, indexed by dense id
+	 */
+	private static int[] buildPartitions(HashMap<Integer, DecoyAS> usefulASMap, int partCount) {
+		ASNIndex asnIndex = ASNIndex.fromTopo(usefulASMap);
+		int[] partOf;
+		if (SimConfig.LOCALITY_PARTITION) {
+			partOf = LocalityPartitioner.partition(asnIndex, usefulASMap.values(), partCount);
+		} else {
+			partOf = BSPEngine.blockPartition(asnIndex, partCount);
+		}
+		System.out.println("Partitioned into " + partCount + ", cross partition edges: "
+				+ (LocalityPartitioner.edgeCutRatio(usefulASMap.values(), partOf) * 100.0) + "%");
+		return partOf;
+	}
+
+	public BGPMaster(int blockCount, int slaveCount) {
 		this.blockCount = blockCount;
-		this.workSem = new Semaphore(0);
 		this.completeSem = new Semaphore(0);
-		this.workQueue = new LinkedBlockingQueue<Set<AS>>();
+		this.workQueues = new ArrayList<BlockingQueue<Set<AS>>>();
+		for (int counter = 0; counter < slaveCount; counter++) {
+			this.workQueues.add(new LinkedBlockingQueue<Set<AS>>());
+		}
+		this.splitPool = new ForkJoinPool(SimConfig.THREADS);
+		this.hubSplitter = new HubSplitter(this.splitPool, SimConfig.HUB_DEGREE, SimConfig.HUB_QUEUE,
+				SimConfig.THREADS * 4);
+	}
+
+	/**
+	 * Shuts down the hub splitter's worker threads.
+	 */
+	public void shutdown() {
+		this.splitPool.shutdown();
+	}
+
+	public HubSplitter getHubSplitter() {
+		return this.hubSplitter;
+	}
+
+	/**
+	 * Fetches the type of work the slaves are to do on the blocks they are
+	 * given.
+	 * 
+	 * @return - PROCESS_PHASE or MRAI_PHASE
+	 */
+	public int getPhase() {
+		return this.phase;
+	}
+
+	/**
+	 * Builds a second copy of the topology, solves it with RoutingSolver, and
+	 * checks that the RIBs match the ones the engine converged to.
+	 * 
+	 * @param usefulASMap
+	 *            - the converged ASes
+	 * @param chinaAvoidanceSize
+	 *            - number of large ASes the warden avoids
+	 * @param countryFile
+	 *            - the warden AS file
+	 * @throws IOException
+	 *             - if there is an issue reading the topology files
+	 */
+	private static void verifyAgainstSolver(HashMap<Integer, DecoyAS> usefulASMap, int chinaAvoidanceSize,
+			String countryFile) throws IOException {
+		long startTime = System.currentTimeMillis();
+		System.out.println("Starting solver parity check");
+
+		HashMap<Integer, DecoyAS> solvedASMap = BGPMaster.buildTopology(countryFile)[0];
+		BGPMaster.seedOrigins(solvedASMap, chinaAvoidanceSize);
+		RoutingSolver solver = new RoutingSolver(ASNIndex.fromTopo(solvedASMap), SimConfig.THREADS);
+		solver.run(solvedASMap);
+		solver.shutdown();
+
+		long mismatches = RoutingSolver.diff(usefulASMap, solvedASMap);
+		System.out.println("Solver parity check done in: " + (System.currentTimeMillis() - startTime) + " ms");
+		if (mismatches > 0) {
+			throw new RuntimeException("RoutingSolver disagrees with the BGP engine for " + mismatches
+					+ " AS/destination pairs");
+		}
 	}
 
-	public void addWork(Set<AS> workSet) {
-		this.workQueue.add(workSet);
-		this.workSem.release();
+	/**
+	 * Hands every block to the slave that owns its partition for the given
+	 * type of work, and waits for them all to finish.
+	 * 
+	 * @param partBlocks
+	 *            - the work blocks of each partition
+	 * @param workPhase
+	 *            - PROCESS_PHASE or MRAI_PHASE
+	 */
+	private void runPhase(List<List<Set<AS>>> partBlocks, int workPhase) {
+		this.phase = workPhase;
+		for (int part = 0; part < partBlocks.size(); part++) {
+			for (Set<AS> tempBlock : partBlocks.get(part)) {
+				this.addWork(part, tempBlock);
+			}
+		}
+
+		try {
+			this.wall();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-2);
+		}
 	}
 
-	public Set<AS> getWork() throws InterruptedException {
+	public void addWork(int slaveID, Set<AS> workSet) {
+		this.workQueues.get(slaveID).add(workSet);
+	}
 
-		this.workSem.acquire();
-		return this.workQueue.poll();
+	public Set<AS> getWork(int slaveID) throws InterruptedException {
+		return this.workQueues.get(slaveID).take();
 	}
 
 	public void reportWorkDone() {
@@ -201,7 +664,7 @@ public class BGPMaster {
 				}
 
 				examinedPaths++;
-				if (tAS.getPath(tDest.getASN()) != null) {
+				if (tAS.hasPathTo(tDest.getASN())) {
 					workingPaths++;
 				}
 			}
@@ -1,14 +1,43 @@
 package sim;
 
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
 import topo.AS;
+import topo.BGPUpdate;
+import topo.UpdateSink;
 
-public class BGPSlave implements Runnable {
+public class BGPSlave implements Runnable, UpdateSink {
 
 	private BGPMaster workSource;
+	private int slaveID;
+	private int[] partOf;
+	private int batchSize;
+
+	/*
+	 * Updates we sent to ASes in our own partition and in others, hubs are
+	 * expired on several threads at once so these must be thread safe
+	 */
+	private LongAdder localUpdates;
+	private LongAdder crossUpdates;
 
-	public BGPSlave(BGPMaster daBoss) {
+	/**
+	 * Builds a slave that works the blocks of one partition.
+	 * 
+	 * @param daBoss
+	 *            - the master handing out work
+	 * @param slaveID
+	 *            - the partition this slave owns
+	 * @param partOf
+	 *            - the partition of each AS, indexed by dense id
+	 */
+	public BGPSlave(BGPMaster daBoss, int slaveID, int[] partOf) {
 		this.workSource = daBoss;
+		this.slaveID = slaveID;
+		this.partOf = partOf;
+		this.batchSize = SimConfig.BATCH_SIZE;
+		this.localUpdates = new LongAdder();
+		this.crossUpdates = new LongAdder();
 	}
 
 	@Override
@@ -19,15 +48,18 @@ public class BGPSlave implements Runnable {
 				/*
 				 * Fetch work from master
 				 */
-				Set<AS> workSet = this.workSource.getWork();
+				Set<AS> workSet = this.workSource.getWork(this.slaveID);
 
 				/*
 				 * there is work to do, please do it
 				 */
-				for (AS tAS : workSet) {
-					tAS.handleAdvertisement();
+				if (this.workSource.getPhase() == BGPMaster.MRAI_PHASE) {
+					this.fireMRAI(workSet);
+				} else {
+					this.handleMessages(workSet);
 				}
-				
+
+
 				this.workSource.reportWorkDone();
 			}
 		} catch (InterruptedException e) {
@@ -38,4 +70,58 @@ public class BGPSlave implements Runnable {
 
 	}
 
+	private void handleMessages(Set<AS> workSet) {
+		HubSplitter hubSplitter = this.workSource.getHubSplitter();
+		for (AS tAS : workSet) {
+			if (this.batchSize == 1) {
+				tAS.handleAdvertisement();
+			} else if (hubSplitter.isHub(tAS)) {
+				hubSplitter.handle(tAS, this.batchSize);
+			} else {
+				tAS.handleAdvertisements(this.batchSize);
+			}
+		}
+	}
+
+	private void fireMRAI(Set<AS> workSet) {
+		HubSplitter hubSplitter = this.workSource.getHubSplitter();
+		for (AS tAS : workSet) {
+			if (!tAS.hasDirtyPrefixes()) {
+				continue;
+			}
+			if (hubSplitter.isHub(tAS)) {
+				hubSplitter.expire(tAS, this);
+			} else {
+				tAS.mraiExpire(this);
+			}
+		}
+	}
+
+	public void deliver(AS target, BGPUpdate update) {
+		target.receiveUpdate(update);
+		if (this.partOf[target.getDenseID()] == this.slaveID) {
+			this.localUpdates.increment();
+		} else {
+			this.crossUpdates.increment();
+		}
+	}
+
+	/**
+	 * Fetches the number of updates we sent to ASes in our own partition.
+	 * 
+	 * @return - the local update count
+	 */
+	public long getLocalUpdateCount() {
+		return this.localUpdates.sum();
+	}
+
+	/**
+	 * Fetches the number of updates we sent to ASes in other partitions.
+	 * 
+	 * @return - the cross partition update count
+	 */
+	public long getCrossUpdateCount() {
+		return this.crossUpdates.sum();
+	}
+
 }
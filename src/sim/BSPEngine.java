@@ -0,0 +1,314 @@
+package sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import topo.AS;
+import topo.ASNIndex;
+import topo.BGPUpdate;
+import topo.UpdateSink;
+
+/**
+ * Bulk synchronous (Pregel style) BGP engine. The ASes are split into
+ * partitions, one per worker, and each worker is the only thread that ever
+ * touches the ASes in its partition, including their mailboxes. Every
+ * superstep a worker
+ * 
+ * 1) moves the updates other workers addressed to its partition last
+ * superstep into the mailboxes of its ASes
+ * 
+ * 2) has those ASes handle all of their messages
+ * 
+ * 3) fires the MRAI of its dirty ASes, the updates sent are appended to the
+ * worker's own outbox for the partition the receiving AS is in
+ * 
+ * The outboxes are only handed over at the barrier between supersteps, so the
+ * only synchronization is the barrier itself. This is the same process then
+ * flush cycle as the round based engine, since no update sent in a superstep
+ * is handled until every AS has handled everything it had, so the converged
+ * RIBs are the same.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class BSPEngine {
+
+	private int partCount;
+	private int[] partOf;
+	private int batchSize;
+	private ExecutorService workers;
+
+	/**
+	 * The ASes in each partition
+	 */
+	private AS[][] members;
+
+	/**
+	 * outboxes[src][dst] holds the updates workers src sent to ASes in
+	 * partition dst this superstep
+	 */
+	private Outbox[][] outboxes;
+
+	/**
+	 * Marks ASes (by dense id) that got updates this superstep, only touched
+	 * by the worker that owns the AS
+	 */
+	private boolean[] active;
+
+	private int superstepCount;
+	private long localMessages;
+	private long crossMessages;
+
+	/**
+	 * Builds the engine.
+	 * 
+	 * @param asnIndex
+	 *            - the index of the topology being run
+	 * @param asMap
+	 *            - the ASes taking part in routing
+	 * @param partCount
+	 *            - the number of partitions (and worker threads)
+	 * @param partOf
+	 *            - the partition of each AS, indexed by dense id
+	 * @param batchSize
+	 *            - see SimConfig.BATCH_SIZE
+	 */
+	public BSPEngine(ASNIndex asnIndex, Map<Integer, ? extends AS> asMap, int partCount, int[] partOf, int batchSize) {
+		this.partCount = partCount;
+		this.partOf = partOf;
+		this.batchSize = batchSize;
+		this.workers = Executors.newFixedThreadPool(partCount);
+		this.active = new boolean[asnIndex.size()];
+
+		List<List<AS>> memberLists = new ArrayList<List<AS>>();
+		for (int counter = 0; counter < partCount; counter++) {
+			memberLists.add(new ArrayList<AS>());
+		}
+		for (AS tAS : asMap.values()) {
+			memberLists.get(partOf[tAS.getDenseID()]).add(tAS);
+		}
+		this.members = new AS[partCount][];
+		for (int counter = 0; counter < partCount; counter++) {
+			this.members[counter] = memberLists.get(counter).toArray(new AS[0]);
+		}
+
+		this.outboxes = new Outbox[partCount][partCount];
+		for (int src = 0; src < partCount; src++) {
+			for (int dst = 0; dst < partCount; dst++) {
+				this.outboxes[src][dst] = new Outbox();
+			}
+		}
+
+		this.superstepCount = 0;
+		this.localMessages = 0;
+		this.crossMessages = 0;
+	}
+
+	/**
+	 * Builds the simplest partitioning, contiguous runs of dense ids of
+	 * (nearly) equal size.
+	 * 
+	 * @param asnIndex
+	 *            - the index of the topology
+	 * @param partCount
+	 *            - the number of partitions
+	 * @return - the partition of each AS, indexed by dense id
+	 */
+	public static int[] blockPartition(ASNIndex asnIndex, int partCount) {
+		int[] partOf = new int[asnIndex.size()];
+		long routed = Math.max(1, asnIndex.getRoutedCount());
+		for (int counter = 0; counter < partOf.length; counter++) {
+			if (asnIndex.isRouted(counter)) {
+				partOf[counter] = (int) ((long) counter * partCount / routed);
+			} else {
+				partOf[counter] = counter % partCount;
+			}
+		}
+		return partOf;
+	}
+
+	/**
+	 * Runs BGP to convergence. The ASes must already have their initial
+	 * advertisements queued.
+	 */
+	public void run() {
+		List<Callable<Long>> firstSteps = this.buildSteps(true);
+		List<Callable<Long>> steps = this.buildSteps(false);
+
+		while (true) {
+			long sent = 0;
+			try {
+				for (Future<Long> tResult : this.workers.invokeAll(this.superstepCount == 0 ? firstSteps : steps)) {
+					sent += tResult.get();
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				System.exit(-2);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+			this.superstepCount++;
+
+			/*
+			 * Nothing in any outbox means nothing changed anywhere
+			 */
+			if (sent == 0) {
+				break;
+			}
+		}
+
+		for (int src = 0; src < this.partCount; src++) {
+			for (int dst = 0; dst < this.partCount; dst++) {
+				if (src == dst) {
+					this.localMessages += this.outboxes[src][dst].total;
+				} else {
+					this.crossMessages += this.outboxes[src][dst].total;
+				}
+			}
+		}
+	}
+
+	private List<Callable<Long>> buildSteps(boolean first) {
+		List<Callable<Long>> steps = new ArrayList<Callable<Long>>();
+		for (int counter = 0; counter < this.partCount; counter++) {
+			steps.add(new Superstep(counter, first));
+		}
+		return steps;
+	}
+
+	/**
+	 * Shuts down the worker threads.
+	 */
+	public void shutdown() {
+		this.workers.shutdown();
+	}
+
+	/**
+	 * Fetches the number of supersteps run.
+	 * 
+	 * @return - the superstep count
+	 */
+	public int getSuperstepCount() {
+		return this.superstepCount;
+	}
+
+	/**
+	 * Fetches the fraction of updates that were sent to an AS in a different
+	 * partition than the sender.
+	 * 
+	 * @return - cross partition updates over all updates
+	 */
+	public double getCrossPartitionRatio() {
+		long total = this.localMessages + this.crossMessages;
+		if (total == 0) {
+			return 0.0;
+		}
+		return (double) this.crossMessages / (double) total;
+	}
+
+	/**
+	 * One worker's share of a superstep.
+	 */
+	private class Superstep implements Callable<Long>, UpdateSink {
+
+		private int part;
+		private boolean first;
+
+		private Superstep(int part, boolean first) {
+			this.part = part;
+			this.first = first;
+		}
+
+		public Long call() {
+			BSPEngine self = BSPEngine.this;
+			List<AS> work = new ArrayList<AS>();
+
+			/*
+			 * Bring in the updates sent to us last superstep, on the first
+			 * superstep the work is the initial advertisements already in the
+			 * mailboxes, plus anyone already dirty (a resumed or reconverged
+			 * run) who still has routes to send
+			 */
+			if (this.first) {
+				for (AS tAS : self.members[this.part]) {
+					if (tAS.hasWorkToDo() || tAS.hasDirtyPrefixes()) {
+						work.add(tAS);
+					}
+				}
+			} else {
+				for (int src = 0; src < self.partCount; src++) {
+					Outbox inbox = self.outboxes[src][this.part];
+					for (int counter = 0; counter < inbox.size; counter++) {
+						AS target = inbox.targets[counter];
+						target.receiveUpdate(inbox.updates[counter]);
+						if (!self.active[target.getDenseID()]) {
+							self.active[target.getDenseID()] = true;
+							work.add(target);
+						}
+					}
+					inbox.clear();
+				}
+			}
+
+			/*
+			 * Handle everything, then flush whoever changed
+			 */
+			for (AS tAS : work) {
+				self.active[tAS.getDenseID()] = false;
+				while (tAS.hasWorkToDo()) {
+					tAS.handleAdvertisements(self.batchSize);
+				}
+			}
+
+			long sent = 0;
+			for (AS tAS : work) {
+				if (tAS.hasDirtyPrefixes()) {
+					tAS.mraiExpire(this);
+				}
+			}
+			for (int dst = 0; dst < self.partCount; dst++) {
+				sent += self.outboxes[this.part][dst].size;
+			}
+			return sent;
+		}
+
+		public void deliver(AS target, BGPUpdate update) {
+			BSPEngine.this.outboxes[this.part][BSPEngine.this.partOf[target.getDenseID()]].add(target, update);
+		}
+	}
+
+	/**
+	 * Append only list of (receiver, update) pairs.
+	 */
+	private static class Outbox {
+
+		private AS[] targets;
+		private BGPUpdate[] updates;
+		private int size;
+		private long total;
+
+		private Outbox() {
+			this.targets = new AS[16];
+			this.updates = new BGPUpdate[16];
+			this.size = 0;
+			this.total = 0;
+		}
+
+		private void add(AS target, BGPUpdate update) {
+			if (this.size == this.targets.length) {
+				this.targets = Arrays.copyOf(this.targets, this.size * 2);
+				this.updates = Arrays.copyOf(this.updates, this.size * 2);
+			}
+			this.targets[this.size] = target;
+			this.updates[this.size] = update;
+			this.size++;
+			this.total++;
+		}
+
+		private void clear() {
+			Arrays.fill(this.targets, 0, this.size, null);
+			Arrays.fill(this.updates, 0, this.size, null);
+			this.size = 0;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package sim;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import topo.AS;
+import topo.ASCheckpoint;
+import topo.ASNIndex;
+import topo.MappedRIB;
+import util.ChannelReader;
+import util.ChannelWriter;
+
+/**
+ * Periodically checkpoints a BGP convergence run so a run that dies (OOM,
+ * kill, reboot) can pick up where its last checkpoint left off instead of
+ * starting over. Engines call atBarrier between phases, when no updates are
+ * in flight. If a checkpoint is due, all that happens there is a new
+ * checkpoint epoch is started (see ASNIndex.beginCheckpoint), and a
+ * background thread is handed the ASes to write while the engine carries on.
+ * Each AS captures its state as of the barrier the first time it changes
+ * afterwards, sharing its RIBs copy on write rather than copying them (see
+ * ASCheckpoint), and the writer takes the live state of any AS that hasn't
+ * changed yet. If the previous checkpoint is still being written when another
+ * is due, it is skipped.
+ * 
+ * A checkpoint is one file: a header (magic, version, routed AS count, RIB
+ * range, topology fingerprint, see MappedRIB.fingerprint, the engine's phase
+ * or round counter, AS count), an ASCheckpoint
+ * record per AS, and the magic again. Routes are only spelled out the first
+ * time they come up in the file (see ASCheckpoint.PathTable). It is written
+ * with buffered NIO to a temp file, forced to disk, and renamed into place,
+ * so the newest checkpoint-N file is always complete. Older checkpoints are deleted once a
+ * newer one is in place, and all of them once the run converges.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class CheckpointManager {
+
+	private final ASNIndex asnIndex;
+	private final long fingerprint;
+	private final File checkpointDir;
+	private final long intervalMillis;
+
+	private ExecutorService writer;
+	private Future<?> inFlight;
+	private long lastCheckpoint;
+	private int resumedCount;
+
+	private int checkpointCount;
+	private long longestStall;
+
+	private static final int MAGIC = 0x4e57434b;
+	private static final int VERSION = 3;
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final String PREFIX = "checkpoint-";
+	private static final String SUFFIX = ".ckpt";
+
+	/**
+	 * Builds a checkpoint manager for a topology.
+	 * 
+	 * @param asnIndex
+	 *            - the index of the topology being converged
+	 * @param checkpointDir
+	 *            - where checkpoints live, created if need be
+	 * @param intervalSecs
+	 *            - minimum time between checkpoints, 0 checkpoints at every
+	 *            barrier
+	 */
+	public CheckpointManager(ASNIndex asnIndex, File checkpointDir, int intervalSecs) {
+		this.asnIndex = asnIndex;
+		this.fingerprint = MappedRIB.fingerprint(asnIndex);
+		this.checkpointDir = checkpointDir;
+		this.intervalMillis = intervalSecs * 1000L;
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread writerThread = new Thread(task, "checkpoint-writer");
+				writerThread.setDaemon(true);
+				return writerThread;
+			}
+		});
+		this.inFlight = null;
+		this.lastCheckpoint = System.currentTimeMillis();
+		this.resumedCount = 0;
+		this.checkpointCount = 0;
+		this.longestStall = 0;
+	}
+
+	/**
+	 * Loads the newest checkpoint, if there is one, into the ASes of the
+	 * topology. The ASes must not have been seeded or run yet. A temp file left
+	 * by a writer that was killed mid checkpoint is removed.
+	 * 
+	 * @return - true if a checkpoint was loaded, false if there was none
+	 * @throws IOException
+	 *             - if the checkpoint can't be read or is from a different
+	 *             topology
+	 */
+	public boolean resume() throws IOException {
+		this.getTempFile().delete();
+		File latest = this.findLatest();
+		if (latest == null) {
+			return false;
+		}
+
+		ChannelReader in = new ChannelReader(FileChannel.open(latest.toPath(), StandardOpenOption.READ),
+				CheckpointManager.BUFFER_SIZE);
+		try {
+			if (in.readInt() != CheckpointManager.MAGIC || in.readInt() != CheckpointManager.VERSION) {
+				throw new IOException("Not a checkpoint file: " + latest);
+			}
+			if (in.readInt() != this.asnIndex.getRoutedCount() || in.readInt() != this.asnIndex.getRIBStart()
+					|| in.readInt() != this.asnIndex.getRIBStart() + this.asnIndex.getRIBSize()
+					|| in.readLong() != this.fingerprint) {
+				throw new IOException("Checkpoint " + latest + " was taken of a different topology");
+			}
+			int counter = in.readInt();
+			int asCount = in.readInt();
+			ASCheckpoint.PathTable pathTable = new ASCheckpoint.PathTable();
+			for (int asCounter = 0; asCounter < asCount; asCounter++) {
+				ASCheckpoint.read(in, this.asnIndex, pathTable);
+			}
+			if (in.readInt() != CheckpointManager.MAGIC) {
+				throw new IOException("Checkpoint " + latest + " is corrupt");
+			}
+			this.resumedCount = counter;
+		} finally {
+			in.close();
+		}
+
+		System.out.println("Resumed from checkpoint " + latest + " at phase " + this.resumedCount);
+		return true;
+	}
+
+	/**
+	 * Fetches the engine counter the loaded checkpoint was taken at, engines
+	 * continue counting from here.
+	 * 
+	 * @return - the phase or round counter, 0 if we did not resume
+	 */
+	public int getResumedCount() {
+		return this.resumedCount;
+	}
+
+	/**
+	 * Called by engines at a barrier, with no updates being handled or sent.
+	 * Starts a checkpoint if one is due, and hands it off to be written.
+	 * 
+	 * @param counter
+	 *            - the engine's phase or round counter
+	 * @param asSet
+	 *            - every routed AS
+	 */
+	public void atBarrier(int counter, Collection<? extends AS> asSet) {
+		if (System.currentTimeMillis() - this.lastCheckpoint < this.intervalMillis) {
+			return;
+		}
+		if (this.inFlight != null && !this.inFlight.isDone()) {
+			return;
+		}
+
+		long stallStart = System.currentTimeMillis();
+		final int epoch = this.asnIndex.beginCheckpoint();
+		final List<AS> asList = new ArrayList<AS>(asSet);
+		final int phase = counter;
+		this.inFlight = this.writer.submit(new Runnable() {
+			public void run() {
+				CheckpointManager.this.write(phase, epoch, asList);
+			}
+		});
+
+		this.lastCheckpoint = System.currentTimeMillis();
+		this.longestStall = Math.max(this.longestStall, this.lastCheckpoint - stallStart);
+		this.checkpointCount++;
+	}
+
+	/**
+	 * Waits for any checkpoint being written, then removes every checkpoint
+	 * (and the temp file a killed writer may have left) since the run
+	 * converged.
+	 */
+	public void finish() {
+		try {
+			if (this.inFlight != null) {
+				this.inFlight.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Checkpoint writer failed", e);
+		}
+		this.writer.shutdown();
+
+		for (File tFile : this.listCheckpoints()) {
+			tFile.delete();
+		}
+		this.getTempFile().delete();
+		System.out.println("Checkpoints taken: " + this.checkpointCount + " longest barrier stall: "
+				+ this.longestStall + " ms");
+	}
+
+	/**
+	 * Writes a checkpoint, runs on the writer thread. A failed checkpoint is
+	 * reported but doesn't stop the run.
+	 */
+	private void write(int counter, int epoch, List<AS> asList) {
+		File tempFile = this.getTempFile();
+		File outFile = new File(this.checkpointDir, CheckpointManager.PREFIX + counter + CheckpointManager.SUFFIX);
+		try {
+			if (!this.checkpointDir.isDirectory() && !this.checkpointDir.mkdirs()) {
+				throw new IOException("Could not create checkpoint directory " + this.checkpointDir);
+			}
+
+			ChannelWriter out = new ChannelWriter(FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), CheckpointManager.BUFFER_SIZE);
+			try {
+				out.writeInt(CheckpointManager.MAGIC);
+				out.writeInt(CheckpointManager.VERSION);
+				out.writeInt(this.asnIndex.getRoutedCount());
+				out.writeInt(this.asnIndex.getRIBStart());
+				out.writeInt(this.asnIndex.getRIBStart() + this.asnIndex.getRIBSize());
+				out.writeLong(this.fingerprint);
+				out.writeInt(counter);
+				out.writeInt(asList.size());
+				ASCheckpoint.PathTable pathTable = new ASCheckpoint.PathTable();
+				for (AS tAS : asList) {
+					tAS.takeCheckpoint(epoch).write(out, pathTable);
+				}
+				out.writeInt(CheckpointManager.MAGIC);
+			} finally {
+				out.close();
+			}
+			Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+
+			for (File tFile : this.listCheckpoints()) {
+				if (!tFile.equals(outFile)) {
+					tFile.delete();
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Checkpoint at phase " + counter + " failed: " + e);
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Where a checkpoint is written before being renamed into place, it
+	 * doesn't match the checkpoint suffix so a half written one is never
+	 * resumed from.
+	 */
+	private File getTempFile() {
+		return new File(this.checkpointDir, CheckpointManager.PREFIX + "tmp");
+	}
+
+	private File findLatest() {
+		File latest = null;
+		int latestCounter = -1;
+		for (File tFile : this.listCheckpoints()) {
+			String name = tFile.getName();
+			int counter = Integer.parseInt(name.substring(CheckpointManager.PREFIX.length(), name.length()
+					- CheckpointManager.SUFFIX.length()));
+			if (counter > latestCounter) {
+				latest = tFile;
+				latestCounter = counter;
+			}
+		}
+		return latest;
+	}
+
+	private List<File> listCheckpoints() {
+		List<File> checkpoints = new ArrayList<File>();
+		File[] files = this.checkpointDir.listFiles();
+		if (files == null) {
+			return checkpoints;
+		}
+		for (File tFile : files) {
+			String name = tFile.getName();
+			if (name.startsWith(CheckpointManager.PREFIX) && name.endsWith(CheckpointManager.SUFFIX)) {
+				checkpoints.add(tFile);
+			}
+		}
+		return checkpoints;
+	}
+}
@@ -0,0 +1,22 @@
+package sim;
+
+/**
+ * Callback handed each destination once BGP has converged for it, while the
+ * ASes still hold RIB state for it. Engines that finish destinations
+ * independently call this from their worker threads as they go, so
+ * implementations must be thread safe, but are only ever called once per
+ * destination and should only look at RIB state for that destination.
+ * 
+ * @author pendgaft
+ * 
+ */
+public interface DestinationConsumer {
+
+	/**
+	 * Called when a destination has converged.
+	 * 
+	 * @param destID
+	 *            - the dense id of the destination
+	 */
+	public void destinationConverged(int destID);
+}
@@ -0,0 +1,112 @@
+package sim;
+
+import topo.AS;
+import topo.ASNIndex;
+import topo.BGPUpdate;
+import topo.UpdateSink;
+
+/**
+ * BGP engine that converges one destination at a time. No BGP state is shared
+ * between destinations, so instead of every AS handling a mailbox full of
+ * updates for every destination interleaved together, each worker takes a
+ * destination and runs it to convergence on its own: starting from the
+ * origin's advertisement, an AS whose route changed sends it to its neighbors,
+ * which apply it straight away, and so on until no routes change. The only
+ * state is a per worker queue of ASes with a changed route (plus a flag per
+ * AS so it is only queued once), and the AS's RIB entries for that one
+ * destination.
+ * 
+ * Destinations are split across a ForkJoinPool (see PerDestinationEngine),
+ * since they don't interact there are no phases or barriers, and nothing goes
+ * through the mailboxes after the initial advertisements are taken out of
+ * them.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class DestinationEngine extends PerDestinationEngine<DestinationEngine.Scratch> {
+
+	private ASNIndex asnIndex;
+
+	public DestinationEngine(ASNIndex asnIndex, int threadCount) {
+		super(asnIndex, threadCount);
+		this.asnIndex = asnIndex;
+	}
+
+	protected Scratch buildWorker() {
+		return new Scratch();
+	}
+
+	/**
+	 * Fetches the total number of times an AS sent its route for a
+	 * destination to its neighbors.
+	 * 
+	 * @return - the activation count
+	 */
+	public long getActivationCount() {
+		long count = 0;
+		for (Scratch tScratch : this.getWorkers()) {
+			count += tScratch.activations;
+		}
+		return count;
+	}
+
+	/**
+	 * A worker's state for converging a destination, the ASes whose route
+	 * changed (by dense id) in a ring buffer, each AS is in it at most once.
+	 * Updates sent to this sink are applied to the receiving AS immediately.
+	 */
+	class Scratch extends PerDestinationEngine.Worker implements UpdateSink {
+
+		private final int[] queue;
+		private final boolean[] queued;
+		private int head;
+		private int count;
+
+		private long activations;
+
+		private Scratch() {
+			this.queue = new int[DestinationEngine.this.asnIndex.size()];
+			this.queued = new boolean[DestinationEngine.this.asnIndex.size()];
+			this.head = 0;
+			this.count = 0;
+			this.activations = 0;
+		}
+
+		public void deliver(AS target, BGPUpdate update) {
+			if (target.handleUpdate(update)) {
+				this.enqueue(target.getDenseID());
+			}
+		}
+
+		private void enqueue(int id) {
+			if (this.queued[id]) {
+				return;
+			}
+			this.queued[id] = true;
+			this.queue[(this.head + this.count) % this.queue.length] = id;
+			this.count++;
+		}
+
+		protected void converge(int destID) {
+			AS origin = DestinationEngine.this.getOriginAS(destID);
+			if (origin == null) {
+				return;
+			}
+			this.destCount++;
+
+			if (origin.handleUpdate(DestinationEngine.this.getOriginAdv(destID))) {
+				this.enqueue(origin.getDenseID());
+			}
+			while (this.count > 0) {
+				int id = this.queue[this.head];
+				this.head = (this.head + 1) % this.queue.length;
+				this.count--;
+				this.queued[id] = false;
+
+				DestinationEngine.this.asnIndex.getAS(id).sendRoute(destID, this);
+				this.activations++;
+			}
+		}
+	}
+}
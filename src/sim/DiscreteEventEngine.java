@@ -0,0 +1,417 @@
+package sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import topo.AS;
+import topo.ASNIndex;
+import topo.BGPUpdate;
+import topo.UpdateSink;
+
+/**
+ * Discrete event BGP engine, for convergence time and transient path
+ * studies. Three kinds of events, kept in an EventQueue ordered by virtual
+ * time:
+ * 
+ * DELIVER - an update reaches an AS, one link delay after it was sent
+ * 
+ * PROCESS - an AS handles the next message in its mailbox (via
+ * handleAdvertisement), each message keeps the AS busy for the processing
+ * delay
+ * 
+ * MRAI - the MRAI timer of an AS fires and it sends its changed routes (via
+ * mraiExpire), timers are per AS and jittered just like in MRAITimerEngine
+ * 
+ * Link delays are the configured delay plus a fixed per link amount between 0
+ * and the configured jitter, so paths race each other the way they do in the
+ * wild.
+ * 
+ * Runs in parallel using conservative time windows. No update can arrive
+ * sooner than the minimum link delay after it was sent, so every event in
+ * [T, T + min delay) can be handled without waiting on anything else in that
+ * window, other than events for the same AS. Each window the events are
+ * grouped by AS, each AS works through its own events (and whatever
+ * PROCESS/MRAI events for itself land in the window) on the thread pool, and
+ * the updates they send are merged back into the main queue in AS order, so
+ * results don't depend on the number of threads.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class DiscreteEventEngine {
+
+	private static final int DELIVER_EVENT = 0;
+	private static final int PROCESS_EVENT = 1;
+	private static final int MRAI_EVENT = 2;
+	private static final int EVENT_BITS = 2;
+	private static final int EVENT_MASK = (1 << DiscreteEventEngine.EVENT_BITS) - 1;
+
+	/**
+	 * Fewest ASes in a window worth splitting across threads
+	 */
+	private static final int SPLIT_THRESHOLD = 8;
+
+	private ASNIndex asnIndex;
+	private EventQueue queue;
+	private long nextSeq;
+	private ForkJoinPool pool;
+
+	private long linkDelay;
+	private long linkJitter;
+	private long processDelay;
+
+	/*
+	 * Per AS state, by dense id, only touched by whoever is running that AS's
+	 * events
+	 */
+	private long[] mraiInterval;
+	private long[] lastFire;
+	private long[] busyUntil;
+	private boolean[] timerArmed;
+	private boolean[] processScheduled;
+	private long[] eventCount;
+	private long[] lastEventTime;
+	private EventQueue[] localEvents;
+	private EventQueue[] outEvents;
+
+	/**
+	 * Sequence numbers for events an AS creates during a window, so same time
+	 * events it creates keep the order they were created in
+	 */
+	private long[] windowSeq;
+
+	private long windowCount;
+	private long wallTime;
+
+	/**
+	 * Builds the engine.
+	 * 
+	 * @param asnIndex
+	 *            - the index of the topology being run
+	 * @param threadCount
+	 *            - worker threads, 1 runs everything on the calling thread
+	 * @param mrai
+	 *            - the MRAI interval in ticks
+	 * @param linkDelay
+	 *            - the minimum time an update takes to reach a neighbor in
+	 *            ticks, at least 1
+	 * @param linkJitter
+	 *            - the most extra delay any one link has
+	 * @param processDelay
+	 *            - the time it takes an AS to handle one message
+	 */
+	public DiscreteEventEngine(ASNIndex asnIndex, int threadCount, long mrai, long linkDelay, long linkJitter,
+			long processDelay) {
+		this.asnIndex = asnIndex;
+		this.queue = new EventQueue();
+		this.nextSeq = 0;
+		if (threadCount > 1) {
+			this.pool = new ForkJoinPool(threadCount);
+		}
+
+		this.linkDelay = Math.max(1, linkDelay);
+		this.linkJitter = Math.max(0, linkJitter);
+		this.processDelay = Math.max(0, processDelay);
+
+		int asCount = asnIndex.size();
+		this.mraiInterval = new long[asCount];
+		this.lastFire = new long[asCount];
+		this.busyUntil = new long[asCount];
+		this.timerArmed = new boolean[asCount];
+		this.processScheduled = new boolean[asCount];
+		this.eventCount = new long[asCount];
+		this.lastEventTime = new long[asCount];
+		this.localEvents = new EventQueue[asCount];
+		this.outEvents = new EventQueue[asCount];
+		this.windowSeq = new long[asCount];
+		for (int counter = 0; counter < asCount; counter++) {
+			Random jitter = new Random(asnIndex.getASN(counter));
+			this.mraiInterval[counter] = (long) (mrai * (0.75 + 0.25 * jitter.nextDouble()));
+			this.lastFire[counter] = -this.mraiInterval[counter];
+		}
+
+		this.windowCount = 0;
+		this.wallTime = 0;
+	}
+
+	/**
+	 * Runs BGP to convergence. The ASes must already have their initial
+	 * advertisements queued.
+	 * 
+	 * @param asMap
+	 *            - the ASes taking part in routing
+	 */
+	public void run(Map<Integer, ? extends AS> asMap) {
+		long startTime = System.nanoTime();
+
+		for (AS tAS : asMap.values()) {
+			int id = tAS.getDenseID();
+			if (tAS.hasWorkToDo()) {
+				this.processScheduled[id] = true;
+				this.queue.add(0, this.nextSeq++, DiscreteEventEngine.buildCode(id,
+						DiscreteEventEngine.PROCESS_EVENT), null);
+			}
+			if (tAS.hasDirtyPrefixes()) {
+				this.timerArmed[id] = true;
+				this.queue.add(0, this.nextSeq++, DiscreteEventEngine.buildCode(id, DiscreteEventEngine.MRAI_EVENT),
+						null);
+			}
+		}
+
+		List<Integer> touched = new ArrayList<Integer>();
+		while (!this.queue.isEmpty()) {
+			/*
+			 * Pull out the window and split it up by AS
+			 */
+			long windowEnd = this.queue.peekTime() + this.linkDelay;
+			touched.clear();
+			while (!this.queue.isEmpty() && this.queue.peekTime() < windowEnd) {
+				this.queue.poll();
+				int id = this.queue.getLastCode() >>> DiscreteEventEngine.EVENT_BITS;
+				if (this.localEvents[id] == null) {
+					this.localEvents[id] = new EventQueue();
+					this.outEvents[id] = new EventQueue();
+				}
+				if (this.localEvents[id].isEmpty()) {
+					touched.add(id);
+				}
+				this.localEvents[id].add(this.queue.getLastTime(), this.nextSeq++, this.queue.getLastCode(),
+						this.queue.getLastUpdate());
+			}
+			Collections.sort(touched);
+			int[] ids = new int[touched.size()];
+			for (int counter = 0; counter < ids.length; counter++) {
+				ids[counter] = touched.get(counter);
+			}
+
+			/*
+			 * Run it, local events get sequence numbers after everything
+			 * already queued so same time ties go to older events
+			 */
+			long seqBase = this.nextSeq;
+			if (this.pool == null || ids.length < DiscreteEventEngine.SPLIT_THRESHOLD) {
+				for (int tID : ids) {
+					this.runAS(tID, windowEnd, seqBase);
+				}
+			} else {
+				this.pool.invoke(new WindowTask(ids, 0, ids.length, windowEnd, seqBase));
+			}
+			this.windowCount++;
+
+			/*
+			 * Merge what was sent back in, in AS order
+			 */
+			for (int tID : ids) {
+				EventQueue out = this.outEvents[tID];
+				while (!out.isEmpty()) {
+					out.poll();
+					this.queue.add(out.getLastTime(), this.nextSeq++, out.getLastCode(), out.getLastUpdate());
+				}
+			}
+		}
+
+		this.wallTime = System.nanoTime() - startTime;
+	}
+
+	/**
+	 * Works through one AS's events in a window.
+	 */
+	private void runAS(int id, long windowEnd, long seqBase) {
+		AS tAS = this.asnIndex.getAS(id);
+		EventQueue local = this.localEvents[id];
+		EventQueue out = this.outEvents[id];
+		this.windowSeq[id] = seqBase;
+
+		while (!local.isEmpty()) {
+			local.poll();
+			long now = local.getLastTime();
+			int type = local.getLastCode() & DiscreteEventEngine.EVENT_MASK;
+			this.eventCount[id]++;
+			this.lastEventTime[id] = now;
+
+			long nextTime = -1;
+			int nextType = 0;
+			if (type == DiscreteEventEngine.DELIVER_EVENT) {
+				tAS.receiveUpdate(local.getLastUpdate());
+				if (!this.processScheduled[id]) {
+					this.processScheduled[id] = true;
+					nextTime = Math.max(now, this.busyUntil[id]);
+					nextType = DiscreteEventEngine.PROCESS_EVENT;
+				}
+			} else if (type == DiscreteEventEngine.PROCESS_EVENT) {
+				this.processScheduled[id] = false;
+				tAS.handleAdvertisement();
+				this.busyUntil[id] = now + this.processDelay;
+				if (tAS.hasWorkToDo()) {
+					this.processScheduled[id] = true;
+					this.schedule(id, this.busyUntil[id], DiscreteEventEngine.PROCESS_EVENT, windowEnd);
+				}
+				if (tAS.hasDirtyPrefixes() && !this.timerArmed[id]) {
+					this.timerArmed[id] = true;
+					nextTime = Math.max(this.busyUntil[id], this.lastFire[id] + this.mraiInterval[id]);
+					nextType = DiscreteEventEngine.MRAI_EVENT;
+				}
+			} else {
+				this.timerArmed[id] = false;
+				this.lastFire[id] = now;
+				tAS.mraiExpire(new Sender(tAS, now, out));
+			}
+
+			if (nextTime >= 0) {
+				this.schedule(id, nextTime, nextType, windowEnd);
+			}
+		}
+	}
+
+	/**
+	 * Schedules an event for an AS from inside its own window processing,
+	 * events inside the window stay local, the rest go back to the main
+	 * queue.
+	 */
+	private void schedule(int id, long time, int type, long windowEnd) {
+		int code = DiscreteEventEngine.buildCode(id, type);
+		if (time < windowEnd) {
+			this.localEvents[id].add(time, this.windowSeq[id]++, code, null);
+		} else {
+			this.outEvents[id].add(time, this.windowSeq[id]++, code, null);
+		}
+	}
+
+	/**
+	 * Fetches the delay of the link between two ASes, the same in both
+	 * directions.
+	 * 
+	 * @param from
+	 *            - one end of the link
+	 * @param to
+	 *            - the other end
+	 * @return - the link delay in ticks
+	 */
+	public long getLinkDelay(AS from, AS to) {
+		if (this.linkJitter == 0) {
+			return this.linkDelay;
+		}
+		long pair = (long) Math.min(from.getDenseID(), to.getDenseID()) << 32
+				| Math.max(from.getDenseID(), to.getDenseID());
+		pair *= 0x9E3779B97F4A7C15L;
+		pair ^= pair >>> 29;
+		return this.linkDelay + Long.remainderUnsigned(pair, this.linkJitter + 1);
+	}
+
+	/**
+	 * Fetches the virtual time of the last event, the convergence time of the
+	 * run.
+	 * 
+	 * @return - convergence time in ticks
+	 */
+	public long getConvergenceTime() {
+		long maxTime = 0;
+		for (long tTime : this.lastEventTime) {
+			maxTime = Math.max(maxTime, tTime);
+		}
+		return maxTime;
+	}
+
+	/**
+	 * Fetches the number of events handled.
+	 * 
+	 * @return - the event count
+	 */
+	public long getEventCount() {
+		long total = 0;
+		for (long tCount : this.eventCount) {
+			total += tCount;
+		}
+		return total;
+	}
+
+	/**
+	 * Fetches the event throughput of the last run.
+	 * 
+	 * @return - events handled per second of wall clock time
+	 */
+	public double getEventsPerSecond() {
+		if (this.wallTime == 0) {
+			return 0.0;
+		}
+		return this.getEventCount() / (this.wallTime / 1000000000.0);
+	}
+
+	/**
+	 * Fetches the number of time windows the run took.
+	 * 
+	 * @return - the window count
+	 */
+	public long getWindowCount() {
+		return this.windowCount;
+	}
+
+	/**
+	 * Shuts down the worker threads, if any.
+	 */
+	public void shutdown() {
+		if (this.pool != null) {
+			this.pool.shutdown();
+		}
+	}
+
+	private static int buildCode(int id, int type) {
+		return (id << DiscreteEventEngine.EVENT_BITS) | type;
+	}
+
+	/**
+	 * Sink for one MRAI firing, turns each update sent into a DELIVER event
+	 * one link delay out.
+	 */
+	private class Sender implements UpdateSink {
+
+		private AS source;
+		private long now;
+		private EventQueue out;
+
+		private Sender(AS source, long now, EventQueue out) {
+			this.source = source;
+			this.now = now;
+			this.out = out;
+		}
+
+		public void deliver(AS target, BGPUpdate update) {
+			long arrival = this.now + DiscreteEventEngine.this.getLinkDelay(this.source, target);
+			this.out.add(arrival, DiscreteEventEngine.this.windowSeq[this.source.getDenseID()]++,
+					DiscreteEventEngine.buildCode(target.getDenseID(), DiscreteEventEngine.DELIVER_EVENT), update);
+		}
+	}
+
+	/**
+	 * Runs the ASes of a window in parallel.
+	 */
+	@SuppressWarnings("serial")
+	private class WindowTask extends RecursiveAction {
+
+		private int[] ids;
+		private int start;
+		private int end;
+		private long windowEnd;
+		private long seqBase;
+
+		private WindowTask(int[] ids, int start, int end, long windowEnd, long seqBase) {
+			this.ids = ids;
+			this.start = start;
+			this.end = end;
+			this.windowEnd = windowEnd;
+			this.seqBase = seqBase;
+		}
+
+		protected void compute() {
+			if (this.end - this.start > DiscreteEventEngine.SPLIT_THRESHOLD) {
+				int mid = (this.start + this.end) >>> 1;
+				invokeAll(new WindowTask(this.ids, this.start, mid, this.windowEnd, this.seqBase), new WindowTask(
+						this.ids, mid, this.end, this.windowEnd, this.seqBase));
+				return;
+			}
+			for (int counter = this.start; counter < this.end; counter++) {
+				DiscreteEventEngine.this.runAS(this.ids[counter], this.windowEnd, this.seqBase);
+			}
+		}
+	}
+}
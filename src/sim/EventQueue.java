@@ -0,0 +1,177 @@
+package sim;
+
+import java.util.Arrays;
+
+import topo.BGPUpdate;
+
+/**
+ * Priority queue of simulation events, ordered by virtual time and then by
+ * sequence number (so events at the same time come out in the order they
+ * were created). An event is a time, an int code (what happens to whom), and
+ * optionally the update being delivered. Stored as a binary heap over
+ * parallel primitive arrays, so there is no per-event object.
+ * 
+ * Not thread safe.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class EventQueue {
+
+	private long[] times;
+	private long[] seqs;
+	private int[] codes;
+	private BGPUpdate[] updates;
+	private int size;
+
+	/*
+	 * The event most recently removed by poll
+	 */
+	private long lastTime;
+	private int lastCode;
+	private BGPUpdate lastUpdate;
+
+	public EventQueue() {
+		this.times = new long[16];
+		this.seqs = new long[16];
+		this.codes = new int[16];
+		this.updates = new BGPUpdate[16];
+		this.size = 0;
+	}
+
+	/**
+	 * Adds an event.
+	 * 
+	 * @param time
+	 *            - virtual time of the event
+	 * @param seq
+	 *            - tie breaker between events at the same time, lower first
+	 * @param code
+	 *            - what the event is
+	 * @param update
+	 *            - the update the event carries, may be null
+	 */
+	public void add(long time, long seq, int code, BGPUpdate update) {
+		if (this.size == this.times.length) {
+			int newSize = this.size * 2;
+			this.times = Arrays.copyOf(this.times, newSize);
+			this.seqs = Arrays.copyOf(this.seqs, newSize);
+			this.codes = Arrays.copyOf(this.codes, newSize);
+			this.updates = Arrays.copyOf(this.updates, newSize);
+		}
+
+		/*
+		 * Sift up
+		 */
+		int pos = this.size;
+		this.size++;
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (!this.before(time, seq, parent)) {
+				break;
+			}
+			this.move(parent, pos);
+			pos = parent;
+		}
+		this.set(pos, time, seq, code, update);
+	}
+
+	/**
+	 * Removes the earliest event, which can then be read with getLastTime,
+	 * getLastCode, and getLastUpdate.
+	 */
+	public void poll() {
+		this.lastTime = this.times[0];
+		this.lastCode = this.codes[0];
+		this.lastUpdate = this.updates[0];
+
+		this.size--;
+		long time = this.times[this.size];
+		long seq = this.seqs[this.size];
+		int code = this.codes[this.size];
+		BGPUpdate update = this.updates[this.size];
+		this.updates[this.size] = null;
+		if (this.size == 0) {
+			return;
+		}
+
+		/*
+		 * Sift the last event down from the root
+		 */
+		int pos = 0;
+		while (true) {
+			int child = pos * 2 + 1;
+			if (child >= this.size) {
+				break;
+			}
+			if (child + 1 < this.size && this.before(this.times[child + 1], this.seqs[child + 1], child)) {
+				child++;
+			}
+			if (!EventQueue.earlier(this.times[child], this.seqs[child], time, seq)) {
+				break;
+			}
+			this.move(child, pos);
+			pos = child;
+		}
+		this.set(pos, time, seq, code, update);
+	}
+
+	/**
+	 * Fetches the time of the earliest event without removing it.
+	 * 
+	 * @return - the time of the next event
+	 */
+	public long peekTime() {
+		return this.times[0];
+	}
+
+	public long getLastTime() {
+		return this.lastTime;
+	}
+
+	public int getLastCode() {
+		return this.lastCode;
+	}
+
+	public BGPUpdate getLastUpdate() {
+		return this.lastUpdate;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Empties the queue.
+	 */
+	public void clear() {
+		Arrays.fill(this.updates, 0, this.size, null);
+		this.size = 0;
+	}
+
+	private boolean before(long time, long seq, int pos) {
+		return EventQueue.earlier(time, seq, this.times[pos], this.seqs[pos]);
+	}
+
+	private static boolean earlier(long time, long seq, long otherTime, long otherSeq) {
+		return time < otherTime || (time == otherTime && seq < otherSeq);
+	}
+
+	private void move(int from, int to) {
+		this.times[to] = this.times[from];
+		this.seqs[to] = this.seqs[from];
+		this.codes[to] = this.codes[from];
+		this.updates[to] = this.updates[from];
+	}
+
+	private void set(int pos, long time, long seq, int code, BGPUpdate update) {
+		this.times[pos] = time;
+		this.seqs[pos] = seq;
+		this.codes[pos] = code;
+		this.updates[pos] = update;
+	}
+}
@@ -5,7 +5,10 @@ import java.util.*;
 
 import decoy.*;
 import topo.AS;
+import topo.ASNIndex;
 import topo.BGPPath;
+import topo.LiveRouteView;
+import topo.RouteView;
 import util.Stats;
 
 /**
@@ -33,6 +36,24 @@ public class FindSim {
 	 */
 	private HashSet<DecoyAS> wardenASes;
 
+	/**
+	 * Dense id mapping for the topology, lets the probe keep its clean/dirty
+	 * sets as bitsets
+	 */
+	private ASNIndex asnIndex;
+
+	/**
+	 * Bitset (by dense id) of the ASes deploying decoy routers, rebuilt at the
+	 * start of every probe since seeders flip the flags between runs
+	 */
+	private BitSet decoyIDs;
+
+	/**
+	 * Where the routes we look at come from, either the live RIBs or what
+	 * was recorded during a streamed (sliced) convergence
+	 */
+	private RouteView routes;
+
 	/*
 	 * Maps indexed by decoy router count that stores the results from a set of
 	 * runs in a list. Basically, data from all runs of a given deployment size
@@ -69,13 +90,21 @@ public class FindSim {
 
 	public FindSim(HashMap<Integer, DecoyAS> activeMap,
 			HashMap<Integer, DecoyAS> purgedMap) {
+		this(activeMap, purgedMap, new LiveRouteView(activeMap));
+	}
+
+	public FindSim(HashMap<Integer, DecoyAS> activeMap,
+			HashMap<Integer, DecoyAS> purgedMap, RouteView routes) {
 		super();
+		this.routes = routes;
 		this.activeMap = activeMap;
 		this.purgedMap = purgedMap;
 		this.dirtyResultMap = new HashMap<Integer, List<Integer>>();
 		this.cleanResultMap = new HashMap<Integer, List<Integer>>();
 		this.falseResultMap = new HashMap<Integer, List<Integer>>();
 		this.wardenASes = new HashSet<DecoyAS>();
+		this.asnIndex = ASNIndex.fromTopo(activeMap);
+		this.decoyIDs = new BitSet(this.asnIndex.size());
 		for (DecoyAS tAS : activeMap.values()) {
 			if (tAS.isWardenAS()) {
 				this.wardenASes.add(tAS);
@@ -191,7 +220,7 @@ public class FindSim {
 		/*
 		 * Setup the ring seeder to look at depth 2 ring
 		 */
-		Rings ringMaker = new Rings(this.activeMap, this.purgedMap);
+		Rings ringMaker = new Rings(this.activeMap, this.purgedMap, this.routes);
 		List<Integer> decoyCounts = new LinkedList<Integer>();
 		ringMaker.setupSeeder(2);
 
@@ -377,7 +406,7 @@ public class FindSim {
 			}
 			// see if any path to a china asn exists (and is clean)
 			for (AS tChina : this.wardenASes) {
-				if (tempAS.getPath(tChina.getASN()) != null) {
+				if (this.routes.hasPath(tempAS, tChina.getASN())) {
 					cleanASNs.add(tASN);
 					break;
 				}
@@ -415,10 +444,20 @@ public class FindSim {
 		 * start building the clean set, we'll first look at all ASNs that lie
 		 * on clean paths
 		 */
-		HashSet<Integer> cleanSet = new HashSet<Integer>();
-		HashSet<Integer> dirtySet = new HashSet<Integer>();
+		BitSet cleanSet = new BitSet(this.asnIndex.size());
+		BitSet dirtySet = new BitSet(this.asnIndex.size());
 		Set<BGPPath> tempPathSet = new HashSet<BGPPath>();
 
+		/*
+		 * Snapshot who is deploying for this probe
+		 */
+		this.decoyIDs.clear();
+		for (int tID = 0; tID < this.asnIndex.size(); tID++) {
+			if (((DecoyAS) this.asnIndex.getAS(tID)).isDecoy()) {
+				this.decoyIDs.set(tID);
+			}
+		}
+
 		System.out.println("Starting probe of size " + stopPoint);
 
 		/*
@@ -430,9 +469,7 @@ public class FindSim {
 		long ipScore = 0;
 		for (int tASN : this.activeMap.keySet()) {
 			tempPathSet.clear();
-			for (DecoyAS tChina : this.wardenASes) {
-				tempPathSet.addAll(tChina.getAllPathsTo(tASN));
-			}
+			tempPathSet.addAll(this.routes.getWardenPaths(tASN));
 			if (tempPathSet.size() == 0) {
 				noDest++;
 			}
@@ -441,17 +478,15 @@ public class FindSim {
 					if (FindSim.SCORE_BY_IP) {
 						ipScore += this.activeMap.get(tASN).getIPCount();
 					}
-					cleanSet.addAll(tempPath.getPath());
+					this.markPathClean(tempPath, cleanSet);
 				}
 			}
 		}
 		System.out.println("No dest to transits: " + noDest);
 		for (int tASN : this.purgedMap.keySet()) {
 			tempPathSet.clear();
-			for (DecoyAS tChina : this.wardenASes) {
-				for (AS tHook : this.purgedMap.get(tASN).getProviders()) {
-					tempPathSet.addAll(tChina.getAllPathsTo(tHook.getASN()));
-				}
+			for (AS tHook : this.purgedMap.get(tASN).getProviders()) {
+				tempPathSet.addAll(this.routes.getWardenPaths(tHook.getASN()));
 			}
 
 			for (BGPPath tempPath : tempPathSet) {
@@ -459,8 +494,8 @@ public class FindSim {
 					if (FindSim.SCORE_BY_IP) {
 						ipScore += this.purgedMap.get(tASN).getIPCount();
 					}
-					cleanSet.addAll(tempPath.getPath());
-					cleanSet.add(tASN);
+					this.markPathClean(tempPath, cleanSet);
+					cleanSet.set(this.asnIndex.getID(tASN));
 				}
 			}
 		}
@@ -472,7 +507,7 @@ public class FindSim {
 			/*
 			 * If we know you're clean, skip over you
 			 */
-			if (cleanSet.contains(tASN)) {
+			if (cleanSet.get(this.asnIndex.getID(tASN))) {
 				continue;
 			}
 
@@ -481,14 +516,12 @@ public class FindSim {
 			/*
 			 * Grab all paths to the possibly tainted destination
 			 */
-			for (DecoyAS tChina : this.wardenASes) {
-				tempPathSet.addAll(tChina.getAllPathsTo(tASN));
-			}
+			tempPathSet.addAll(this.routes.getWardenPaths(tASN));
 
 			for (BGPPath tPath : tempPathSet) {
 				boolean only = true;
-				for (int tHop : tPath.getPath()) {
-					if ((tHop != tASN) && (!cleanSet.contains(tHop))) {
+				for (int tHop : tPath) {
+					if ((tHop != tASN) && (!cleanSet.get(this.asnIndex.getID(tHop)))) {
 						only = false;
 						break;
 					}
@@ -499,7 +532,7 @@ public class FindSim {
 				 * be dirty
 				 */
 				if (only) {
-					dirtySet.add(tASN);
+					dirtySet.set(this.asnIndex.getID(tASN));
 					break;
 				}
 			}
@@ -510,7 +543,7 @@ public class FindSim {
 			/*
 			 * If we know you're clean, skip over you
 			 */
-			if (cleanSet.contains(tASN)) {
+			if (cleanSet.get(this.asnIndex.getID(tASN))) {
 				continue;
 			}
 
@@ -518,16 +551,14 @@ public class FindSim {
 			/*
 			 * Grab all paths to the possibly tainted destination
 			 */
-			for (DecoyAS tChina : this.wardenASes) {
-				for (AS tHook : this.purgedMap.get(tASN).getProviders()) {
-					tempPathSet.addAll(tChina.getAllPathsTo(tHook.getASN()));
-				}
+			for (AS tHook : this.purgedMap.get(tASN).getProviders()) {
+				tempPathSet.addAll(this.routes.getWardenPaths(tHook.getASN()));
 			}
 
 			for (BGPPath tPath : tempPathSet) {
 				boolean only = true;
-				for (int tHop : tPath.getPath()) {
-					if ((tHop != tASN) && (!cleanSet.contains(tHop))) {
+				for (int tHop : tPath) {
+					if ((tHop != tASN) && (!cleanSet.get(this.asnIndex.getID(tHop)))) {
 						only = false;
 						break;
 					}
@@ -538,25 +569,48 @@ public class FindSim {
 				 * be dirty
 				 */
 				if (only) {
-					dirtySet.add(tASN);
+					dirtySet.set(this.asnIndex.getID(tASN));
 					break;
 				}
 			}
 		}
 
-		System.out.println("dirty size: " + dirtySet.size() + " clean size: "
-				+ cleanSet.size());
+		System.out.println("dirty size: " + dirtySet.cardinality() + " clean size: "
+				+ cleanSet.cardinality());
 		/*
 		 * base size is the number of ASNs we finger, we then remove the ground
 		 * truth, leaving any false positives in dirtySet
 		 */
-		int baseSize = dirtySet.size();
-		dirtySet.removeAll(groundTruth);
-		this.dirtyResultMap.get(stopPoint).add(baseSize - dirtySet.size());
-		this.cleanResultMap.get(stopPoint).add(cleanSet.size());
-		this.falseResultMap.get(stopPoint).add(dirtySet.size());
+		int baseSize = dirtySet.cardinality();
+		for (int tASN : groundTruth) {
+			int tID = this.asnIndex.getID(tASN);
+			if (tID != ASNIndex.NO_ID) {
+				dirtySet.clear(tID);
+			}
+		}
+		this.dirtyResultMap.get(stopPoint).add(baseSize - dirtySet.cardinality());
+		this.cleanResultMap.get(stopPoint).add(cleanSet.cardinality());
+		this.falseResultMap.get(stopPoint).add(dirtySet.cardinality());
+
+		Set<Integer> cleanASNs = new HashSet<Integer>();
+		for (int tID = cleanSet.nextSetBit(0); tID >= 0; tID = cleanSet.nextSetBit(tID + 1)) {
+			cleanASNs.add(this.asnIndex.getASN(tID));
+		}
+		return cleanASNs;
+	}
 
-		return cleanSet;
+	/**
+	 * Marks every AS on a path as clean.
+	 * 
+	 * @param path
+	 *            - a path found to be clean
+	 * @param cleanSet
+	 *            - the bitset (by dense id) of clean ASes
+	 */
+	private void markPathClean(BGPPath path, BitSet cleanSet) {
+		for (int tHop : path) {
+			cleanSet.set(this.asnIndex.getID(tHop));
+		}
 	}
 
 	/**
@@ -571,14 +625,15 @@ public class FindSim {
 	 *         false otherwise
 	 */
 	private boolean pathIsDirty(BGPPath path, int dest) {
-		for (int tHop : path.getPath()) {
-			if (this.activeMap.get(tHop).isDecoy()) {
+		for (int tHop : path) {
+			if (this.decoyIDs.get(this.asnIndex.getID(tHop))) {
 				return true;
 			}
 		}
 
-		if (this.purgedMap.containsKey(dest)) {
-			if (this.purgedMap.get(dest).isDecoy()) {
+		int destID = this.asnIndex.getID(dest);
+		if (!this.asnIndex.isRouted(destID)) {
+			if (this.decoyIDs.get(destID)) {
 				return true;
 			}
 		}
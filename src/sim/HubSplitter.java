@@ -0,0 +1,174 @@
+package sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import topo.AS;
+import topo.BGPUpdate;
+import topo.UpdateSink;
+
+/**
+ * Splits the work of hub ASes (tier 1s and other huge transit networks)
+ * across threads. A hub gets a large share of all updates, and when one
+ * thread handles it alone every other thread ends up waiting on it at the
+ * barrier. RIB state is kept per destination, so a hub's batch of updates is
+ * bucketed by destination range and the ranges are handled in parallel, and
+ * likewise its MRAI expiration is sent a destination range at a time. The
+ * ranges split the topology's RIB range, so slices and shards (which only
+ * hold some destinations) are split as evenly as full runs.
+ * 
+ * An AS is a hub if it has at least SimConfig.HUB_DEGREE neighbors or at
+ * least SimConfig.HUB_QUEUE pending messages.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class HubSplitter {
+
+	private ForkJoinPool pool;
+	private int hubDegree;
+	private int hubQueue;
+	private int maxChunks;
+
+	/**
+	 * Fewest updates (or dirty destinations) worth handing a thread of their
+	 * own
+	 */
+	private static final int MIN_CHUNK = 256;
+
+	/**
+	 * Builds a splitter.
+	 * 
+	 * @param pool
+	 *            - pool the range tasks run in, used if the caller is not
+	 *            already a task of some ForkJoinPool
+	 * @param hubDegree
+	 *            - degree at which an AS is a hub
+	 * @param hubQueue
+	 *            - pending message count at which an AS is a hub
+	 * @param maxChunks
+	 *            - the most ranges a hub's work is split into
+	 */
+	public HubSplitter(ForkJoinPool pool, int hubDegree, int hubQueue, int maxChunks) {
+		this.pool = pool;
+		this.hubDegree = hubDegree;
+		this.hubQueue = hubQueue;
+		this.maxChunks = Math.max(1, maxChunks);
+	}
+
+	/**
+	 * Predicate to test if an AS should have its work split.
+	 * 
+	 * @param tAS
+	 *            - the AS
+	 * @return - true if the AS is a hub
+	 */
+	public boolean isHub(AS tAS) {
+		return tAS.getDegree() >= this.hubDegree || tAS.getPendingMessageCount() >= this.hubQueue;
+	}
+
+	/**
+	 * Handles a batch of a hub's messages, in parallel by destination range.
+	 * Only the thread that owns the hub may call this.
+	 * 
+	 * @param hub
+	 *            - the AS
+	 * @param maxBatch
+	 *            - the most messages to handle, 0 or less drains the queue
+	 */
+	@SuppressWarnings("serial")
+	public void handle(final AS hub, int maxBatch) {
+		List<BGPUpdate> updates = hub.takeUpdates(maxBatch);
+		int ribStart = hub.getASNIndex().getRIBStart();
+		int ribSize = hub.getASNIndex().getRIBSize();
+		int chunks = Math.min(this.maxChunks, updates.size() / HubSplitter.MIN_CHUNK);
+		if (chunks <= 1) {
+			hub.markDirty(hub.applyUpdates(updates, ribStart, ribStart + ribSize));
+			return;
+		}
+
+		final List<List<BGPUpdate>> buckets = new ArrayList<List<BGPUpdate>>();
+		for (int counter = 0; counter < chunks; counter++) {
+			buckets.add(new ArrayList<BGPUpdate>());
+		}
+		for (BGPUpdate tUpdate : updates) {
+			buckets.get(HubSplitter.rangeOf(tUpdate.getDestID() - ribStart, chunks, ribSize)).add(tUpdate);
+		}
+
+		final BitSet[] changed = new BitSet[chunks];
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int counter = 0; counter < chunks; counter++) {
+			final int chunk = counter;
+			final int start = ribStart + HubSplitter.rangeStart(chunk, chunks, ribSize);
+			final int end = ribStart + HubSplitter.rangeStart(chunk + 1, chunks, ribSize);
+			tasks.add(new RecursiveAction() {
+				protected void compute() {
+					changed[chunk] = hub.applyUpdates(buckets.get(chunk), start, end);
+				}
+			});
+		}
+		this.runAll(tasks);
+
+		for (BitSet tChanged : changed) {
+			hub.markDirty(tChanged);
+		}
+	}
+
+	/**
+	 * Fires a hub's MRAI, sending its dirty destinations in parallel by
+	 * destination range. Only the thread that owns the hub may call this.
+	 * 
+	 * @param hub
+	 *            - the AS
+	 * @param sink
+	 *            - where updates are delivered, must be thread safe
+	 */
+	@SuppressWarnings("serial")
+	public void expire(final AS hub, final UpdateSink sink) {
+		int ribStart = hub.getASNIndex().getRIBStart();
+		int ribSize = hub.getASNIndex().getRIBSize();
+		int chunks = Math.min(this.maxChunks, hub.getDirtyCount() / HubSplitter.MIN_CHUNK);
+		if (chunks <= 1) {
+			hub.mraiExpire(sink);
+			return;
+		}
+
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int counter = 0; counter < chunks; counter++) {
+			final int start = ribStart + HubSplitter.rangeStart(counter, chunks, ribSize);
+			final int end = ribStart + HubSplitter.rangeStart(counter + 1, chunks, ribSize);
+			tasks.add(new RecursiveAction() {
+				protected void compute() {
+					hub.mraiExpire(sink, start, end);
+				}
+			});
+		}
+		this.runAll(tasks);
+		hub.clearDirty();
+	}
+
+	@SuppressWarnings("serial")
+	private void runAll(final List<RecursiveAction> tasks) {
+		if (ForkJoinTask.inForkJoinPool()) {
+			ForkJoinTask.invokeAll(tasks);
+		} else {
+			this.pool.invoke(new RecursiveAction() {
+				protected void compute() {
+					ForkJoinTask.invokeAll(tasks);
+				}
+			});
+		}
+	}
+
+	/**
+	 * First destination in a range, as an offset into the RIB range, rounded
+	 * up so that it agrees with rangeOf
+	 */
+	private static int rangeStart(int chunk, int chunks, int destCount) {
+		return (int) (((long) chunk * destCount + chunks - 1) / chunks);
+	}
+
+	private static int rangeOf(int destID, int chunks, int destCount) {
+		return (int) (((long) destID * chunks) / destCount);
+	}
+}
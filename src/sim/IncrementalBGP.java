@@ -0,0 +1,201 @@
+package sim;
+
+import java.util.*;
+
+import decoy.DecoyAS;
+import topo.AS;
+import topo.ASNIndex;
+import topo.BGPPath;
+
+/**
+ * Applies topology and policy changes to an already converged BGP map and
+ * brings routing back to convergence from the current RIBs, instead of
+ * throwing them away and converging from scratch. Each change only touches
+ * the ASes at its ends: they refile their candidate routes under the new
+ * relationships (dropping routes from lost neighbors), and the ends of a new
+ * or changed link tell each other what they should now hear for every
+ * destination. Only destinations where something actually changed get
+ * updates queued, so reconvergence only does work for those and the parts of
+ * the topology they reach.
+ * 
+ * Changes can be batched, nothing is sent until reconverge is called.
+ * Relationship codes are from the point of view of the first AS, the same as
+ * AS.addRelation (PROIVDER_CODE means the first AS is the provider of the
+ * second).
+ * 
+ * @author pendgaft
+ * 
+ */
+public class IncrementalBGP {
+
+	private HashMap<Integer, DecoyAS> usefulASMap;
+	private ASNIndex asnIndex;
+
+	/**
+	 * Destinations (by dense id) with updates queued since the last
+	 * reconvergence
+	 */
+	private BitSet affectedDests;
+
+	/**
+	 * Builds the incremental interface for a converged map.
+	 * 
+	 * @param usefulASMap
+	 *            - the routed ASes, already converged
+	 */
+	public IncrementalBGP(HashMap<Integer, DecoyAS> usefulASMap) {
+		this.usefulASMap = usefulASMap;
+		this.asnIndex = ASNIndex.fromTopo(usefulASMap);
+		this.affectedDests = new BitSet();
+	}
+
+	/**
+	 * Adds a link between two routed ASes.
+	 * 
+	 * @param lhsASN
+	 *            - the ASN of one end
+	 * @param rhsASN
+	 *            - the ASN of the other end
+	 * @param lhsRelationToRhs
+	 *            - the relationship code, as in AS.addRelation
+	 * @return - the number of destinations that got updates from the change
+	 */
+	public int addLink(int lhsASN, int rhsASN, int lhsRelationToRhs) {
+		AS lhsAS = this.lookup(lhsASN);
+		AS rhsAS = this.lookup(rhsASN);
+		lhsAS.addRelation(rhsAS, lhsRelationToRhs);
+		return this.relinked(lhsAS, rhsAS);
+	}
+
+	/**
+	 * Removes the link between two routed ASes, routes learned over it are
+	 * treated as withdrawn.
+	 * 
+	 * @param lhsASN
+	 *            - the ASN of one end
+	 * @param rhsASN
+	 *            - the ASN of the other end
+	 * @return - the number of destinations that got updates from the change
+	 */
+	public int removeLink(int lhsASN, int rhsASN) {
+		AS lhsAS = this.lookup(lhsASN);
+		AS rhsAS = this.lookup(rhsASN);
+		lhsAS.removeRelation(rhsAS);
+
+		BitSet changed = lhsAS.refreshRelations();
+		changed.or(rhsAS.refreshRelations());
+		this.affectedDests.or(changed);
+		return changed.cardinality();
+	}
+
+	/**
+	 * Changes the business relationship on an existing link.
+	 * 
+	 * @param lhsASN
+	 *            - the ASN of one end
+	 * @param rhsASN
+	 *            - the ASN of the other end
+	 * @param lhsRelationToRhs
+	 *            - the new relationship code, as in AS.addRelation
+	 * @return - the number of destinations that got updates from the change
+	 */
+	public int changeRelationship(int lhsASN, int rhsASN, int lhsRelationToRhs) {
+		AS lhsAS = this.lookup(lhsASN);
+		AS rhsAS = this.lookup(rhsASN);
+		if (!lhsAS.getCustomers().contains(rhsAS) && !lhsAS.getPeers().contains(rhsAS)
+				&& !lhsAS.getProviders().contains(rhsAS)) {
+			throw new RuntimeException("AS " + lhsASN + " and AS " + rhsASN + " are not neighbors");
+		}
+		lhsAS.removeRelation(rhsAS);
+		lhsAS.addRelation(rhsAS, lhsRelationToRhs);
+		return this.relinked(lhsAS, rhsAS);
+	}
+
+	/**
+	 * Has a routed AS start advertising its own network.
+	 * 
+	 * @param asn
+	 *            - the ASN of the AS
+	 * @return - the number of destinations that got updates from the change
+	 */
+	public int startOriginating(int asn) {
+		AS originAS = this.lookup(asn);
+		if (!this.asnIndex.isInRIBRange(originAS.getDenseID())) {
+			return 0;
+		}
+		originAS.advPath(BGPPath.buildOriginPath(asn));
+		this.affectedDests.set(originAS.getDenseID());
+		return 1;
+	}
+
+	/**
+	 * Has a routed AS stop advertising its own network, everyone's route to
+	 * it is withdrawn.
+	 * 
+	 * @param asn
+	 *            - the ASN of the AS
+	 * @return - the number of destinations that got updates from the change
+	 */
+	public int stopOriginating(int asn) {
+		AS originAS = this.lookup(asn);
+		if (!this.asnIndex.isInRIBRange(originAS.getDenseID())) {
+			return 0;
+		}
+		originAS.withdrawPath(originAS, asn);
+		this.affectedDests.set(originAS.getDenseID());
+		return 1;
+	}
+
+	/**
+	 * Runs BGP back to convergence after the changes made since the last call.
+	 * 
+	 * @return - the number of destinations that were affected by the changes
+	 */
+	public int reconverge() {
+		/*
+		 * Routes that changed when relationships were refiled are only marked
+		 * dirty, send them so every engine starts from queued updates
+		 */
+		for (AS tAS : this.usefulASMap.values()) {
+			if (tAS.hasDirtyPrefixes()) {
+				tAS.mraiExpire(AS.DIRECT_SINK);
+			}
+		}
+
+		int affectedCount = this.affectedDests.cardinality();
+		System.out.println("Reconverging " + affectedCount + " affected destinations.");
+		BGPMaster.reconverge(this.usefulASMap);
+		this.affectedDests.clear();
+		return affectedCount;
+	}
+
+	/**
+	 * After the relationship between two ASes was added or changed, refiles
+	 * their routes and has each send the other what it should now hear for
+	 * every destination.
+	 */
+	private int relinked(AS lhsAS, AS rhsAS) {
+		BitSet changed = lhsAS.refreshRelations();
+		changed.or(rhsAS.refreshRelations());
+
+		int ribEnd = this.asnIndex.getRIBStart() + this.asnIndex.getRIBSize();
+		for (int tDestID = this.asnIndex.getRIBStart(); tDestID < ribEnd; tDestID++) {
+			if (lhsAS.sendRouteTo(rhsAS, tDestID, AS.DIRECT_SINK)) {
+				changed.set(tDestID);
+			}
+			if (rhsAS.sendRouteTo(lhsAS, tDestID, AS.DIRECT_SINK)) {
+				changed.set(tDestID);
+			}
+		}
+		this.affectedDests.or(changed);
+		return changed.cardinality();
+	}
+
+	private AS lookup(int asn) {
+		int id = this.asnIndex.getID(asn);
+		if (id == ASNIndex.NO_ID || !this.asnIndex.isRouted(id)) {
+			throw new RuntimeException("AS " + asn + " is not part of the routed topology");
+		}
+		return this.asnIndex.getAS(id);
+	}
+}
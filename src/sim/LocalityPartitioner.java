@@ -0,0 +1,294 @@
+package sim;
+
+import java.util.*;
+
+import topo.AS;
+import topo.ASNIndex;
+
+/**
+ * Splits the routing topology into partitions of neighboring ASes, so that
+ * most updates an AS sends go to ASes handled by the same worker. This is a
+ * greedy graph growing partitioner: each partition starts at the largest
+ * unassigned AS (a transit hub, so partitions tend to be customer cones) and
+ * grows by repeatedly taking the frontier AS with the most edges into the
+ * partition, until the partition holds its share of the load. A few boundary
+ * refinement passes then move ASes to the partition most of their neighbors
+ * are in, as long as that doesn't unbalance things.
+ * 
+ * Load is measured as degree + 1 per AS, since the number of updates an AS
+ * handles tracks the number of neighbors it has.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class LocalityPartitioner {
+
+	private static final int REFINE_PASSES = 4;
+
+	/**
+	 * How far over (or under) its share of the load a partition may go during
+	 * refinement
+	 */
+	private static final double IMBALANCE = 1.05;
+
+	private ASNIndex asnIndex;
+	private List<AS> asList;
+	private int partCount;
+	private int[] partOf;
+	private long[] partLoad;
+	private long targetLoad;
+
+	private LocalityPartitioner(ASNIndex asnIndex, Collection<? extends AS> asSet, int partCount) {
+		this.asnIndex = asnIndex;
+		this.asList = new ArrayList<AS>(asSet);
+		Collections.sort(this.asList, new Comparator<AS>() {
+			public int compare(AS lhs, AS rhs) {
+				return lhs.getDenseID() - rhs.getDenseID();
+			}
+		});
+		this.partCount = partCount;
+		this.partOf = new int[asnIndex.size()];
+		Arrays.fill(this.partOf, -1);
+		this.partLoad = new long[partCount];
+
+		long totalLoad = 0;
+		for (AS tAS : this.asList) {
+			totalLoad += LocalityPartitioner.load(tAS);
+		}
+		this.targetLoad = (totalLoad + partCount - 1) / partCount;
+	}
+
+	/**
+	 * Partitions the given ASes.
+	 * 
+	 * @param asnIndex
+	 *            - the index of the topology
+	 * @param asSet
+	 *            - the ASes taking part in routing
+	 * @param partCount
+	 *            - the number of partitions
+	 * @return - the partition of each AS, indexed by dense id, ASes not in
+	 *         asSet are spread round robin
+	 */
+	public static int[] partition(ASNIndex asnIndex, Collection<? extends AS> asSet, int partCount) {
+		LocalityPartitioner self = new LocalityPartitioner(asnIndex, asSet, partCount);
+		self.grow();
+		for (int counter = 0; counter < LocalityPartitioner.REFINE_PASSES; counter++) {
+			if (self.refine() == 0) {
+				break;
+			}
+		}
+
+		for (int counter = 0; counter < self.partOf.length; counter++) {
+			if (self.partOf[counter] == -1) {
+				self.partOf[counter] = counter % partCount;
+			}
+		}
+		return self.partOf;
+	}
+
+	/**
+	 * Orders ASes so that each partition's ASes are contiguous, and within a
+	 * partition ASes are in breadth first order from its largest AS, so
+	 * neighbors end up near each other. Used to lay out work blocks.
+	 * 
+	 * @param asSet
+	 *            - the ASes to order
+	 * @param partOf
+	 *            - the partition of each AS, indexed by dense id
+	 * @return - the ASes in locality order
+	 */
+	public static List<AS> localityOrder(Collection<? extends AS> asSet, int[] partOf) {
+		List<AS> byDegree = new ArrayList<AS>(asSet);
+		Collections.sort(byDegree, LocalityPartitioner.LARGEST_FIRST);
+		Set<AS> members = new HashSet<AS>(asSet);
+
+		int partCount = 0;
+		for (AS tAS : byDegree) {
+			partCount = Math.max(partCount, partOf[tAS.getDenseID()] + 1);
+		}
+
+		List<AS> order = new ArrayList<AS>(asSet.size());
+		Set<AS> placed = new HashSet<AS>();
+		for (int part = 0; part < partCount; part++) {
+			for (AS tSeed : byDegree) {
+				if (partOf[tSeed.getDenseID()] != part || placed.contains(tSeed)) {
+					continue;
+				}
+				Queue<AS> frontier = new LinkedList<AS>();
+				frontier.add(tSeed);
+				placed.add(tSeed);
+				while (!frontier.isEmpty()) {
+					AS tAS = frontier.poll();
+					order.add(tAS);
+					for (AS tNeighbor : LocalityPartitioner.neighbors(tAS)) {
+						if (partOf[tNeighbor.getDenseID()] == part && members.contains(tNeighbor)
+								&& placed.add(tNeighbor)) {
+							frontier.add(tNeighbor);
+						}
+					}
+				}
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Computes the fraction of AS to AS edges that cross partitions.
+	 * 
+	 * @param asSet
+	 *            - the ASes taking part in routing
+	 * @param partOf
+	 *            - the partition of each AS, indexed by dense id
+	 * @return - cut edges over all edges
+	 */
+	public static double edgeCutRatio(Collection<? extends AS> asSet, int[] partOf) {
+		long edges = 0;
+		long cut = 0;
+		for (AS tAS : asSet) {
+			for (AS tNeighbor : LocalityPartitioner.neighbors(tAS)) {
+				edges++;
+				if (partOf[tAS.getDenseID()] != partOf[tNeighbor.getDenseID()]) {
+					cut++;
+				}
+			}
+		}
+		if (edges == 0) {
+			return 0.0;
+		}
+		return (double) cut / (double) edges;
+	}
+
+	/**
+	 * Greedy graph growing, one partition at a time.
+	 */
+	private void grow() {
+		List<AS> byDegree = new ArrayList<AS>(this.asList);
+		Collections.sort(byDegree, LocalityPartitioner.LARGEST_FIRST);
+		int seedPos = 0;
+
+		/*
+		 * Edges from each AS into the partition currently being grown, reset
+		 * as we go
+		 */
+		int[] gain = new int[this.asnIndex.size()];
+		for (int part = 0; part < this.partCount; part++) {
+			boolean lastPart = (part == this.partCount - 1);
+			PriorityQueue<long[]> frontier = new PriorityQueue<long[]>(64, new Comparator<long[]>() {
+				public int compare(long[] lhs, long[] rhs) {
+					if (lhs[0] != rhs[0]) {
+						return lhs[0] > rhs[0] ? -1 : 1;
+					}
+					return Long.compare(lhs[1], rhs[1]);
+				}
+			});
+			List<AS> touched = new ArrayList<AS>();
+
+			while (lastPart || this.partLoad[part] < this.targetLoad) {
+				AS next = null;
+				while (!frontier.isEmpty()) {
+					long[] entry = frontier.poll();
+					AS tAS = this.asnIndex.getAS((int) entry[1]);
+					if (this.partOf[tAS.getDenseID()] == -1 && gain[tAS.getDenseID()] == entry[0]) {
+						next = tAS;
+						break;
+					}
+				}
+
+				/*
+				 * Frontier ran dry (or this is a fresh partition), start from
+				 * the next largest unassigned AS
+				 */
+				if (next == null) {
+					while (seedPos < byDegree.size() && this.partOf[byDegree.get(seedPos).getDenseID()] != -1) {
+						seedPos++;
+					}
+					if (seedPos == byDegree.size()) {
+						break;
+					}
+					next = byDegree.get(seedPos);
+				}
+
+				this.assign(next, part);
+				for (AS tNeighbor : LocalityPartitioner.neighbors(next)) {
+					int neighborID = tNeighbor.getDenseID();
+					if (this.partOf[neighborID] == -1 && neighborID < gain.length) {
+						if (gain[neighborID] == 0) {
+							touched.add(tNeighbor);
+						}
+						gain[neighborID]++;
+						frontier.add(new long[] { gain[neighborID], neighborID });
+					}
+				}
+			}
+
+			for (AS tAS : touched) {
+				gain[tAS.getDenseID()] = 0;
+			}
+		}
+	}
+
+	/**
+	 * One boundary refinement pass.
+	 * 
+	 * @return - the number of ASes moved
+	 */
+	private int refine() {
+		int moved = 0;
+		int[] counts = new int[this.partCount];
+		long maxLoad = (long) (this.targetLoad * LocalityPartitioner.IMBALANCE);
+		long minLoad = (long) (this.targetLoad / LocalityPartitioner.IMBALANCE);
+		for (AS tAS : this.asList) {
+			Arrays.fill(counts, 0);
+			for (AS tNeighbor : LocalityPartitioner.neighbors(tAS)) {
+				if (this.partOf[tNeighbor.getDenseID()] != -1) {
+					counts[this.partOf[tNeighbor.getDenseID()]]++;
+				}
+			}
+
+			int current = this.partOf[tAS.getDenseID()];
+			if (this.partLoad[current] - LocalityPartitioner.load(tAS) < minLoad) {
+				continue;
+			}
+			int best = current;
+			for (int part = 0; part < this.partCount; part++) {
+				if (counts[part] > counts[best]
+						&& this.partLoad[part] + LocalityPartitioner.load(tAS) <= maxLoad) {
+					best = part;
+				}
+			}
+			if (best != current) {
+				this.partLoad[current] -= LocalityPartitioner.load(tAS);
+				this.assign(tAS, best);
+				moved++;
+			}
+		}
+		return moved;
+	}
+
+	private void assign(AS tAS, int part) {
+		this.partOf[tAS.getDenseID()] = part;
+		this.partLoad[part] += LocalityPartitioner.load(tAS);
+	}
+
+	private static long load(AS tAS) {
+		return tAS.getDegree() + 1;
+	}
+
+	private static List<AS> neighbors(AS tAS) {
+		List<AS> retList = new ArrayList<AS>(tAS.getDegree());
+		retList.addAll(tAS.getProviders());
+		retList.addAll(tAS.getPeers());
+		retList.addAll(tAS.getCustomers());
+		return retList;
+	}
+
+	private static final Comparator<AS> LARGEST_FIRST = new Comparator<AS>() {
+		public int compare(AS lhs, AS rhs) {
+			if (lhs.getDegree() != rhs.getDegree()) {
+				return rhs.getDegree() - lhs.getDegree();
+			}
+			return lhs.getDenseID() - rhs.getDenseID();
+		}
+	};
+}
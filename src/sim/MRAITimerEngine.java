@@ -0,0 +1,219 @@
+package sim;
+
+import java.util.*;
+
+import topo.AS;
+import topo.ASNIndex;
+import topo.BGPUpdate;
+import topo.UpdateSink;
+
+/**
+ * BGP engine with real MRAI timers in virtual time instead of a global flush.
+ * Each AS has its own MRAI timer: when its best paths change it sends as soon
+ * as its timer allows (at most once per MRAI interval), updates take one link
+ * delay to arrive, and an AS handles its mailbox as soon as something lands
+ * in it. All of these events are kept in a TimingWheel, so the cost of a run
+ * scales with the number of events and armed timers, not with the size of
+ * the topology times the number of rounds. Updates in flight are held by the
+ * engine and only put in the receiver's mailbox once their arrival time
+ * comes, so a handle event never sees updates that haven't arrived yet.
+ * 
+ * As in real routers, the MRAI of each AS is jittered (to between 75% and 100%
+ * of the configured interval, fixed per AS so runs are repeatable), which
+ * keeps ASes from firing in lock step.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class MRAITimerEngine implements UpdateSink {
+
+	private TimingWheel wheel;
+	private ASNIndex asnIndex;
+	private long linkDelay;
+
+	/*
+	 * Per AS state, by dense id
+	 */
+	private long[] mraiInterval;
+	private long[] lastFire;
+	private boolean[] timerArmed;
+	private long[] handleTime;
+
+	/**
+	 * Updates sent but not yet arrived, every update takes the same link
+	 * delay so they arrive in the order they were sent
+	 */
+	private ArrayDeque<Delivery> inFlight;
+
+	private long handleEvents;
+	private long timerFires;
+
+	/*
+	 * Event types, stored in the low bit of wheel payloads
+	 */
+	private static final int HANDLE_EVENT = 0;
+	private static final int MRAI_EVENT = 1;
+
+	/**
+	 * Builds the engine.
+	 * 
+	 * @param asnIndex
+	 *            - the index of the topology being run
+	 * @param mrai
+	 *            - the MRAI interval in ticks
+	 * @param linkDelay
+	 *            - the time an update takes to reach a neighbor in ticks, at
+	 *            least 1
+	 */
+	public MRAITimerEngine(ASNIndex asnIndex, long mrai, long linkDelay) {
+		this.wheel = new TimingWheel();
+		this.asnIndex = asnIndex;
+		this.linkDelay = Math.max(1, linkDelay);
+
+		int asCount = asnIndex.size();
+		this.mraiInterval = new long[asCount];
+		this.lastFire = new long[asCount];
+		this.timerArmed = new boolean[asCount];
+		this.handleTime = new long[asCount];
+		Arrays.fill(this.handleTime, -1);
+		this.inFlight = new ArrayDeque<Delivery>();
+		for (int counter = 0; counter < asCount; counter++) {
+			Random jitter = new Random(asnIndex.getASN(counter));
+			this.mraiInterval[counter] = (long) (mrai * (0.75 + 0.25 * jitter.nextDouble()));
+			this.lastFire[counter] = -this.mraiInterval[counter];
+		}
+
+		this.handleEvents = 0;
+		this.timerFires = 0;
+	}
+
+	/**
+	 * Runs BGP to convergence. The ASes must already have their initial
+	 * advertisements queued.
+	 * 
+	 * @param asMap
+	 *            - the ASes taking part in routing
+	 */
+	public void run(Map<Integer, ? extends AS> asMap) {
+		for (AS tAS : asMap.values()) {
+			if (tAS.hasWorkToDo()) {
+				this.scheduleHandle(tAS.getDenseID(), 0);
+			}
+			if (tAS.hasDirtyPrefixes()) {
+				this.armTimer(tAS.getDenseID(), 0);
+			}
+		}
+
+		int[] due;
+		List<AS> firing = new ArrayList<AS>();
+		while ((due = this.wheel.advance()) != null) {
+			long now = this.wheel.getTime();
+
+			/*
+			 * Land the updates arriving now, then handle mailboxes before
+			 * firing timers due at the same time
+			 */
+			while (!this.inFlight.isEmpty() && this.inFlight.peek().time <= now) {
+				Delivery arrived = this.inFlight.poll();
+				arrived.target.receiveUpdate(arrived.update);
+			}
+			firing.clear();
+			for (int tEvent : due) {
+				int id = tEvent >>> 1;
+				if ((tEvent & 1) == MRAITimerEngine.MRAI_EVENT) {
+					firing.add(this.asnIndex.getAS(id));
+					continue;
+				}
+
+				AS tAS = this.asnIndex.getAS(id);
+				this.handleEvents++;
+				tAS.handleAdvertisements(0);
+				if (tAS.hasDirtyPrefixes()) {
+					this.armTimer(id, now);
+				}
+			}
+
+			for (AS tAS : firing) {
+				int id = tAS.getDenseID();
+				this.timerArmed[id] = false;
+				this.lastFire[id] = now;
+				this.timerFires++;
+				tAS.mraiExpire(this);
+			}
+		}
+	}
+
+	public void deliver(AS target, BGPUpdate update) {
+		long arrival = this.wheel.getTime() + this.linkDelay;
+		this.inFlight.add(new Delivery(arrival, target, update));
+		this.scheduleHandle(target.getDenseID(), arrival);
+	}
+
+	/**
+	 * Fetches the virtual time at which the last event happened, the
+	 * convergence time of the run.
+	 * 
+	 * @return - convergence time in ticks
+	 */
+	public long getConvergenceTime() {
+		return this.wheel.getTime();
+	}
+
+	/**
+	 * Fetches the number of times an AS handled its mailbox.
+	 * 
+	 * @return - the number of handle events
+	 */
+	public long getHandleEventCount() {
+		return this.handleEvents;
+	}
+
+	/**
+	 * Fetches the number of MRAI timer expirations.
+	 * 
+	 * @return - the number of timer fires
+	 */
+	public long getTimerFireCount() {
+		return this.timerFires;
+	}
+
+	/**
+	 * Has an AS handle its mailbox at the given time, once per arrival time
+	 * (handle events are scheduled in time order, so checking the latest one
+	 * is enough).
+	 */
+	private void scheduleHandle(int id, long time) {
+		if (this.handleTime[id] != time) {
+			this.handleTime[id] = time;
+			this.wheel.schedule(time, (id << 1) | MRAITimerEngine.HANDLE_EVENT);
+		}
+	}
+
+	/**
+	 * Arms the MRAI timer of an AS with dirty prefixes, firing as soon as the
+	 * interval since it last fired is up.
+	 */
+	private void armTimer(int id, long now) {
+		if (!this.timerArmed[id]) {
+			this.timerArmed[id] = true;
+			long fireTime = Math.max(now, this.lastFire[id] + this.mraiInterval[id]);
+			this.wheel.schedule(fireTime, (id << 1) | MRAITimerEngine.MRAI_EVENT);
+		}
+	}
+
+	/**
+	 * An update on its way to a neighbor.
+	 */
+	private static class Delivery {
+
+		private final long time;
+		private final AS target;
+		private final BGPUpdate update;
+
+		private Delivery(long time, AS target, BGPUpdate update) {
+			this.time = time;
+			this.target = target;
+			this.update = update;
+		}
+	}
+}
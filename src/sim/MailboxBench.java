@@ -0,0 +1,146 @@
+package sim;
+
+import java.util.*;
+
+import topo.*;
+
+/**
+ * Micro benchmark of the incoming update mailboxes, meant to mimic what the
+ * simulator does to them. A pool of producer threads fans updates out to a
+ * large number of mailboxes (MRAI expiration), then a pool of consumers
+ * drains them, each mailbox owned by one consumer (message handling). Also
+ * reports the memory the mailboxes hold once they are empty again.
+ * 
+ * Usage: MailboxBench [mailbox count] [updates per mailbox] [threads] [reps]
+ * 
+ * @author pendgaft
+ * 
+ */
+public class MailboxBench {
+
+	private static final String[] TYPE_NAMES = { "fifo", "mpsc" };
+	private static final int[] TYPES = { AS.FIFO_MAILBOX, AS.MPSC_MAILBOX };
+
+	public static void main(String[] args) throws InterruptedException {
+		int mailboxCount = 40000;
+		int perMailbox = 100;
+		int threadCount = 8;
+		int reps = 5;
+		if (args.length > 0) {
+			mailboxCount = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			perMailbox = Integer.parseInt(args[1]);
+		}
+		if (args.length > 2) {
+			threadCount = Integer.parseInt(args[2]);
+		}
+		if (args.length > 3) {
+			reps = Integer.parseInt(args[3]);
+		}
+
+		BGPUpdate update = new BGPUpdate(BGPPath.buildOriginPath(1), 0);
+		for (int rep = 0; rep < reps; rep++) {
+			for (int counter = 0; counter < MailboxBench.TYPES.length; counter++) {
+				MailboxBench.runOne(MailboxBench.TYPE_NAMES[counter], MailboxBench.TYPES[counter], mailboxCount,
+						perMailbox, threadCount, update);
+			}
+		}
+	}
+
+	private static void runOne(String name, int type, int mailboxCount, final int perMailbox, int threadCount,
+			final BGPUpdate update) throws InterruptedException {
+		MailboxBench.gc();
+		long baseMem = MailboxBench.usedMemory();
+		final UpdateMailbox[] mailboxes = new UpdateMailbox[mailboxCount];
+		for (int counter = 0; counter < mailboxCount; counter++) {
+			if (type == AS.FIFO_MAILBOX) {
+				mailboxes[counter] = new FIFOMailbox();
+			} else {
+				mailboxes[counter] = new MPSCMailbox();
+			}
+		}
+
+		/*
+		 * Fill, every producer hits every mailbox, interleaved like MRAI
+		 * expiration of many neighbors at once
+		 */
+		final int producerShare = perMailbox / threadCount;
+		long fillTime = MailboxBench.runThreads(threadCount, new ThreadBody() {
+			public void run(int threadID, int threadCount) {
+				for (int round = 0; round < producerShare; round++) {
+					for (UpdateMailbox tBox : mailboxes) {
+						tBox.add(update);
+					}
+				}
+			}
+		});
+
+		/*
+		 * Drain, mailboxes split between consumers
+		 */
+		final long[] drained = new long[threadCount];
+		long drainTime = MailboxBench.runThreads(threadCount, new ThreadBody() {
+			public void run(int threadID, int threadCount) {
+				List<BGPUpdate> batch = new ArrayList<BGPUpdate>();
+				for (int counter = threadID; counter < mailboxes.length; counter += threadCount) {
+					drained[threadID] += mailboxes[counter].drainTo(batch, 0);
+					batch.clear();
+				}
+			}
+		});
+
+		long total = 0;
+		for (long tCount : drained) {
+			total += tCount;
+		}
+		MailboxBench.gc();
+		long idleMem = MailboxBench.usedMemory() - baseMem;
+
+		/*
+		 * Sanity check, which also keeps the mailboxes live through the memory
+		 * measurement
+		 */
+		for (UpdateMailbox tBox : mailboxes) {
+			if (!tBox.isEmpty()) {
+				throw new RuntimeException("Mailbox not empty after drain!");
+			}
+		}
+		System.out.println(name + ": " + total + " msgs, fill " + fillTime + " ms, drain " + drainTime
+				+ " ms, idle mailbox memory " + (idleMem / mailboxCount) + " bytes each");
+	}
+
+	private interface ThreadBody {
+		public void run(int threadID, int threadCount);
+	}
+
+	private static long runThreads(final int threadCount, final ThreadBody body) throws InterruptedException {
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int counter = 0; counter < threadCount; counter++) {
+			final int threadID = counter;
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					body.run(threadID, threadCount);
+				}
+			}));
+		}
+		long startTime = System.currentTimeMillis();
+		for (Thread tThread : threads) {
+			tThread.start();
+		}
+		for (Thread tThread : threads) {
+			tThread.join();
+		}
+		return System.currentTimeMillis() - startTime;
+	}
+
+	private static void gc() {
+		for (int counter = 0; counter < 3; counter++) {
+			System.gc();
+		}
+	}
+
+	private static long usedMemory() {
+		return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+	}
+}
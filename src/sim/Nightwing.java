@@ -5,6 +5,8 @@ import java.io.*;
 
 import decoy.DecoyAS;
 import decoy.Rings;
+import topo.LiveRouteView;
+import topo.RouteView;
 
 public class Nightwing {
 
@@ -49,7 +51,22 @@ public class Nightwing {
 		}
 		System.out.println("Mode: " + args[0] + " on country " + country + " looks good, building topo.");
 
-		HashMap<Integer, DecoyAS>[] topoArray = BGPMaster.buildBGPConnection(avoidSize, country + "-as.txt");		
+		/*
+		 * Either converge everything and read routes straight from the RIBs,
+		 * or stream destinations through in slices and keep just what the
+		 * analyses need
+		 */
+		HashMap<Integer, DecoyAS>[] topoArray;
+		RouteView routes;
+		if (SimConfig.SLICE_SIZE > 0) {
+			topoArray = BGPMaster.buildTopology(country + "-as.txt");
+			StreamedRouteView streamedRoutes = new StreamedRouteView(topoArray[0]);
+			BGPMaster.streamBGP(topoArray[0], avoidSize, SimConfig.SLICE_SIZE, streamedRoutes);
+			routes = streamedRoutes;
+		} else {
+			topoArray = BGPMaster.buildBGPConnection(avoidSize, country + "-as.txt");
+			routes = new LiveRouteView(topoArray[0]);
+		}
 		HashMap<Integer, DecoyAS> liveTopo = topoArray[0];
 		HashMap<Integer, DecoyAS> prunedTopo = topoArray[1];
 		System.out.println("Topo built and BGP converged.");
@@ -58,12 +75,12 @@ public class Nightwing {
 		 * Run the correct mode
 		 */
 		if (mode == Nightwing.FIND_MODE) {
-			FindSim simDriver = new FindSim(liveTopo, prunedTopo);
+			FindSim simDriver = new FindSim(liveTopo, prunedTopo, routes);
             simDriver.run(country + "-decoy-hunt-random.csv");
             simDriver.runLargeASOnlyTests(true, country + "-decoy-hunt-single.csv");
             simDriver.runLargeASOnlyTests(false, country + "-decoy-hunt-nlargest.csv");
             
-			Rings ringDriver = new Rings(liveTopo, prunedTopo);
+			Rings ringDriver = new Rings(liveTopo, prunedTopo, routes);
 			ringDriver.runTests(country);
 			simDriver.runRings(country);
 			//simDriver.printResults();
@@ -71,13 +88,13 @@ public class Nightwing {
 			System.out.println("NOT IMPLEMENTED YET");
 			System.exit(-2);
 		} else if (mode == Nightwing.ASYM_MODE) {
-			PathAsym simDriver = new PathAsym(liveTopo, prunedTopo);
+			PathAsym simDriver = new PathAsym(liveTopo, prunedTopo, routes);
 			simDriver.buildPathSymCDF();
 		} else if (mode == Nightwing.ACTIVE_MODE) {
-			FindSim simDriver = new FindSim(liveTopo, prunedTopo);
+			FindSim simDriver = new FindSim(liveTopo, prunedTopo, routes);
 			simDriver.runActive(avoidSize);
 		} else if (mode == Nightwing.RING_MODE) {
-			Rings simDriver = new Rings(liveTopo, prunedTopo);
+			Rings simDriver = new Rings(liveTopo, prunedTopo, routes);
 			simDriver.runTests(country);
 		} else if(mode == Nightwing.ATTACK_FLOW_MODE){
 			AttackFlows simDriver = new AttackFlows(liveTopo, prunedTopo);
@@ -3,7 +3,8 @@ package sim;
 import java.io.IOException;
 import java.util.*;
 
-import topo.BGPPath;
+import topo.LiveRouteView;
+import topo.RouteView;
 import util.Stats;
 import decoy.DecoyAS;
 
@@ -12,11 +13,17 @@ public class PathAsym {
 	private HashMap<Integer, DecoyAS> activeMap;
 	private HashMap<Integer, DecoyAS> purgedMap;
 	private HashSet<DecoyAS> chinaAS;
+	private RouteView routes;
 
 	private static final String LOG_DIR = "logs/";
 
 	public PathAsym(HashMap<Integer, DecoyAS> activeMap, HashMap<Integer, DecoyAS> purgedMap) {
+		this(activeMap, purgedMap, new LiveRouteView(activeMap));
+	}
+
+	public PathAsym(HashMap<Integer, DecoyAS> activeMap, HashMap<Integer, DecoyAS> purgedMap, RouteView routes) {
 		super();
+		this.routes = routes;
 		this.activeMap = activeMap;
 		this.purgedMap = purgedMap;
 
@@ -86,14 +93,13 @@ public class PathAsym {
 	}
 
 	private boolean isAsym(DecoyAS outAS, DecoyAS destAS) {
-		BGPPath outPath = outAS.getPath(destAS.getASN());
-		BGPPath inPath = destAS.getPath(outAS.getASN());
-		
-		if(outPath == null || inPath == null){
-			return false;
-		}
-		
-		return !(outPath.equals(inPath));
+		/*
+		 * A path carries its destination, so the path out and the path back
+		 * never compare equal, the pair counts as asymmetric whenever both
+		 * directions have a route. That's also all a streamed RouteView can
+		 * answer.
+		 */
+		return this.routes.hasPath(outAS, destAS.getASN()) && this.routes.hasPath(destAS, outAS.getASN());
 	}
 
 }
@@ -0,0 +1,215 @@
+package sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import topo.AS;
+import topo.ASNIndex;
+import topo.BGPUpdate;
+
+/**
+ * Plumbing shared by the engines that work one destination at a time
+ * (DestinationEngine and RoutingSolver). The origin advertisements are
+ * pulled out of the mailboxes up front, then the destinations in the RIB
+ * range are split across a ForkJoinPool, and each pool thread works through
+ * its share with a Worker of its own, telling the consumer (if any) about each
+ * destination as soon as it is done.
+ * 
+ * @author pendgaft
+ * 
+ */
+public abstract class PerDestinationEngine<W extends PerDestinationEngine.Worker> {
+
+	private ForkJoinPool pool;
+	private ASNIndex asnIndex;
+
+	/**
+	 * The queued origin advertisement for each destination in the RIB range,
+	 * and the AS it was queued at, null for destinations no one originates
+	 */
+	private BGPUpdate[] originAdvs;
+	private AS[] originASes;
+
+	/**
+	 * Told about each destination as soon as it is done, null if no one
+	 * cares
+	 */
+	private DestinationConsumer consumer;
+
+	private ThreadLocal<W> workers;
+	private ConcurrentLinkedQueue<W> allWorkers;
+
+	/**
+	 * Number of destinations handed to a single task before it stops
+	 * splitting
+	 */
+	private static final int SPLIT_THRESHOLD = 32;
+
+	/**
+	 * A pool thread's state for working on destinations.
+	 */
+	protected abstract static class Worker {
+
+		/**
+		 * Number of destinations this worker found an origin for
+		 */
+		protected long destCount;
+
+		protected Worker() {
+			this.destCount = 0;
+		}
+
+		/**
+		 * Computes the converged routes to one destination.
+		 * 
+		 * @param destID
+		 *            - the dense id of the destination
+		 */
+		protected abstract void converge(int destID);
+	}
+
+	protected PerDestinationEngine(ASNIndex asnIndex, int threadCount) {
+		this.pool = new ForkJoinPool(threadCount);
+		this.asnIndex = asnIndex;
+		this.originAdvs = new BGPUpdate[asnIndex.getRIBSize()];
+		this.originASes = new AS[asnIndex.getRIBSize()];
+		this.consumer = null;
+		this.allWorkers = new ConcurrentLinkedQueue<W>();
+		this.workers = new ThreadLocal<W>() {
+			protected W initialValue() {
+				W newWorker = PerDestinationEngine.this.buildWorker();
+				PerDestinationEngine.this.allWorkers.add(newWorker);
+				return newWorker;
+			}
+		};
+	}
+
+	/**
+	 * Builds the state for one pool thread.
+	 * 
+	 * @return - a new worker
+	 */
+	protected abstract W buildWorker();
+
+	/**
+	 * Runs every destination in the RIB range. The ASes must have their
+	 * origin advertisements queued and nothing else.
+	 * 
+	 * @param asMap
+	 *            - the ASes taking part in routing
+	 */
+	public void run(Map<Integer, ? extends AS> asMap) {
+		/*
+		 * Pull the origin advertisements out of the mailboxes, this also has
+		 * every AS allocate its RIBs before the workers start writing to them
+		 */
+		for (AS tAS : asMap.values()) {
+			for (BGPUpdate tUpdate : tAS.takeUpdates(0)) {
+				int idx = tUpdate.getDestID() - this.asnIndex.getRIBStart();
+				if (this.originAdvs[idx] != null) {
+					throw new RuntimeException(this.getClass().getSimpleName()
+							+ " expects only origin advertisements queued, found a second update for destination "
+							+ this.asnIndex.getASN(tUpdate.getDestID()));
+				}
+				this.originAdvs[idx] = tUpdate;
+				this.originASes[idx] = tAS;
+			}
+		}
+
+		int start = this.asnIndex.getRIBStart();
+		this.pool.invoke(new DestTask(start, start + this.asnIndex.getRIBSize()));
+	}
+
+	/**
+	 * Sets who gets called (from the worker threads) as each destination is
+	 * finished.
+	 * 
+	 * @param consumer
+	 *            - the callback, or null for none
+	 */
+	public void setConsumer(DestinationConsumer consumer) {
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Shuts down the worker threads.
+	 */
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+
+	/**
+	 * Fetches the number of destinations that had an origin to work from.
+	 * 
+	 * @return - the destination count
+	 */
+	public long getDestinationCount() {
+		long count = 0;
+		for (W tWorker : this.allWorkers) {
+			count += tWorker.destCount;
+		}
+		return count;
+	}
+
+	/**
+	 * Fetches the state of every pool thread that has done any work.
+	 * 
+	 * @return - the workers
+	 */
+	protected Collection<W> getWorkers() {
+		return this.allWorkers;
+	}
+
+	/**
+	 * Fetches the AS that originates a destination.
+	 * 
+	 * @param destID
+	 *            - the dense id of the destination
+	 * @return - the origin AS, or null if no one originates it
+	 */
+	protected AS getOriginAS(int destID) {
+		return this.originASes[destID - this.asnIndex.getRIBStart()];
+	}
+
+	/**
+	 * Fetches the advertisement a destination's origin had queued.
+	 * 
+	 * @param destID
+	 *            - the dense id of the destination
+	 * @return - the origin advertisement, or null if no one originates it
+	 */
+	protected BGPUpdate getOriginAdv(int destID) {
+		return this.originAdvs[destID - this.asnIndex.getRIBStart()];
+	}
+
+	/**
+	 * Works through a range of destinations, splitting it while it is large.
+	 */
+	@SuppressWarnings("serial")
+	private class DestTask extends RecursiveAction {
+
+		private final int start;
+		private final int end;
+
+		private DestTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if (this.end - this.start > PerDestinationEngine.SPLIT_THRESHOLD) {
+				int mid = (this.start + this.end) >>> 1;
+				invokeAll(new DestTask(this.start, mid), new DestTask(mid, this.end));
+				return;
+			}
+
+			W worker = PerDestinationEngine.this.workers.get();
+			for (int tDestID = this.start; tDestID < this.end; tDestID++) {
+				worker.converge(tDestID);
+				if (PerDestinationEngine.this.consumer != null) {
+					PerDestinationEngine.this.consumer.destinationConverged(tDestID);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,414 @@
+package sim;
+
+import java.util.*;
+
+import topo.AS;
+import topo.ASNIndex;
+import topo.BGPPath;
+
+/**
+ * Computes the converged BGP state directly instead of simulating messages.
+ * With the route preference AS.pathSelection uses (customer over peer over
+ * provider, then shortest, then lowest next hop) and valley free export, the
+ * state BGP converges to for a destination can be found with three passes
+ * out from the origin:
+ * 
+ * 1) customer routes, a BFS up the provider edges, an AS's customer route is
+ * the shortest one through a customer that has a customer route (or is the
+ * origin)
+ * 
+ * 2) peer routes, one hop across the peer edges from every AS with a customer
+ * route, for ASes that have no customer route
+ * 
+ * 3) provider routes, down the customer edges from every AS with a route, in
+ * order of path length, for ASes with neither
+ * 
+ * Ties at the same length go to the lowest next hop, as in the decision
+ * process. Once every AS has its route, each AS's candidates are just what its
+ * neighbors export to it, and they are installed with AS.loadRoutes, so the
+ * RIBs look exactly like a message engine left them. That's O(V + E) per
+ * destination, and destinations are solved in parallel on a ForkJoinPool
+ * (see PerDestinationEngine).
+ * 
+ * diff compares the RIBs of two topologies, which is how the solver is
+ * checked against the message engines (nightwing.verifySolver).
+ * 
+ * @author pendgaft
+ * 
+ */
+public class RoutingSolver extends PerDestinationEngine<RoutingSolver.Scratch> {
+
+	private ASNIndex asnIndex;
+
+	/*
+	 * Neighbors by dense id
+	 */
+	private int[][] providers;
+	private int[][] peers;
+	private int[][] customers;
+
+	/*
+	 * Route classes, in order of preference
+	 */
+	private static final int SELF_ROUTE = 0;
+	private static final int CUSTOMER_ROUTE = 1;
+	private static final int PEER_ROUTE = 2;
+	private static final int PROVIDER_ROUTE = 3;
+
+	/**
+	 * Max number of differences diff prints
+	 */
+	private static final int DIFF_REPORT_LIMIT = 10;
+
+	public RoutingSolver(ASNIndex asnIndex, int threadCount) {
+		super(asnIndex, threadCount);
+		this.asnIndex = asnIndex;
+	}
+
+	protected Scratch buildWorker() {
+		return new Scratch();
+	}
+
+	/**
+	 * Solves BGP for every destination in the RIB range. The ASes must have
+	 * their origin advertisements queued and nothing else.
+	 * 
+	 * @param asMap
+	 *            - the ASes taking part in routing
+	 */
+	public void run(Map<Integer, ? extends AS> asMap) {
+		/*
+		 * Flatten the relationships into dense id arrays
+		 */
+		int size = this.asnIndex.size();
+		this.providers = new int[size][];
+		this.peers = new int[size][];
+		this.customers = new int[size][];
+		for (AS tAS : asMap.values()) {
+			this.providers[tAS.getDenseID()] = RoutingSolver.toIDs(tAS.getProviders());
+			this.peers[tAS.getDenseID()] = RoutingSolver.toIDs(tAS.getPeers());
+			this.customers[tAS.getDenseID()] = RoutingSolver.toIDs(tAS.getCustomers());
+		}
+
+		super.run(asMap);
+	}
+
+	private static int[] toIDs(Set<AS> asSet) {
+		int[] ids = new int[asSet.size()];
+		int pos = 0;
+		for (AS tAS : asSet) {
+			ids[pos] = tAS.getDenseID();
+			pos++;
+		}
+		return ids;
+	}
+
+	/**
+	 * Compares the RIBs of two copies of a topology, every AS's installed
+	 * route and candidate routes to every destination in the expected
+	 * topology's RIB range. The first few differences are printed.
+	 * 
+	 * @param expected
+	 *            - the reference topology
+	 * @param actual
+	 *            - the topology being checked, with the same ASes
+	 * @return - the number of (AS, destination) pairs that differ
+	 */
+	public static long diff(Map<Integer, ? extends AS> expected, Map<Integer, ? extends AS> actual) {
+		ASNIndex asnIndex = ASNIndex.fromTopo(expected);
+		int start = asnIndex.getRIBStart();
+		int end = start + asnIndex.getRIBSize();
+
+		long mismatches = 0;
+		for (AS tExpected : expected.values()) {
+			AS tActual = actual.get(tExpected.getASN());
+			if (tActual == null) {
+				throw new RuntimeException("AS " + tExpected.getASN() + " missing from topology being compared");
+			}
+
+			for (int tDestID = start; tDestID < end; tDestID++) {
+				int destASN = asnIndex.getASN(tDestID);
+				BGPPath expectedBest = tExpected.getPath(destASN);
+				BGPPath actualBest = tActual.getPath(destASN);
+				Set<BGPPath> expectedAll = new HashSet<BGPPath>(tExpected.getAllPathsTo(destASN));
+				Set<BGPPath> actualAll = new HashSet<BGPPath>(tActual.getAllPathsTo(destASN));
+
+				if (!Objects.equals(expectedBest, actualBest) || !expectedAll.equals(actualAll)) {
+					if (mismatches < RoutingSolver.DIFF_REPORT_LIMIT) {
+						System.out.println("RIB mismatch at " + tExpected.getASN() + " for " + destASN
+								+ ": expected " + expectedBest + " " + expectedAll + " got " + actualBest + " "
+								+ actualAll);
+					}
+					mismatches++;
+				}
+			}
+		}
+		return mismatches;
+	}
+
+	/**
+	 * Growable list of dense ids.
+	 */
+	private static class IDList {
+
+		private int[] items;
+		private int size;
+
+		private IDList() {
+			this.items = new int[64];
+			this.size = 0;
+		}
+
+		private void add(int id) {
+			if (this.size == this.items.length) {
+				this.items = Arrays.copyOf(this.items, this.size * 2);
+			}
+			this.items[this.size] = id;
+			this.size++;
+		}
+
+		private void clear() {
+			this.size = 0;
+		}
+	}
+
+	/**
+	 * A worker's per destination state, indexed by dense id. Entries are only
+	 * valid for an AS if its stamp matches the current destination's epoch,
+	 * so nothing needs clearing between destinations. An AS's route is
+	 * tentative (the next hop can still change) until it is settled, at
+	 * which point its path is built.
+	 */
+	class Scratch extends PerDestinationEngine.Worker {
+
+		private final int[] stamp;
+		private final int[] finalStamp;
+		private final int[] from;
+		private final int[] length;
+		private final int[] routeClass;
+		private final BGPPath[] path;
+		private int epoch;
+
+		/**
+		 * Every AS with a settled route, in the order they were settled
+		 */
+		private final IDList routed;
+		private IDList current;
+		private IDList next;
+
+		private final List<BGPPath> candidates;
+
+		private Scratch() {
+			int size = RoutingSolver.this.asnIndex.size();
+			this.stamp = new int[size];
+			this.finalStamp = new int[size];
+			this.from = new int[size];
+			this.length = new int[size];
+			this.routeClass = new int[size];
+			this.path = new BGPPath[size];
+			this.epoch = 0;
+			this.routed = new IDList();
+			this.current = new IDList();
+			this.next = new IDList();
+			this.candidates = new ArrayList<BGPPath>();
+		}
+
+		private boolean hasRoute(int id) {
+			return this.finalStamp[id] == this.epoch;
+		}
+
+		/**
+		 * Offers an AS the route of one of its neighbors (which must be
+		 * settled). Taken if the AS has no route yet, or if its route is
+		 * still tentative, of the same class, and worse.
+		 * 
+		 * @return - true if the AS had no route before this
+		 */
+		private boolean offer(int id, int fromID, int newClass) {
+			if (this.path[fromID].containsLoop(RoutingSolver.this.asnIndex.getASN(id))) {
+				return false;
+			}
+
+			int newLength = this.length[fromID] + 1;
+			if (this.stamp[id] != this.epoch) {
+				this.stamp[id] = this.epoch;
+				this.from[id] = fromID;
+				this.length[id] = newLength;
+				this.routeClass[id] = newClass;
+				return true;
+			}
+
+			if (this.finalStamp[id] != this.epoch && this.routeClass[id] == newClass) {
+				if (newLength < this.length[id]
+						|| (newLength == this.length[id] && RoutingSolver.this.asnIndex.getASN(fromID) < RoutingSolver.this.asnIndex
+								.getASN(this.from[id]))) {
+					this.from[id] = fromID;
+					this.length[id] = newLength;
+				}
+			}
+			return false;
+		}
+
+		private void settle(int id) {
+			int fromASN = RoutingSolver.this.asnIndex.getASN(this.from[id]);
+			this.path[id] = this.path[this.from[id]].prependASToPath(fromASN);
+			this.finalStamp[id] = this.epoch;
+			this.routed.add(id);
+		}
+
+		protected void converge(int destID) {
+			AS origin = RoutingSolver.this.getOriginAS(destID);
+			if (origin == null) {
+				return;
+			}
+			this.destCount++;
+			this.epoch++;
+			this.routed.clear();
+
+			int originID = origin.getDenseID();
+			this.stamp[originID] = this.epoch;
+			this.from[originID] = -1;
+			this.length[originID] = 0;
+			this.routeClass[originID] = RoutingSolver.SELF_ROUTE;
+			this.path[originID] = RoutingSolver.this.getOriginAdv(destID).getPath();
+			this.finalStamp[originID] = this.epoch;
+			this.routed.add(originID);
+
+			/*
+			 * Customer routes, level by level up the provider edges, everyone
+			 * at a level has the same length so a level's routes are final
+			 * once the level below it has made its offers
+			 */
+			this.current.clear();
+			this.current.add(originID);
+			while (this.current.size > 0) {
+				this.next.clear();
+				for (int counter = 0; counter < this.current.size; counter++) {
+					int tID = this.current.items[counter];
+					for (int tProv : RoutingSolver.this.providers[tID]) {
+						if (this.offer(tProv, tID, RoutingSolver.CUSTOMER_ROUTE)) {
+							this.next.add(tProv);
+						}
+					}
+				}
+				for (int counter = 0; counter < this.next.size; counter++) {
+					this.settle(this.next.items[counter]);
+				}
+				IDList swap = this.current;
+				this.current = this.next;
+				this.next = swap;
+			}
+
+			/*
+			 * Peer routes, one hop from anyone with a customer route
+			 */
+			int customerRouteCount = this.routed.size;
+			this.next.clear();
+			for (int counter = 0; counter < customerRouteCount; counter++) {
+				int tID = this.routed.items[counter];
+				for (int tPeer : RoutingSolver.this.peers[tID]) {
+					if (this.offer(tPeer, tID, RoutingSolver.PEER_ROUTE)) {
+						this.next.add(tPeer);
+					}
+				}
+			}
+			for (int counter = 0; counter < this.next.size; counter++) {
+				this.settle(this.next.items[counter]);
+			}
+
+			/*
+			 * Provider routes, down the customer edges in order of length,
+			 * everyone who already has a route is a source at their own
+			 * length
+			 */
+			int sourceCount = this.routed.size;
+			int[] sources = new int[sourceCount];
+			int maxLength = 0;
+			for (int counter = 0; counter < sourceCount; counter++) {
+				maxLength = Math.max(maxLength, this.length[this.routed.items[counter]]);
+			}
+			int[] lengthStart = new int[maxLength + 2];
+			for (int counter = 0; counter < sourceCount; counter++) {
+				lengthStart[this.length[this.routed.items[counter]] + 1]++;
+			}
+			for (int counter = 1; counter < lengthStart.length; counter++) {
+				lengthStart[counter] += lengthStart[counter - 1];
+			}
+			int[] fill = Arrays.copyOf(lengthStart, lengthStart.length);
+			for (int counter = 0; counter < sourceCount; counter++) {
+				int tID = this.routed.items[counter];
+				sources[fill[this.length[tID]]] = tID;
+				fill[this.length[tID]]++;
+			}
+
+			this.current.clear();
+			for (int tLength = 0; tLength <= maxLength || this.current.size > 0; tLength++) {
+				for (int counter = 0; counter < this.current.size; counter++) {
+					this.settle(this.current.items[counter]);
+				}
+
+				this.next.clear();
+				if (tLength <= maxLength) {
+					for (int counter = lengthStart[tLength]; counter < lengthStart[tLength + 1]; counter++) {
+						this.offerToCustomers(sources[counter]);
+					}
+				}
+				for (int counter = 0; counter < this.current.size; counter++) {
+					this.offerToCustomers(this.current.items[counter]);
+				}
+				IDList swap = this.current;
+				this.current = this.next;
+				this.next = swap;
+			}
+
+			this.install(destID, originID);
+		}
+
+		private void offerToCustomers(int id) {
+			for (int tCust : RoutingSolver.this.customers[id]) {
+				if (this.offer(tCust, id, RoutingSolver.PROVIDER_ROUTE)) {
+					this.next.add(tCust);
+				}
+			}
+		}
+
+		/**
+		 * Fills in every routed AS's candidates, what each neighbor exports
+		 * to it, just as sendUpdate would have: providers send us everything,
+		 * peers and customers only their customer routes (and their own
+		 * network).
+		 */
+		private void install(int destID, int originID) {
+			for (int counter = 0; counter < this.routed.size; counter++) {
+				int tID = this.routed.items[counter];
+				int tASN = RoutingSolver.this.asnIndex.getASN(tID);
+
+				this.candidates.clear();
+				if (tID == originID) {
+					this.candidates.add(this.path[tID]);
+				}
+				for (int tProv : RoutingSolver.this.providers[tID]) {
+					this.addCandidate(tProv, tASN);
+				}
+				for (int tPeer : RoutingSolver.this.peers[tID]) {
+					if (this.hasRoute(tPeer) && this.routeClass[tPeer] <= RoutingSolver.CUSTOMER_ROUTE) {
+						this.addCandidate(tPeer, tASN);
+					}
+				}
+				for (int tCust : RoutingSolver.this.customers[tID]) {
+					if (this.hasRoute(tCust) && this.routeClass[tCust] <= RoutingSolver.CUSTOMER_ROUTE) {
+						this.addCandidate(tCust, tASN);
+					}
+				}
+				RoutingSolver.this.asnIndex.getAS(tID).loadRoutes(destID, this.candidates);
+			}
+		}
+
+		private void addCandidate(int neighborID, int asn) {
+			if (this.hasRoute(neighborID) && !this.path[neighborID].containsLoop(asn)) {
+				this.candidates.add(this.path[neighborID].prependASToPath(RoutingSolver.this.asnIndex
+						.getASN(neighborID)));
+			}
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package sim;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import topo.ASNIndex;
+import topo.MappedRIB;
+
+/**
+ * Splits BGP convergence across several worker JVMs by destination. Routes to
+ * different destinations never interact, so each ShardWorker can converge a
+ * contiguous range of destination ids on its own, holding RIB state for only
+ * that range, which is what lets a topology too big for one heap get
+ * converged. Each worker writes its RIBs to a MappedRIB
+ * file in the shard directory, and when they finish the files are mapped
+ * together into the ASes of this process, which answer route lookups (and
+ * so the analyses) straight from them. The merged RIBs are never loaded, so
+ * they don't have to fit in this process's heap either.
+ * 
+ * Workers are started as child processes on this machine with the same class
+ * path and nightwing.* settings, then connect back over a loopback socket to
+ * get their assignment.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class ShardCoordinator {
+
+	private final ASNIndex asnIndex;
+	private final int shardCount;
+	private final File shardDir;
+
+	/**
+	 * How long to wait between checks that the workers we are waiting on are
+	 * still alive
+	 */
+	private static final int ACCEPT_POLL_MS = 1000;
+
+	/**
+	 * Builds a coordinator for a topology.
+	 * 
+	 * @param asnIndex
+	 *            - the index of the (frozen) topology, its ASes end up serving
+	 *            routes from the shard files
+	 * @param shardCount
+	 *            - number of worker processes to split destinations over
+	 * @param shardDir
+	 *            - directory the workers write their RIB files to
+	 */
+	public ShardCoordinator(ASNIndex asnIndex, int shardCount, File shardDir) {
+		this.asnIndex = asnIndex;
+		this.shardCount = Math.max(1, Math.min(shardCount, asnIndex.getRoutedCount()));
+		this.shardDir = shardDir;
+	}
+
+	/**
+	 * Fetches the first destination id of a shard, destinations are split into
+	 * contiguous ranges as evenly as possible.
+	 * 
+	 * @param shard
+	 *            - the shard number, 0 to shardCount (which gives the end of
+	 *            the last range)
+	 * @return - the first destination id in the shard
+	 */
+	public int getShardStart(int shard) {
+		return (int) ((long) this.asnIndex.getRoutedCount() * shard / this.shardCount);
+	}
+
+	private File getShardFile(int shard) {
+		return new File(this.shardDir, "shard-" + shard + ".rib");
+	}
+
+	/**
+	 * Launches the workers, hands out destination ranges, and waits for all of
+	 * them to finish converging.
+	 * 
+	 * @param chinaAvoidanceSize
+	 *            - number of large ASes the warden avoids, passed on to the
+	 *            workers
+	 * @param countryFile
+	 *            - the warden AS file, passed on to the workers
+	 * @throws IOException
+	 *             - if talking to the workers fails
+	 */
+	public void run(int chinaAvoidanceSize, String countryFile) throws IOException {
+		if (!this.shardDir.isDirectory() && !this.shardDir.mkdirs()) {
+			throw new IOException("Could not create shard directory " + this.shardDir);
+		}
+
+		long startTime = System.currentTimeMillis();
+		System.out.println("Converging BGP in " + this.shardCount + " shard processes.");
+
+		ServerSocket serverSocket = new ServerSocket(0, this.shardCount, InetAddress.getLoopbackAddress());
+		List<Process> workers = new ArrayList<Process>();
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			for (int counter = 0; counter < this.shardCount; counter++) {
+				workers.add(this.launchWorker(serverSocket.getLocalPort()));
+			}
+
+			/*
+			 * Hand out ranges in the order workers show up
+			 */
+			serverSocket.setSoTimeout(ShardCoordinator.ACCEPT_POLL_MS);
+			while (sockets.size() < this.shardCount) {
+				Socket workerSocket;
+				try {
+					workerSocket = serverSocket.accept();
+				} catch (SocketTimeoutException e) {
+					ShardCoordinator.checkAlive(workers);
+					continue;
+				}
+				int shard = sockets.size();
+				sockets.add(workerSocket);
+
+				PrintWriter outWriter = new PrintWriter(new OutputStreamWriter(workerSocket.getOutputStream(),
+						"UTF-8"), true);
+				outWriter.println("SHARD " + shard + " " + this.getShardStart(shard) + " "
+						+ this.getShardStart(shard + 1) + " " + chinaAvoidanceSize);
+				outWriter.println(this.getShardFile(shard).getAbsolutePath());
+				outWriter.println(countryFile);
+			}
+
+			for (int counter = 0; counter < this.shardCount; counter++) {
+				BufferedReader inReader = new BufferedReader(new InputStreamReader(sockets.get(counter)
+						.getInputStream(), "UTF-8"));
+				String reply = inReader.readLine();
+				if (reply == null || !reply.startsWith("DONE ")) {
+					throw new RuntimeException("Shard " + counter + " failed: " + reply);
+				}
+			}
+
+			for (Process tWorker : workers) {
+				if (tWorker.waitFor() != 0) {
+					throw new RuntimeException("Shard worker exited with status " + tWorker.exitValue());
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted waiting on shard workers", e);
+		} finally {
+			for (Socket tSocket : sockets) {
+				tSocket.close();
+			}
+			serverSocket.close();
+			for (Process tWorker : workers) {
+				tWorker.destroy();
+			}
+		}
+
+		System.out.println("Shards converged, this took: " + ((System.currentTimeMillis() - startTime) / 1000)
+				+ " seconds.");
+	}
+
+	/**
+	 * Maps every shard's RIB file, and has the ASes of this process serve
+	 * routes from them. The files must stay in place while the RIBs are in
+	 * use.
+	 * 
+	 * @return - the mapped RIBs of every shard
+	 * @throws IOException
+	 *             - if a shard file is missing or bad
+	 */
+	public MappedRIB openRIBs() throws IOException {
+		List<File> shardFiles = new ArrayList<File>();
+		for (int counter = 0; counter < this.shardCount; counter++) {
+			shardFiles.add(this.getShardFile(counter));
+		}
+		MappedRIB shardRibs = MappedRIB.openShards(shardFiles, this.asnIndex);
+		System.out.println("Mapped the RIBs of " + this.shardCount + " shards.");
+		return shardRibs;
+	}
+
+	/**
+	 * Starts a worker JVM with our class path and simulator settings. Unless
+	 * the thread count was set explicitly the cores are split between the
+	 * workers, and nightwing.shardHeap sets each worker's max heap.
+	 */
+	private Process launchWorker(int port) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		String heap = System.getProperty("nightwing.shardHeap");
+		if (heap != null) {
+			command.add("-Xmx" + heap);
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		for (String tName : System.getProperties().stringPropertyNames()) {
+			if (tName.startsWith("nightwing.") && !tName.startsWith("nightwing.shard")) {
+				command.add("-D" + tName + "=" + System.getProperty(tName));
+			}
+		}
+		if (System.getProperty("nightwing.threads") == null) {
+			command.add("-Dnightwing.threads=" + Math.max(1, SimConfig.THREADS / this.shardCount));
+		}
+		command.add(ShardWorker.class.getName());
+		command.add(InetAddress.getLoopbackAddress().getHostAddress());
+		command.add(Integer.toString(port));
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.inheritIO();
+		return builder.start();
+	}
+
+	/**
+	 * Fails if a worker died, or if every worker is gone while we are still
+	 * waiting for some of them to connect.
+	 */
+	private static void checkAlive(List<Process> workers) {
+		boolean anyAlive = false;
+		for (Process tWorker : workers) {
+			if (tWorker.isAlive()) {
+				anyAlive = true;
+			} else if (tWorker.exitValue() != 0) {
+				throw new RuntimeException("Shard worker exited with status " + tWorker.exitValue());
+			}
+		}
+		if (!anyAlive) {
+			throw new RuntimeException("Shard workers exited before all of them connected");
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package sim;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.HashMap;
+
+import decoy.DecoyAS;
+import topo.MappedRIB;
+
+/**
+ * Entry point for one shard of a sharded BGP run. The worker connects back to
+ * the ShardCoordinator, is told which destination range to converge, builds
+ * the topology itself, runs BGP for only those destinations, writes the
+ * resulting RIBs to a MappedRIB file, and reports back.
+ * 
+ * The exchange with the coordinator is line based: the coordinator sends
+ * "SHARD index start end avoidSize", then the output file, then the country
+ * file, each on its own line, and the worker answers "DONE index routeCount"
+ * or "FAIL index reason".
+ * 
+ * @author pendgaft
+ * 
+ */
+public class ShardWorker {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.out.println("usage: ShardWorker <coordinator host> <coordinator port>");
+			System.exit(-1);
+		}
+
+		Socket socket = new Socket(args[0], Integer.parseInt(args[1]));
+		BufferedReader inReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		PrintWriter outWriter = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+
+		String[] assignment = inReader.readLine().split(" ");
+		if (assignment.length != 5 || !assignment[0].equals("SHARD")) {
+			throw new RuntimeException("Bad shard assignment from coordinator: " + String.join(" ", assignment));
+		}
+		int shard = Integer.parseInt(assignment[1]);
+		int destStart = Integer.parseInt(assignment[2]);
+		int destEnd = Integer.parseInt(assignment[3]);
+		int avoidSize = Integer.parseInt(assignment[4]);
+		File outFile = new File(inReader.readLine());
+		String countryFile = inReader.readLine();
+
+		try {
+			System.out.println("Shard " + shard + " converging destinations [" + destStart + ", " + destEnd + ")");
+			HashMap<Integer, DecoyAS> usefulASMap = BGPMaster.buildBGPShard(avoidSize, countryFile, destStart,
+					destEnd);
+			long routeCount = MappedRIB.write(outFile, usefulASMap);
+			outWriter.println("DONE " + shard + " " + routeCount);
+		} catch (IOException | RuntimeException e) {
+			outWriter.println("FAIL " + shard + " " + e);
+			throw e;
+		} finally {
+			socket.close();
+		}
+	}
+}
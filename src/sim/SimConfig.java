@@ -0,0 +1,196 @@
+package sim;
+
+import topo.AS;
+
+/**
+ * Knobs for the BGP simulation engine. These are read from Java system
+ * properties (-Dnightwing.whatever=value on the command line) so that
+ * experiments can be switched without touching the code. Everything defaults
+ * to the behavior the simulator has always had, except for these defaults,
+ * which were changed to the faster option:
+ * 
+ * nightwing.mailbox is mpsc (the lock free MPSCMailbox), it used to be fifo
+ * 
+ * nightwing.engine is active (the work stealing ActiveSetEngine), it used to
+ * be rounds
+ * 
+ * nightwing.threads is the number of cores, it used to be a fixed 8
+ * 
+ * nightwing.partition is locality (see LocalityPartitioner), it used to be
+ * block
+ * 
+ * @author pendgaft
+ * 
+ */
+public class SimConfig {
+
+	/**
+	 * Incoming update mailbox ASes use, one of the AS.*_MAILBOX codes. Set
+	 * with nightwing.mailbox=fifo|coalesce|mpsc (the default), for coalescing
+	 * each AS only keeps the newest pending update from a given peer for a
+	 * given destination, see topo.CoalescingMailbox
+	 */
+	public static final int MAILBOX_TYPE = SimConfig.getMailboxType("nightwing.mailbox");
+
+	/**
+	 * Number of queued updates a slave handles for an AS each round, 0 means
+	 * drain the whole queue, the classic behavior is 1
+	 */
+	public static final int BATCH_SIZE = SimConfig.getInt("nightwing.batch", 1);
+
+	/**
+	 * Number of worker threads the BGP engines use, nightwing.threads,
+	 * defaults to the number of cores
+	 */
+	public static final int THREADS = SimConfig.getInt("nightwing.threads", Runtime.getRuntime()
+			.availableProcessors());
+
+	/*
+	 * BGP engines, nightwing.engine=rounds|active|bsp|actor|timer|des|dest|solver
+	 */
+	public static final int ROUND_ENGINE = 0;
+	public static final int ACTIVE_SET_ENGINE = 1;
+	public static final int BSP_ENGINE = 2;
+	public static final int ACTOR_ENGINE = 3;
+	public static final int MRAI_TIMER_ENGINE = 4;
+	public static final int DISCRETE_EVENT_ENGINE = 5;
+	public static final int DESTINATION_ENGINE = 6;
+	public static final int SOLVER_ENGINE = 7;
+
+	/**
+	 * Engine used to converge BGP, the classic round and barrier BGPMaster
+	 * loop, the work stealing ActiveSetEngine (the default), or the bulk
+	 * synchronous partitioned BSPEngine, the barrier free ActorEngine, the
+	 * virtual time MRAITimerEngine and DiscreteEventEngine, the one
+	 * destination at a time DestinationEngine, or the message free
+	 * RoutingSolver
+	 */
+	public static final int ENGINE = SimConfig.getEngine("nightwing.engine");
+
+	/**
+	 * If true (nightwing.partition=locality, the default) ASes are grouped by
+	 * topology with LocalityPartitioner, nightwing.partition=block uses plain
+	 * dense id order. Partitions decide which thread owns an AS under the
+	 * rounds and bsp engines only, the others (active included) hand ASes to
+	 * whichever thread is free and ignore this
+	 */
+	public static final boolean LOCALITY_PARTITION = !System.getProperty("nightwing.partition", "locality")
+			.trim().equalsIgnoreCase("block");
+
+	/**
+	 * Degree (nightwing.hubDegree) or pending message count
+	 * (nightwing.hubQueue) at which an AS counts as a hub and has its work
+	 * split across threads by destination, see HubSplitter
+	 */
+	public static final int HUB_DEGREE = SimConfig.getInt("nightwing.hubDegree", 1000);
+	public static final int HUB_QUEUE = SimConfig.getInt("nightwing.hubQueue", 20000);
+
+	/**
+	 * MRAI interval (nightwing.mrai) and link delay (nightwing.linkDelay) in
+	 * virtual time ticks, for the engines that model time, think of a tick as
+	 * a second
+	 */
+	public static final long MRAI_TICKS = SimConfig.getInt("nightwing.mrai", 30);
+	public static final long LINK_DELAY_TICKS = SimConfig.getInt("nightwing.linkDelay", 1);
+
+	/**
+	 * Extra per link delay (nightwing.linkJitter, each link gets a fixed
+	 * amount up to this) and per message processing time
+	 * (nightwing.processDelay) in ticks, for the discrete event engine
+	 */
+	public static final long LINK_JITTER_TICKS = SimConfig.getInt("nightwing.linkJitter", 0);
+	public static final long PROCESS_DELAY_TICKS = SimConfig.getInt("nightwing.processDelay", 0);
+
+	/**
+	 * Number of worker processes (nightwing.shards) the destinations are
+	 * split across, each converges its own destination range in its own JVM,
+	 * 1 (the default) converges everything in this process, see
+	 * ShardCoordinator
+	 */
+	public static final int SHARDS = SimConfig.getInt("nightwing.shards", 1);
+
+	/**
+	 * Directory shard workers write their RIB files to, nightwing.shardDir,
+	 * the coordinator maps the files from here once the workers finish
+	 */
+	public static final String SHARD_DIR = System.getProperty("nightwing.shardDir", "shards");
+
+	/**
+	 * If true (nightwing.verifySolver) the converged RIBs are checked against
+	 * a second copy of the topology solved by RoutingSolver
+	 */
+	public static final boolean VERIFY_SOLVER = Boolean.parseBoolean(System.getProperty(
+			"nightwing.verifySolver", "false").trim());
+
+	/**
+	 * Number of destinations converged at a time in streaming mode
+	 * (nightwing.slice), each slice is handed to the analyses and its RIB
+	 * state thrown away before the next, 0 (the default) converges every
+	 * destination at once and keeps the RIBs
+	 */
+	public static final int SLICE_SIZE = SimConfig.getInt("nightwing.slice", 0);
+
+	/**
+	 * Directory convergence checkpoints are written to
+	 * (nightwing.checkpointDir), unset (the default) turns checkpointing off,
+	 * see CheckpointManager. Checkpoints are taken at most every
+	 * nightwing.checkpointSecs seconds, and nightwing.resume=true picks a run
+	 * back up from the newest checkpoint in the directory. Only the round and
+	 * active set engines take checkpoints, with any other engine configured a
+	 * checkpointed run uses the active set engine
+	 */
+	public static final String CHECKPOINT_DIR = System.getProperty("nightwing.checkpointDir");
+	public static final int CHECKPOINT_SECS = SimConfig.getInt("nightwing.checkpointSecs", 600);
+	public static final boolean RESUME = Boolean.parseBoolean(System.getProperty("nightwing.resume", "false")
+			.trim());
+
+	/**
+	 * File converged RIBs are saved to (nightwing.ribSnapshot), unset (the
+	 * default) turns snapshots off. If the file holds a snapshot of the same
+	 * topology, routes are served from it and BGP is skipped, otherwise BGP
+	 * runs as usual and the result is saved there, see MappedRIB
+	 */
+	public static final String RIB_SNAPSHOT = System.getProperty("nightwing.ribSnapshot");
+
+	private static int getEngine(String property) {
+		String value = System.getProperty(property, "active").trim();
+		if (value.equalsIgnoreCase("rounds")) {
+			return SimConfig.ROUND_ENGINE;
+		} else if (value.equalsIgnoreCase("active")) {
+			return SimConfig.ACTIVE_SET_ENGINE;
+		} else if (value.equalsIgnoreCase("bsp")) {
+			return SimConfig.BSP_ENGINE;
+		} else if (value.equalsIgnoreCase("actor")) {
+			return SimConfig.ACTOR_ENGINE;
+		} else if (value.equalsIgnoreCase("timer")) {
+			return SimConfig.MRAI_TIMER_ENGINE;
+		} else if (value.equalsIgnoreCase("des")) {
+			return SimConfig.DISCRETE_EVENT_ENGINE;
+		} else if (value.equalsIgnoreCase("dest")) {
+			return SimConfig.DESTINATION_ENGINE;
+		} else if (value.equalsIgnoreCase("solver")) {
+			return SimConfig.SOLVER_ENGINE;
+		}
+		throw new RuntimeException("Unknown BGP engine for " + property + ": " + value);
+	}
+
+	private static int getMailboxType(String property) {
+		String value = System.getProperty(property, "mpsc").trim();
+		if (value.equalsIgnoreCase("fifo")) {
+			return AS.FIFO_MAILBOX;
+		} else if (value.equalsIgnoreCase("coalesce")) {
+			return AS.COALESCING_MAILBOX;
+		} else if (value.equalsIgnoreCase("mpsc")) {
+			return AS.MPSC_MAILBOX;
+		}
+		throw new RuntimeException("Unknown mailbox type for " + property + ": " + value);
+	}
+
+	private static int getInt(String property, int defaultValue) {
+		String value = System.getProperty(property);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Integer.parseInt(value.trim());
+	}
+}
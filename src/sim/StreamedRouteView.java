@@ -0,0 +1,77 @@
+package sim;
+
+import java.util.*;
+
+import topo.AS;
+import topo.ASNIndex;
+import topo.BGPPath;
+import topo.RouteView;
+
+/**
+ * RouteView filled in a destination at a time as BGP converges in slices (see
+ * BGPMaster.streamBGP), so the analyses can run after the RIBs are thrown
+ * away. For each destination it keeps the distinct routes the warden holds to
+ * it and a bitset of the ASes that have a route to it. That is a fraction of
+ * the RIB state (the reachability bits are one bit per AS pair, against a
+ * full candidate list per AS pair in the RIBs).
+ * 
+ * @author pendgaft
+ * 
+ */
+public class StreamedRouteView implements RouteView, DestinationConsumer {
+
+	private ASNIndex asnIndex;
+	private List<AS> wardenASes;
+
+	/*
+	 * Per destination, by dense id, null until the destination converges
+	 */
+	private BGPPath[][] wardenPaths;
+	private BitSet[] reachedBy;
+
+	public StreamedRouteView(Map<Integer, ? extends AS> activeMap) {
+		this.asnIndex = ASNIndex.fromTopo(activeMap);
+		this.wardenASes = new ArrayList<AS>();
+		for (AS tAS : activeMap.values()) {
+			if (tAS.isWardenAS()) {
+				this.wardenASes.add(tAS);
+			}
+		}
+		this.wardenPaths = new BGPPath[this.asnIndex.getRoutedCount()][];
+		this.reachedBy = new BitSet[this.asnIndex.getRoutedCount()];
+	}
+
+	public void destinationConverged(int destID) {
+		int destASN = this.asnIndex.getASN(destID);
+
+		Set<BGPPath> paths = new HashSet<BGPPath>();
+		for (AS tWarden : this.wardenASes) {
+			paths.addAll(tWarden.getAllPathsTo(destASN));
+		}
+		this.wardenPaths[destID] = paths.toArray(new BGPPath[paths.size()]);
+
+		BitSet reached = new BitSet(this.asnIndex.getRoutedCount());
+		for (int tID = 0; tID < this.asnIndex.getRoutedCount(); tID++) {
+			if (this.asnIndex.getAS(tID).getPath(destASN) != null) {
+				reached.set(tID);
+			}
+		}
+		this.reachedBy[destID] = reached;
+	}
+
+	public Collection<BGPPath> getWardenPaths(int destASN) {
+		int destID = this.asnIndex.getID(destASN);
+		if (!this.asnIndex.isRouted(destID) || this.wardenPaths[destID] == null) {
+			return Collections.emptyList();
+		}
+		return Arrays.asList(this.wardenPaths[destID]);
+	}
+
+	public boolean hasPath(AS src, int destASN) {
+		int destID = this.asnIndex.getID(destASN);
+		if (!this.asnIndex.isRouted(destID) || this.reachedBy[destID] == null) {
+			return false;
+		}
+		return this.reachedBy[destID].get(src.getDenseID());
+	}
+}
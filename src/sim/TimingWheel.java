@@ -0,0 +1,185 @@
+package sim;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel for int payloads (dense AS ids and the like) in
+ * virtual time. Times are non-negative longs, split into 6 bit digits, and
+ * each digit gets a level of 64 slots. An entry lives at the level of the
+ * highest digit in which its time differs from the current time, so inserting
+ * is constant time no matter how far out the entry is. Each level keeps a
+ * bitmap of its non-empty slots, so moving to the next time with something
+ * due never steps through empty ticks, it takes the lowest occupied slot of
+ * the lowest non-empty level, and when that's above level 0 cascades that
+ * slot's entries down a level. Every entry is cascaded at most once per
+ * level, so expiring is (amortized) constant time too.
+ * 
+ * Not thread safe.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class TimingWheel {
+
+	private static final int SLOT_BITS = 6;
+	private static final int SLOT_COUNT = 1 << TimingWheel.SLOT_BITS;
+	private static final int SLOT_MASK = TimingWheel.SLOT_COUNT - 1;
+
+	/**
+	 * Enough levels to cover every bit of a long
+	 */
+	private static final int LEVELS = (64 + TimingWheel.SLOT_BITS - 1) / TimingWheel.SLOT_BITS;
+
+	/*
+	 * slots[level][slot] holds the payloads and times of the entries in that
+	 * slot, slotSize the number of entries
+	 */
+	private int[][][] payloads;
+	private long[][][] times;
+	private int[][] slotSize;
+	private long[] occupied;
+
+	private long now;
+	private long size;
+
+	public TimingWheel() {
+		this.payloads = new int[TimingWheel.LEVELS][TimingWheel.SLOT_COUNT][];
+		this.times = new long[TimingWheel.LEVELS][TimingWheel.SLOT_COUNT][];
+		this.slotSize = new int[TimingWheel.LEVELS][TimingWheel.SLOT_COUNT];
+		this.occupied = new long[TimingWheel.LEVELS];
+		this.now = 0;
+		this.size = 0;
+	}
+
+	/**
+	 * Schedules an entry.
+	 * 
+	 * @param time
+	 *            - the virtual time the entry is due, must not be before the
+	 *            current time
+	 * @param payload
+	 *            - the value handed back when the entry comes due
+	 */
+	public void schedule(long time, int payload) {
+		if (time < this.now) {
+			throw new RuntimeException("Tried to schedule in the past: " + time + " < " + this.now);
+		}
+		this.insert(time, payload);
+		this.size++;
+	}
+
+	/**
+	 * Moves the current time forward to the next time anything is due, and
+	 * removes everything due then.
+	 * 
+	 * @return - the payloads due at the new current time (in no particular
+	 *         order), or null if nothing is scheduled
+	 */
+	public int[] advance() {
+		if (this.size == 0) {
+			return null;
+		}
+
+		while (true) {
+			/*
+			 * Anything at level 0 shares every digit but the last with now, and
+			 * is never behind it, so the lowest slot is the next time
+			 */
+			if (this.occupied[0] != 0) {
+				int slot = Long.numberOfTrailingZeros(this.occupied[0]);
+				this.now = (this.now & ~((long) TimingWheel.SLOT_MASK)) | slot;
+				int count = this.slotSize[0][slot];
+				int[] due = Arrays.copyOf(this.payloads[0][slot], count);
+				this.clearSlot(0, slot);
+				this.size -= count;
+				return due;
+			}
+
+			/*
+			 * Otherwise move time to the start of the lowest occupied slot of
+			 * the lowest level with entries, and spread that slot out over the
+			 * levels below
+			 */
+			for (int level = 1; level < TimingWheel.LEVELS; level++) {
+				if (this.occupied[level] == 0) {
+					continue;
+				}
+				int slot = Long.numberOfTrailingZeros(this.occupied[level]);
+				int shift = level * TimingWheel.SLOT_BITS;
+				long highMask = (shift + TimingWheel.SLOT_BITS >= 64) ? 0 : (-1L << (shift + TimingWheel.SLOT_BITS));
+				this.now = (this.now & highMask) | ((long) slot << shift);
+
+				int count = this.slotSize[level][slot];
+				int[] movePayloads = this.payloads[level][slot];
+				long[] moveTimes = this.times[level][slot];
+				this.payloads[level][slot] = null;
+				this.times[level][slot] = null;
+				this.slotSize[level][slot] = 0;
+				this.occupied[level] &= ~(1L << slot);
+				for (int counter = 0; counter < count; counter++) {
+					this.insert(moveTimes[counter], movePayloads[counter]);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Fetches the current virtual time, the time of the entries last returned
+	 * by advance.
+	 * 
+	 * @return - the current time
+	 */
+	public long getTime() {
+		return this.now;
+	}
+
+	/**
+	 * Fetches the number of entries scheduled.
+	 * 
+	 * @return - the number of pending entries
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * Predicate to test if nothing is scheduled.
+	 * 
+	 * @return - true if the wheel is empty
+	 */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	private void insert(long time, int payload) {
+		long diff = time ^ this.now;
+		int level = 0;
+		if (diff != 0) {
+			level = (63 - Long.numberOfLeadingZeros(diff)) / TimingWheel.SLOT_BITS;
+		}
+		int slot = (int) ((time >>> (level * TimingWheel.SLOT_BITS)) & TimingWheel.SLOT_MASK);
+
+		int count = this.slotSize[level][slot];
+		if (this.payloads[level][slot] == null) {
+			this.payloads[level][slot] = new int[4];
+			this.times[level][slot] = new long[4];
+		} else if (count == this.payloads[level][slot].length) {
+			this.payloads[level][slot] = Arrays.copyOf(this.payloads[level][slot], count * 2);
+			this.times[level][slot] = Arrays.copyOf(this.times[level][slot], count * 2);
+		}
+		this.payloads[level][slot][count] = payload;
+		this.times[level][slot][count] = time;
+		this.slotSize[level][slot] = count + 1;
+		this.occupied[level] |= (1L << slot);
+	}
+
+	private void clearSlot(int level, int slot) {
+		this.slotSize[level][slot] = 0;
+		this.occupied[level] &= ~(1L << slot);
+		if (this.payloads[level][slot].length > 64) {
+			this.payloads[level][slot] = null;
+			this.times[level][slot] = null;
+		}
+	}
+}
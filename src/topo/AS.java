@@ -1,7 +1,6 @@
 package topo;
 
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Class that does two things. First, it deals with the topology bookkeeping the
@@ -15,24 +14,90 @@ import java.util.concurrent.LinkedBlockingQueue;
 public abstract class AS {
 
 	private int asn;
+	private ASNIndex asnIndex;
+	private int denseID;
 	private boolean wardenAS;
 	private Set<AS> customers;
 	private Set<AS> peers;
 	private Set<AS> providers;
 	private int numberOfIPs;
 
-	private HashMap<Integer, List<BGPPath>> adjInRib;
-	private HashMap<Integer, List<BGPPath>> inRib;
-	private HashMap<Integer, Set<AS>> adjOutRib;
-	private HashMap<Integer, BGPPath> locRib;
-	private HashSet<Integer> dirtyDest;
+	/**
+	 * Hash based lookup of neighbor relationships, built when the topology is
+	 * frozen, null if relationships have changed since then
+	 */
+	private NeighborIndex relIndex;
+
+	/*
+	 * Per destination RIB state, indexed by the dense id of the destination
+	 * less the start of the topology's RIB range (see ASNIndex.setRIBRange).
+	 * These are allocated the first time the AS handles a message, since
+	 * pruned ASes never route. The inRib entries double as the
+	 * Adj-RIB-In, as each candidate route is kept under the neighbor slot it
+	 * was learned from. Since every neighbor of a class gets the same thing,
+	 * the Adj-RIB-Out is just which classes of neighbor got our last route
+	 * (one of the ADV_* codes).
+	 */
+	private DestRib[] inRib;
+	private byte[] adjOut;
+	private BGPPath[] locRib;
+	private BitSet dirtyDest;
+	private BitSet touchedDest;
 
-	private Queue<BGPUpdate> incUpdateQueue;
+	/**
+	 * Converged RIBs loaded from disk, answers route lookups when we never
+	 * ran BGP ourself (see MappedRIB)
+	 */
+	private MappedRIB mappedRib;
+
+	private UpdateMailbox incUpdateQueue;
+
+	/*
+	 * Our state as of the last checkpoint barrier, captured the first time we
+	 * changed after it (or when the checkpoint writer got to us), and the
+	 * epoch of that checkpoint, see takeCheckpoint
+	 */
+	private volatile int capturedEpoch;
+	private ASCheckpoint capturedState;
 
 	public static final int PROIVDER_CODE = -1;
 	public static final int PEER_CODE = 0;
 	public static final int CUSTOMER_CODE = 1;
 
+	/**
+	 * Neighbor slot used for routes we originate ourself
+	 */
+	private static final int SELF_SLOT = -2;
+
+	/*
+	 * Who our current route for a destination was sent to, no one, just
+	 * customers, or everyone
+	 */
+	private static final byte ADV_NONE = 0;
+	private static final byte ADV_CUSTOMERS = 1;
+	private static final byte ADV_ALL = 2;
+
+	/*
+	 * Types of incoming update mailbox
+	 */
+	public static final int FIFO_MAILBOX = 0;
+	public static final int COALESCING_MAILBOX = 1;
+	public static final int MPSC_MAILBOX = 2;
+
+	/**
+	 * Controls which mailbox ASes built from now on get
+	 */
+	private static int mailboxType = AS.MPSC_MAILBOX;
+
+	/**
+	 * Sink that puts updates straight into the neighbor's mailbox
+	 */
+	public static final UpdateSink DIRECT_SINK = new UpdateSink() {
+		public void deliver(AS target, BGPUpdate update) {
+			target.receiveUpdate(update);
+		}
+	};
+
 	public AS(int myASN) {
 		this.asn = myASN;
 		this.wardenAS = false;
@@ -40,13 +105,293 @@ public abstract class AS {
 		this.peers = new HashSet<AS>();
 		this.providers = new HashSet<AS>();
 
-		this.adjInRib = new HashMap<Integer, List<BGPPath>>();
-		this.inRib = new HashMap<Integer, List<BGPPath>>();
-		this.adjOutRib = new HashMap<Integer, Set<AS>>();
-		this.locRib = new HashMap<Integer, BGPPath>();
+		this.inRib = null;
+		this.adjOut = null;
+		this.locRib = null;
+
+		if (AS.mailboxType == AS.COALESCING_MAILBOX) {
+			this.incUpdateQueue = new CoalescingMailbox();
+		} else if (AS.mailboxType == AS.FIFO_MAILBOX) {
+			this.incUpdateQueue = new FIFOMailbox();
+		} else {
+			this.incUpdateQueue = new MPSCMailbox();
+		}
+		this.dirtyDest = new BitSet();
+		this.touchedDest = new BitSet();
+		this.capturedEpoch = 0;
+		this.capturedState = null;
+	}
+
+	/**
+	 * Sets the type of incoming update mailbox used by ASes created after this
+	 * call, so this needs to happen before the topology is parsed.
+	 * 
+	 * @param type
+	 *            - one of FIFO_MAILBOX (every update gets its own slot in
+	 *            line), COALESCING_MAILBOX (pending updates from the same peer
+	 *            about the same destination replace each other), or
+	 *            MPSC_MAILBOX (lock free, the default)
+	 */
+	public static void setMailboxType(int type) {
+		AS.mailboxType = type;
+	}
+
+	/**
+	 * Called by the ASNIndex this AS belongs to when it hands out (or
+	 * renumbers) dense ids.
+	 * 
+	 * @param index
+	 *            - the index of the topology this AS is in
+	 * @param id
+	 *            - this AS's dense id
+	 */
+	void setDenseID(ASNIndex index, int id) {
+		this.asnIndex = index;
+		this.denseID = id;
+	}
+
+	/**
+	 * Allocates the per destination RIB arrays, sized by the topology's RIB
+	 * range (normally every routed AS). Safe to call more than once.
+	 */
+	private void buildRIBs() {
+		if (this.locRib != null) {
+			return;
+		}
+
+		int destCount = this.asnIndex.getRIBSize();
+		this.inRib = new DestRib[destCount];
+		this.adjOut = new byte[destCount];
+		this.locRib = new BGPPath[destCount];
+	}
+
+	/**
+	 * Throws away all per destination RIB state (and any dirty
+	 * destinations), the arrays are allocated again, sized by the then
+	 * current RIB range, the next time the AS routes.
+	 */
+	public void dropRIBs() {
+		this.inRib = null;
+		this.adjOut = null;
+		this.locRib = null;
+		this.dirtyDest.clear();
+		this.touchedDest.clear();
+	}
+
+	/**
+	 * Maps a destination dense id to its position in the RIB arrays.
+	 */
+	private int ribIndex(int destID) {
+		return destID - this.asnIndex.getRIBStart();
+	}
+
+	/**
+	 * Installs a converged set of candidate routes for a destination, as
+	 * computed elsewhere (say by another process), replacing whatever we had.
+	 * The best route is picked from the candidates just as if they had been
+	 * advertised to us, nothing is marked dirty, and the route is taken to
+	 * have already been sent to our neighbors.
+	 * 
+	 * @param destID
+	 *            - the dense id of the destination, must be in the RIB range
+	 * @param candidates
+	 *            - the routes our neighbors advertised (plus our own origin
+	 *            route if we are the destination)
+	 */
+	public void loadRoutes(int destID, List<BGPPath> candidates) {
+		this.buildRIBs();
+		DestRib destRib = new DestRib();
+		for (BGPPath tPath : candidates) {
+			int slot = this.getSlot(tPath.getNextHop());
+			destRib.put(slot, tPath, DestRib.buildKey(this.getSlotRel(slot), tPath));
+		}
+		int ribIdx = this.ribIndex(destID);
+		this.inRib[ribIdx] = destRib;
+		this.refreshBestPath(destID);
+		this.adjOut[ribIdx] = this.getAdvClass(this.locRib[ribIdx]);
+	}
+
+	/**
+	 * Fetches our candidates for a destination for a RIBFork to hold on to,
+	 * marking them shared so we never change them again.
+	 * 
+	 * @param destID
+	 *            - the dense id of the destination, must be in the RIB range
+	 * @return - the candidates, null if we have never heard of the
+	 *         destination
+	 */
+	DestRib shareDestRib(int destID) {
+		if (this.inRib == null) {
+			return null;
+		}
+		DestRib destRib = this.inRib[this.ribIndex(destID)];
+		if (destRib != null) {
+			destRib.share();
+		}
+		return destRib;
+	}
+
+	/**
+	 * Fetches the installed route for a destination without going through
+	 * the ASN lookup, for RIBFork.
+	 */
+	BGPPath getInstalledPath(int destID) {
+		if (this.locRib == null) {
+			return null;
+		}
+		return this.locRib[this.ribIndex(destID)];
+	}
 
-		this.incUpdateQueue = new LinkedBlockingQueue<BGPUpdate>();
-		this.dirtyDest = new HashSet<Integer>();
+	/**
+	 * Fetches who our route for a destination was last sent to (an ADV_*
+	 * code), for RIBFork.
+	 */
+	byte getAdvState(int destID) {
+		if (this.adjOut == null) {
+			return AS.ADV_NONE;
+		}
+		return this.adjOut[this.ribIndex(destID)];
+	}
+
+	/**
+	 * Puts back the RIB state a RIBFork holds for a destination. The
+	 * candidates stay shared, so they are copied before they change.
+	 * 
+	 * @param destID
+	 *            - the dense id of the destination, must be in the RIB range
+	 * @param destRib
+	 *            - the (shared) candidates, or null
+	 * @param installedPath
+	 *            - the best route that goes with them
+	 * @param advState
+	 *            - who the route was sent to
+	 */
+	void restoreDest(int destID, DestRib destRib, BGPPath installedPath, byte advState) {
+		this.buildRIBs();
+		int ribIdx = this.ribIndex(destID);
+		this.inRib[ribIdx] = destRib;
+		this.locRib[ribIdx] = installedPath;
+		this.adjOut[ribIdx] = advState;
+	}
+
+	/**
+	 * Fetches the neighbor index, which is immutable, so a RIBFork can hold on
+	 * to our current relationships (and the slots our candidates are filed
+	 * under).
+	 */
+	NeighborIndex shareRelations() {
+		return this.getRelIndex();
+	}
+
+	/**
+	 * Puts back relationships a RIBFork holds, the relationship sets are
+	 * rebuilt from the index and the index itself is reused so the slots of
+	 * the RIBFork's candidates line up. The AS on the other end of every
+	 * changed relationship must be restored as well.
+	 * 
+	 * @param index
+	 *            - the neighbor index to restore
+	 */
+	void restoreRelations(NeighborIndex index) {
+		this.customers.clear();
+		this.peers.clear();
+		this.providers.clear();
+		for (int slot = 0; slot < index.size(); slot++) {
+			if (index.getRel(slot) == AS.CUSTOMER_CODE) {
+				this.customers.add(index.getNeighbor(slot));
+			} else if (index.getRel(slot) == AS.PEER_CODE) {
+				this.peers.add(index.getNeighbor(slot));
+			} else {
+				this.providers.add(index.getNeighbor(slot));
+			}
+		}
+		this.relIndex = index;
+	}
+
+	/**
+	 * Hands over our state as of the barrier a checkpoint was started at (see
+	 * ASNIndex.beginCheckpoint), for the checkpoint writer. This can be called
+	 * while we keep routing, if we haven't changed since the barrier our live
+	 * state is captured now, otherwise it was captured just before we first
+	 * changed.
+	 * 
+	 * @param epoch
+	 *            - the epoch returned by beginCheckpoint
+	 * @return - the checkpoint of our state
+	 */
+	public synchronized ASCheckpoint takeCheckpoint(int epoch) {
+		this.captureCheckpoint(epoch);
+		ASCheckpoint state = this.capturedState;
+		this.capturedState = null;
+		return state;
+	}
+
+	/**
+	 * Called before anything that changes our BGP state or looks in the
+	 * mailbox (which capturing briefly empties). If a checkpoint was started
+	 * since we were last captured, we are captured first, so the checkpoint
+	 * sees us as we were at its barrier.
+	 */
+	private void preserveCheckpoint() {
+		int epoch = this.asnIndex.getCheckpointEpoch();
+		if (this.capturedEpoch != epoch) {
+			this.captureCheckpoint(epoch);
+		}
+	}
+
+	private synchronized void captureCheckpoint(int epoch) {
+		if (this.capturedEpoch != epoch) {
+			this.capturedState = this.checkpoint();
+			this.capturedEpoch = epoch;
+		}
+	}
+
+	/**
+	 * Captures our complete BGP state for a checkpoint. Anyone else about to
+	 * change our state or look in the mailbox waits on captureCheckpoint, so
+	 * the pending updates can be taken out of the mailbox and put straight
+	 * back, in order.
+	 * 
+	 * @return - the checkpoint of our state
+	 */
+	private ASCheckpoint checkpoint() {
+		List<BGPUpdate> pending = new ArrayList<BGPUpdate>();
+		this.incUpdateQueue.drainTo(pending, 0);
+		for (BGPUpdate tUpdate : pending) {
+			this.incUpdateQueue.add(tUpdate);
+		}
+
+		int ribSize = this.asnIndex.getRIBSize();
+		DestRib[] ribs = new DestRib[ribSize];
+		byte[] advStates = new byte[ribSize];
+		if (this.inRib != null) {
+			for (int ribIdx = 0; ribIdx < ribSize; ribIdx++) {
+				if (this.inRib[ribIdx] != null) {
+					this.inRib[ribIdx].share();
+					ribs[ribIdx] = this.inRib[ribIdx];
+				}
+			}
+			System.arraycopy(this.adjOut, 0, advStates, 0, ribSize);
+		}
+		return new ASCheckpoint(this, this.asnIndex.getRIBStart(), ribs, advStates, (BitSet) this.dirtyDest.clone(),
+				pending);
+	}
+
+	/**
+	 * Puts back who our route for a destination was sent to, when restoring
+	 * from a checkpoint.
+	 */
+	void restoreAdvState(int destID, byte advState) {
+		this.buildRIBs();
+		this.adjOut[this.ribIndex(destID)] = advState;
+	}
+
+	/**
+	 * Has route lookups answered from a RIB snapshot, as long as we hold no
+	 * RIBs of our own.
+	 */
+	void attachMappedRIB(MappedRIB mappedRib) {
+		this.mappedRib = mappedRib;
 	}
 
 	/**
@@ -109,6 +454,26 @@ public abstract class AS {
 			System.err.println("WTF bad relation: " + myRelationToThem);
 			System.exit(-1);
 		}
+		this.relIndex = null;
+		otherAS.relIndex = null;
+	}
+
+	/**
+	 * Method that removes the relationship (whatever it is) between two ASes,
+	 * on both sides. This is safe to call for ASes that are not neighbors.
+	 * 
+	 * @param otherAS
+	 *            - the AS this AS no longer has a relationship with
+	 */
+	public void removeRelation(AS otherAS) {
+		this.customers.remove(otherAS);
+		this.peers.remove(otherAS);
+		this.providers.remove(otherAS);
+		otherAS.customers.remove(this);
+		otherAS.peers.remove(this);
+		otherAS.providers.remove(this);
+		this.relIndex = null;
+		otherAS.relIndex = null;
 	}
 
 	/**
@@ -123,9 +488,81 @@ public abstract class AS {
 		}
 		for (AS tPeer : this.peers) {
 			tPeer.peers.remove(this);
+			tPeer.relIndex = null;
+		}
+		for (AS tCust : this.customers) {
+			tCust.relIndex = null;
+		}
+		for (AS tProv : this.providers) {
+			tProv.relIndex = null;
 		}
 	}
 
+	/**
+	 * Builds the neighbor relationship index for this AS. This should be
+	 * called once the topology is done being built and pruned, after this
+	 * relationship lookups are constant time. If relationships change later
+	 * the index is dropped and rebuilt on the next lookup.
+	 */
+	public void freezeRelations() {
+		this.relIndex = new NeighborIndex(this);
+	}
+
+	/**
+	 * Rebuilds the neighbor index after relationships changed on an AS that
+	 * already holds routes. Candidates are refiled under their next hop's new
+	 * slot and re-ranked by its new relationship, candidates from ASes that
+	 * are no longer neighbors are dropped (as if they had been withdrawn).
+	 * Destinations whose best route (or who it can be exported to) changed
+	 * are marked dirty, so the change goes out on our next MRAI.
+	 * 
+	 * @return - the dense ids of the destinations that were marked dirty
+	 */
+	public BitSet refreshRelations() {
+		this.preserveCheckpoint();
+		this.relIndex = new NeighborIndex(this);
+		BitSet changed = new BitSet();
+		if (this.inRib == null) {
+			return changed;
+		}
+
+		int ribStart = this.asnIndex.getRIBStart();
+		for (int ribIdx = 0; ribIdx < this.inRib.length; ribIdx++) {
+			if (this.inRib[ribIdx] == null) {
+				continue;
+			}
+
+			DestRib destRib = new DestRib();
+			for (BGPPath tPath : this.inRib[ribIdx].getPaths()) {
+				int slot;
+				if (tPath.getNextHop() == this.asn) {
+					slot = AS.SELF_SLOT;
+				} else {
+					slot = this.relIndex.getSlot(tPath.getNextHop());
+					if (slot == NeighborIndex.NOT_NEIGHBOR) {
+						continue;
+					}
+				}
+				destRib.put(slot, tPath, DestRib.buildKey(this.getSlotRel(slot), tPath));
+			}
+			this.inRib[ribIdx] = destRib;
+
+			/*
+			 * Even if the best route is the same, the new relationship might
+			 * change who it can be exported to
+			 */
+			BGPPath oldBest = this.locRib[ribIdx];
+			this.refreshBestPath(ribStart + ribIdx);
+			BGPPath newBest = this.locRib[ribIdx];
+			boolean routeChanged = (oldBest == null || newBest == null) ? oldBest != newBest : !oldBest.equals(newBest);
+			if (routeChanged || this.adjOut[ribIdx] != this.getAdvClass(newBest)) {
+				this.dirtyDest.set(ribStart + ribIdx);
+				changed.set(ribStart + ribIdx);
+			}
+		}
+		return changed;
+	}
+
 	/**
 	 * Public interface to force the router to handle one message in it's update
 	 * queue. This IS safe if the update queue is empty (the function) returns
@@ -135,71 +572,220 @@ public abstract class AS {
 	 * expiration.
 	 */
 	public void handleAdvertisement() {
+		this.preserveCheckpoint();
 		BGPUpdate nextUpdate = this.incUpdateQueue.poll();
 		if (nextUpdate == null) {
 			return;
 		}
 
-		/*
-		 * Fetch some fields in the correct form
-		 */
-		int advPeer, dest;
-		if (nextUpdate.isWithdrawal()) {
-			advPeer = nextUpdate.getWithdrawer().asn;
-			dest = nextUpdate.getWithdrawnDest();
-		} else {
-			advPeer = nextUpdate.getPath().getNextHop();
-			dest = nextUpdate.getPath().getDest();
+		this.recalcBestPath(this.applyUpdate(nextUpdate));
+	}
+
+	/**
+	 * Public interface to force the router to handle a batch of messages from
+	 * it's update queue in one go. All updates are applied to the inRib first,
+	 * then the best path is recalculated once for each destination that was
+	 * touched, so a destination that gets many updates in the batch is only
+	 * re-evaluated (and marked dirty) once. Like handleAdvertisement this
+	 * does not send advertisements.
+	 * 
+	 * @param maxBatch
+	 *            - the most messages to handle, 0 or less drains the whole
+	 *            queue
+	 * @return - the number of messages handled
+	 */
+	public int handleAdvertisements(int maxBatch) {
+		this.preserveCheckpoint();
+		List<BGPUpdate> batch = new ArrayList<BGPUpdate>();
+		int handled = this.incUpdateQueue.drainTo(batch, maxBatch);
+		for (BGPUpdate tUpdate : batch) {
+			this.touchedDest.set(this.applyUpdate(tUpdate));
 		}
 
-		/*
-		 * Setup some objects if this the first time seeing a peer/dest
-		 */
-		if (this.adjInRib.get(advPeer) == null) {
-			this.adjInRib.put(advPeer, new ArrayList<BGPPath>());
+		for (int tDestID = this.touchedDest.nextSetBit(0); tDestID >= 0; tDestID = this.touchedDest
+				.nextSetBit(tDestID + 1)) {
+			this.recalcBestPath(tDestID);
+		}
+		this.touchedDest.clear();
+		return handled;
+	}
+
+	/**
+	 * Removes a batch of messages from the update queue without handling them,
+	 * for schedulers that split the work of a busy AS across threads by
+	 * destination, see applyUpdates.
+	 * 
+	 * @param maxBatch
+	 *            - the most messages to take, 0 or less takes them all
+	 * @return - the messages, in the order they would have been handled
+	 */
+	public List<BGPUpdate> takeUpdates(int maxBatch) {
+		this.preserveCheckpoint();
+		this.buildRIBs();
+		List<BGPUpdate> batch = new ArrayList<BGPUpdate>();
+		this.incUpdateQueue.drainTo(batch, maxBatch);
+		return batch;
+	}
+
+	/**
+	 * Handles updates taken with takeUpdates, all of which must be for
+	 * destinations with dense ids in [startDestID, endDestID). Only RIB state
+	 * for those destinations is touched, so calls for disjoint ranges can run
+	 * at the same time. Destinations whose best path changed are returned
+	 * instead of being marked dirty, hand them to markDirty once every range
+	 * is done.
+	 * 
+	 * @param updates
+	 *            - the updates to handle
+	 * @param startDestID
+	 *            - the first destination id in the range
+	 * @param endDestID
+	 *            - one past the last destination id in the range
+	 * @return - the destinations whose installed route changed
+	 */
+	public BitSet applyUpdates(List<BGPUpdate> updates, int startDestID, int endDestID) {
+		this.preserveCheckpoint();
+		BitSet touched = new BitSet();
+		for (BGPUpdate tUpdate : updates) {
+			touched.set(this.applyUpdate(tUpdate));
+		}
+
+		BitSet changed = new BitSet();
+		int tDestID = touched.nextSetBit(startDestID);
+		while (tDestID >= 0 && tDestID < endDestID) {
+			if (this.refreshBestPath(tDestID)) {
+				changed.set(tDestID);
+			}
+			tDestID = touched.nextSetBit(tDestID + 1);
+		}
+		return changed;
+	}
+
+	/**
+	 * Marks destinations as needing to be sent at the next MRAI expiration.
+	 * 
+	 * @param changed
+	 *            - the destinations, as returned by applyUpdates
+	 */
+	public void markDirty(BitSet changed) {
+		this.preserveCheckpoint();
+		this.dirtyDest.or(changed);
+	}
+
+	/**
+	 * Handles one update immediately, bypassing the mailbox and the dirty set.
+	 * Only RIB state for the update's destination is touched, so calls about
+	 * different destinations can run at the same time, as long as the RIBs
+	 * were already allocated (takeUpdates does this).
+	 * 
+	 * @param update
+	 *            - the update to handle
+	 * @return - true if our installed route for the destination changed
+	 */
+	public boolean handleUpdate(BGPUpdate update) {
+		this.preserveCheckpoint();
+		return this.refreshBestPath(this.applyUpdate(update));
+	}
+
+	/**
+	 * Sends our installed route for one destination to the neighbors valley
+	 * free routing lets us send it to, whether or not the destination is
+	 * dirty.
+	 * 
+	 * @param destID
+	 *            - the dense id of the destination
+	 * @param sink
+	 *            - where the updates we send go
+	 */
+	public void sendRoute(int destID, UpdateSink sink) {
+		this.preserveCheckpoint();
+		this.sendUpdate(destID, sink);
+	}
+
+	/**
+	 * Brings a single neighbor up to date with our installed route for one
+	 * destination, used when the link to that neighbor was just added or
+	 * its relationship changed. The neighbor gets our route if valley free
+	 * routing lets us send it to them, otherwise it gets a withdrawal if it
+	 * holds a route from us.
+	 * 
+	 * @param neighbor
+	 *            - the neighbor to update, must be a current neighbor
+	 * @param destID
+	 *            - the dense id of the destination
+	 * @param sink
+	 *            - where the update goes
+	 * @return - true if an update was sent
+	 */
+	public boolean sendRouteTo(AS neighbor, int destID, UpdateSink sink) {
+		int ribIdx = this.ribIndex(destID);
+		BGPPath pathOfMerit = null;
+		if (this.locRib != null) {
+			pathOfMerit = this.locRib[ribIdx];
 		}
-		if (this.inRib.get(dest) == null) {
-			this.inRib.put(dest, new ArrayList<BGPPath>());
+
+		if (pathOfMerit != null
+				&& (this.getRel(neighbor.asn) == AS.CUSTOMER_CODE || this.isExportedToAll(pathOfMerit))) {
+			sink.deliver(neighbor, new BGPUpdate(pathOfMerit.prependASToPath(this.asn), destID));
+			return true;
+		}
+
+		if (neighbor.inRib != null && neighbor.inRib[ribIdx] != null
+				&& neighbor.inRib[ribIdx].hasSlot(neighbor.getSlot(this.asn))) {
+			sink.deliver(neighbor, new BGPUpdate(this.asnIndex.getASN(destID), destID, this));
+			return true;
 		}
+		return false;
+	}
 
+	/**
+	 * Applies a single update to the inRib, without re-evaluating the best
+	 * path for the destination.
+	 * 
+	 * @param nextUpdate
+	 *            - the update to apply
+	 * @return - the dense id of the destination the update is about
+	 */
+	private int applyUpdate(BGPUpdate nextUpdate) {
 		/*
-		 * Hunt for an existing route in the adjInRib. If it's a withdrawl we
-		 * want to remove it, and if it is an adv and a route already exists we
-		 * then have an implicit withdrawl
+		 * Fetch some fields in the correct form
 		 */
-		boolean routeRemoved = false;
-		List<BGPPath> advRibList = this.adjInRib.get(advPeer);
-		for (int counter = 0; counter < advRibList.size(); counter++) {
-			if (advRibList.get(counter).getDest() == dest) {
-				advRibList.remove(counter);
-				routeRemoved = true;
-				break;
-			}
+		int advPeer;
+		int destID = nextUpdate.getDestID();
+		if (nextUpdate.isWithdrawal()) {
+			advPeer = nextUpdate.getWithdrawer().asn;
+		} else {
+			advPeer = nextUpdate.getPath().getNextHop();
 		}
+		int advSlot = this.getSlot(advPeer);
 
 		/*
-		 * If there was a rotue to remove from the adjInRib, clean up the inRib
-		 * as well
+		 * Setup some objects if this the first time seeing a dest, if a
+		 * RIBFork holds the candidates change a copy of them instead
 		 */
-		List<BGPPath> destRibList = this.inRib.get(dest);
-		if (routeRemoved) {
-			for (int counter = 0; counter < destRibList.size(); counter++) {
-				if (destRibList.get(counter).getNextHop() == advPeer) {
-					destRibList.remove(counter);
-					break;
-				}
-			}
+		this.buildRIBs();
+		int ribIdx = this.ribIndex(destID);
+		if (this.inRib[ribIdx] == null) {
+			this.inRib[ribIdx] = new DestRib();
+		} else if (this.inRib[ribIdx].isShared()) {
+			this.inRib[ribIdx] = this.inRib[ribIdx].copy();
 		}
 
 		/*
-		 * If it is a loop don't add it to ribs
+		 * The peer's route (if any) lives in its slot of the destination's
+		 * RIB. If it's a withdrawl (or a loop, which we treat as one) we want
+		 * to remove it, and if it is an adv it replaces what the peer told us
+		 * before (implicit withdrawl)
 		 */
-		if ((!nextUpdate.isWithdrawal()) && (!nextUpdate.getPath().containsLoop(this.asn))) {
-			advRibList.add(nextUpdate.getPath());
-			destRibList.add(nextUpdate.getPath());
+		DestRib destRib = this.inRib[ribIdx];
+		if (nextUpdate.isWithdrawal() || nextUpdate.getPath().containsLoop(this.asn)) {
+			destRib.removeSlot(advSlot);
+		} else {
+			destRib.put(advSlot, nextUpdate.getPath(), DestRib.buildKey(this.getSlotRel(advSlot), nextUpdate
+					.getPath()));
 		}
 
-		recalcBestPath(dest);
+		return destID;
 	}
 
 	/**
@@ -207,12 +793,77 @@ public abstract class AS {
 	 * MRAI timer, resulting in updates being sent to this router's peers.
 	 */
 	public void mraiExpire() {
-		for (int tDest : this.dirtyDest) {
-			this.sendUpdate(tDest);
+		this.mraiExpire(AS.DIRECT_SINK);
+	}
+
+	/**
+	 * Triggers an expiration of THIS ROUTER'S MRAI timer, handing the
+	 * resulting updates to the given sink instead of straight to the peers'
+	 * mailboxes.
+	 * 
+	 * @param sink
+	 *            - where the updates we send go
+	 */
+	public void mraiExpire(UpdateSink sink) {
+		this.preserveCheckpoint();
+		for (int tDestID = this.dirtyDest.nextSetBit(0); tDestID >= 0; tDestID = this.dirtyDest
+				.nextSetBit(tDestID + 1)) {
+			this.sendUpdate(tDestID, sink);
+		}
+		this.dirtyDest.clear();
+	}
+
+	/**
+	 * Sends updates for the dirty destinations with dense ids in [startDestID,
+	 * endDestID), without clearing them. Calls for disjoint ranges can run at
+	 * the same time (given a thread safe sink), once every range has been sent
+	 * call clearDirty.
+	 * 
+	 * @param sink
+	 *            - where the updates we send go
+	 * @param startDestID
+	 *            - the first destination id in the range
+	 * @param endDestID
+	 *            - one past the last destination id in the range
+	 */
+	public void mraiExpire(UpdateSink sink, int startDestID, int endDestID) {
+		this.preserveCheckpoint();
+		int tDestID = this.dirtyDest.nextSetBit(startDestID);
+		while (tDestID >= 0 && tDestID < endDestID) {
+			this.sendUpdate(tDestID, sink);
+			tDestID = this.dirtyDest.nextSetBit(tDestID + 1);
 		}
+	}
+
+	/**
+	 * Clears the dirty destinations after a split MRAI expiration.
+	 */
+	public void clearDirty() {
+		this.preserveCheckpoint();
 		this.dirtyDest.clear();
 	}
 
+	/**
+	 * Fetches the number of destinations waiting to be sent at the next MRAI
+	 * expiration.
+	 * 
+	 * @return - the number of dirty destinations
+	 */
+	public int getDirtyCount() {
+		return this.dirtyDest.cardinality();
+	}
+
+	/**
+	 * Adds an update sent to us by a neighbor to our incoming mailbox.
+	 * 
+	 * @param update
+	 *            - the update
+	 */
+	public void receiveUpdate(BGPUpdate update) {
+		this.preserveCheckpoint();
+		this.incUpdateQueue.add(update);
+	}
+
 	/**
 	 * Public interface to be used by OTHER BGP Speakers to advertise a change
 	 * in a route to a destination.
@@ -221,7 +872,8 @@ public abstract class AS {
 	 *            - the route being advertised
 	 */
 	public void advPath(BGPPath incPath) {
-		this.incUpdateQueue.add(new BGPUpdate(incPath));
+		this.preserveCheckpoint();
+		this.incUpdateQueue.add(new BGPUpdate(incPath, this.asnIndex.getID(incPath.getDest())));
 	}
 
 	/**
@@ -234,7 +886,8 @@ public abstract class AS {
 	 *            - the destination of the route withdrawn
 	 */
 	public void withdrawPath(AS peer, int dest) {
-		this.incUpdateQueue.add(new BGPUpdate(dest, peer));
+		this.preserveCheckpoint();
+		this.incUpdateQueue.add(new BGPUpdate(dest, this.asnIndex.getID(dest), peer));
 	}
 
 	/**
@@ -244,6 +897,7 @@ public abstract class AS {
 	 * @return true if items are in the incoming work queue, false otherwise
 	 */
 	public boolean hasWorkToDo() {
+		this.preserveCheckpoint();
 		return !this.incUpdateQueue.isEmpty();
 	}
 
@@ -264,35 +918,58 @@ public abstract class AS {
 	 * @return the number of pending BGP messages
 	 */
 	public long getPendingMessageCount() {
-		return (long) this.incUpdateQueue.size();
+		this.preserveCheckpoint();
+		return this.incUpdateQueue.size();
+	}
+
+	/**
+	 * Fetches the number of bgp updates that were dropped unprocessed because a
+	 * newer update from the same peer about the same destination replaced
+	 * them. This is always 0 unless coalescing mailboxes are turned on.
+	 * 
+	 * @return the number of absorbed BGP messages
+	 */
+	public long getAbsorbedUpdateCount() {
+		return this.incUpdateQueue.getAbsorbedCount();
 	}
 
 	/**
 	 * Function that forces the router to recalculate what our current valid and
 	 * best path is. This should be called when a route for the given
-	 * destination has changed in any way.
+	 * destination has changed in any way. The inRib tracks its best candidate
+	 * as routes are added and removed, so this is constant time.
 	 * 
-	 * @param dest
-	 *            - the destination network that has had a route change
+	 * @param destID
+	 *            - the dense id of the destination network that has had a
+	 *            route change
 	 */
-	private void recalcBestPath(int dest) {
-		boolean changed;
-
-		List<BGPPath> possList = this.inRib.get(dest);
-		BGPPath currentBest = this.pathSelection(possList);
-
-		BGPPath currentInstall = this.locRib.get(dest);
-		changed = (currentInstall == null || !currentBest.equals(currentInstall));
-		this.locRib.put(dest, currentBest);
-
+	private void recalcBestPath(int destID) {
 		/*
 		 * If we have a new path, mark that we have a dirty destination
 		 */
-		if (changed) {
-			this.dirtyDest.add(dest);
+		if (this.refreshBestPath(destID)) {
+			this.dirtyDest.set(destID);
 		}
 	}
 
+	/**
+	 * Installs the current best candidate for a destination in the locRib,
+	 * without marking anything dirty. Only touches state for the given
+	 * destination.
+	 * 
+	 * @param destID
+	 *            - the dense id of the destination network
+	 * @return - true if the installed route changed (and so needs to be sent)
+	 */
+	private boolean refreshBestPath(int destID) {
+		int ribIdx = this.ribIndex(destID);
+		BGPPath currentBest = this.inRib[ribIdx].getBest();
+
+		BGPPath currentInstall = this.locRib[ribIdx];
+		this.locRib[ribIdx] = currentBest;
+		return (currentInstall == null || currentBest == null || !currentBest.equals(currentInstall));
+	}
+
 	/**
 	 * Method that handles actual BGP path selection. Slightly abbreviated, does
 	 * AS relation, path length, then tie break.
@@ -303,28 +980,16 @@ public abstract class AS {
 	 */
 	private BGPPath pathSelection(List<BGPPath> possList) {
 		BGPPath currentBest = null;
-		int currentRel = -4;
+		long currentKey = Long.MAX_VALUE;
 		for (BGPPath tPath : possList) {
-			if (currentBest == null) {
-				currentBest = tPath;
-				currentRel = this.getRel(currentBest.getNextHop());
+			if (tPath == null) {
 				continue;
 			}
 
-			int newRel = this.getRel(tPath.getNextHop());
-			if (newRel > currentRel) {
+			long newKey = DestRib.buildKey(this.getRel(tPath.getNextHop()), tPath);
+			if (currentBest == null || newKey < currentKey) {
 				currentBest = tPath;
-				currentRel = newRel;
-				continue;
-			}
-
-			if (newRel == currentRel) {
-				if (currentBest.getPathLength() > tPath.getPathLength()
-						|| (currentBest.getPathLength() == tPath.getPathLength() && tPath.getNextHop() < currentBest
-								.getNextHop())) {
-					currentBest = tPath;
-					currentRel = newRel;
-				}
+				currentKey = newKey;
 			}
 		}
 
@@ -335,40 +1000,81 @@ public abstract class AS {
 	 * Internal function to deal with the sending of advertisements or explicit
 	 * withdrawals of routes. Does valley free routing.
 	 * 
-	 * @param dest
-	 *            - the destination of the route we need to advertise a change
-	 *            in
+	 * @param destID
+	 *            - the dense id of the destination of the route we need to
+	 *            advertise a change in
+	 * @param sink
+	 *            - where the updates are delivered
 	 */
-	private void sendUpdate(int dest) {
-		Set<AS> prevAdvedTo = this.adjOutRib.get(dest);
-		Set<AS> newAdvTo = new HashSet<AS>();
-		BGPPath pathOfMerit = this.locRib.get(dest);
+	private void sendUpdate(int destID, UpdateSink sink) {
+		int ribIdx = this.ribIndex(destID);
+		BGPPath pathOfMerit = this.locRib[ribIdx];
+		byte advTo = this.getAdvClass(pathOfMerit);
 
-		if (pathOfMerit != null) {
-			BGPPath pathToAdv = pathOfMerit.deepCopy();
-			pathToAdv.prependASToPath(this.asn);
+		if (advTo != AS.ADV_NONE) {
+			/*
+			 * Paths and updates are immutable, so every neighbor gets the same
+			 * update object
+			 */
+			BGPUpdate advUpdate = new BGPUpdate(pathOfMerit.prependASToPath(this.asn), destID);
 			for (AS tCust : this.customers) {
-				tCust.advPath(pathToAdv);
-				newAdvTo.add(tCust);
+				sink.deliver(tCust, advUpdate);
 			}
-			if (pathOfMerit.getDest() == this.asn || (this.getRel(pathOfMerit.getNextHop()) == 1)) {
+			if (advTo == AS.ADV_ALL) {
 				for (AS tPeer : this.peers) {
-					tPeer.advPath(pathToAdv);
-					newAdvTo.add(tPeer);
+					sink.deliver(tPeer, advUpdate);
 				}
 				for (AS tProv : this.providers) {
-					tProv.advPath(pathToAdv);
-					newAdvTo.add(tProv);
+					sink.deliver(tProv, advUpdate);
 				}
 			}
 		}
 
-		if (prevAdvedTo != null) {
-			prevAdvedTo.removeAll(newAdvTo);
-			for (AS tAS : prevAdvedTo) {
-				tAS.withdrawPath(this, dest);
+		/*
+		 * Withdraw from anyone who had our old route but doesn't get the new
+		 * one
+		 */
+		byte prevAdvTo = this.adjOut[ribIdx];
+		if (prevAdvTo > advTo) {
+			BGPUpdate wdUpdate = new BGPUpdate(this.asnIndex.getASN(destID), destID, this);
+			if (advTo == AS.ADV_NONE) {
+				for (AS tCust : this.customers) {
+					sink.deliver(tCust, wdUpdate);
+				}
+			}
+			if (prevAdvTo == AS.ADV_ALL) {
+				for (AS tPeer : this.peers) {
+					sink.deliver(tPeer, wdUpdate);
+				}
+				for (AS tProv : this.providers) {
+					sink.deliver(tProv, wdUpdate);
+				}
 			}
 		}
+		this.adjOut[ribIdx] = advTo;
+	}
+
+	/**
+	 * Predicate to test if valley free routing lets us send a route to our
+	 * peers and providers (it's our own network or a customer route), every
+	 * route goes to our customers.
+	 */
+	private boolean isExportedToAll(BGPPath path) {
+		return path.getDest() == this.asn || this.getRel(path.getNextHop()) == AS.CUSTOMER_CODE;
+	}
+
+	/**
+	 * Fetches which neighbors valley free routing sends a route to.
+	 * 
+	 * @param path
+	 *            - the route, or null for none
+	 * @return - one of the ADV_* codes
+	 */
+	private byte getAdvClass(BGPPath path) {
+		if (path == null) {
+			return AS.ADV_NONE;
+		}
+		return this.isExportedToAll(path) ? AS.ADV_ALL : AS.ADV_CUSTOMERS;
 	}
 
 	/**
@@ -380,30 +1086,58 @@ public abstract class AS {
 	 * @return - a constant matching the relationship
 	 */
 	private int getRel(int asn) {
-		for (AS tAS : this.providers) {
-			if (tAS.getASN() == asn) {
-				return -1;
-			}
-		}
-		for (AS tAS : this.peers) {
-			if (tAS.getASN() == asn) {
-				return 0;
-			}
+		return this.getSlotRel(this.getSlot(asn));
+	}
+
+	/**
+	 * Fetches the frozen neighbor index, building it if relationships have
+	 * changed since it was last built.
+	 */
+	private NeighborIndex getRelIndex() {
+		NeighborIndex index = this.relIndex;
+		if (index == null) {
+			index = new NeighborIndex(this);
+			this.relIndex = index;
 		}
-		for (AS tAS : this.customers) {
-			if (tAS.getASN() == asn) {
-				return 1;
-			}
+		return index;
+	}
+
+	/**
+	 * Fetches the neighbor slot of the AS with the given ASN. We ourself have
+	 * a slot as well (SELF_SLOT), which is where our own origin route lives.
+	 * 
+	 * @param asn
+	 *            - the ASN of the other AS
+	 * @return - the slot of that AS
+	 */
+	private int getSlot(int asn) {
+		int slot = this.getRelIndex().getSlot(asn);
+		if (slot != NeighborIndex.NOT_NEIGHBOR) {
+			return slot;
 		}
 
 		if (asn == this.asn) {
-			return 2;
+			return AS.SELF_SLOT;
 		}
 
 		throw new RuntimeException("asked for relation on non-adj/non-self asn, depending on sim "
 				+ "this might be expected, if you're not, you should prob restart this sim...!");
 	}
 
+	/**
+	 * Fetches the relationship code for the AS in a neighbor slot.
+	 * 
+	 * @param slot
+	 *            - the neighbor slot, or SELF_SLOT
+	 * @return - a constant matching the relationship
+	 */
+	private int getSlotRel(int slot) {
+		if (slot == AS.SELF_SLOT) {
+			return 2;
+		}
+		return this.getRelIndex().getRel(slot);
+	}
+
 	/**
 	 * Fetches the currently installed best path to the destination.
 	 * 
@@ -412,7 +1146,36 @@ public abstract class AS {
 	 * @return - the current best path, or null if we have none
 	 */
 	public BGPPath getPath(int dest) {
-		return this.locRib.get(dest);
+		int destID = this.asnIndex.getID(dest);
+		if (!this.asnIndex.isInRIBRange(destID)) {
+			return null;
+		}
+		if (this.locRib == null) {
+			if (this.mappedRib != null) {
+				return this.mappedRib.getPath(this.denseID, destID);
+			}
+			return null;
+		}
+		return this.locRib[this.ribIndex(destID)];
+	}
+
+	/**
+	 * Predicate to test if we have a route to the destination, without
+	 * building the route if it comes from a RIB snapshot.
+	 * 
+	 * @param dest
+	 *            - the ASN of the destination network
+	 * @return - true if we have a best path to the destination
+	 */
+	public boolean hasPathTo(int dest) {
+		int destID = this.asnIndex.getID(dest);
+		if (!this.asnIndex.isInRIBRange(destID)) {
+			return false;
+		}
+		if (this.locRib == null) {
+			return this.mappedRib != null && this.mappedRib.hasPath(this.denseID, destID);
+		}
+		return this.locRib[this.ribIndex(destID)] != null;
 	}
 
 	/**
@@ -444,10 +1207,15 @@ public abstract class AS {
 	 *         have none
 	 */
 	public List<BGPPath> getAllPathsTo(int dest) {
-		if (!this.inRib.containsKey(dest)) {
+		int destID = this.asnIndex.getID(dest);
+		if (this.inRib == null && this.mappedRib != null && this.asnIndex.isInRIBRange(destID)) {
+			return this.mappedRib.getAllPaths(this.denseID, destID);
+		}
+		if (this.inRib == null || !this.asnIndex.isInRIBRange(destID)
+				|| this.inRib[this.ribIndex(destID)] == null) {
 			return new LinkedList<BGPPath>();
 		}
-		return this.inRib.get(dest);
+		return this.inRib[this.ribIndex(destID)].getPaths();
 	}
 
 	public Set<AS> getCustomers() {
@@ -463,7 +1231,7 @@ public abstract class AS {
 	}
 
 	public String toString() {
-		return "AS: " + this.asn;
+		return "AS: " + Integer.toUnsignedString(this.asn);
 	}
 
 	/**
@@ -490,6 +1258,24 @@ public abstract class AS {
 		return this.asn;
 	}
 
+	/**
+	 * Fetches the dense id of this AS, see ASNIndex.
+	 * 
+	 * @return - the AS's dense id
+	 */
+	public int getDenseID() {
+		return this.denseID;
+	}
+
+	/**
+	 * Fetches the ASN index of the topology this AS is part of.
+	 * 
+	 * @return - the topology's ASN index
+	 */
+	public ASNIndex getASNIndex() {
+		return this.asnIndex;
+	}
+
 	/**
 	 * Fetches the degree of this AS
 	 * 
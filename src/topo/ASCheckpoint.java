@@ -0,0 +1,316 @@
+package topo;
+
+import java.io.IOException;
+import java.util.*;
+
+import util.ChannelReader;
+import util.ChannelWriter;
+
+/**
+ * The complete BGP state of one AS at a barrier, for checkpointing a long
+ * convergence run: the candidate routes for every destination, who our route
+ * for each was last sent to, the dirty destinations, and the updates still
+ * sitting in the mailbox. Taking one is cheap, the candidates are shared with
+ * the AS (marked so it copies them before changing them again, same as for
+ * RIBFork) rather than copied, so the engine can carry on while the
+ * checkpoint is written out in the background.
+ * 
+ * The installed route isn't saved, it is always the best candidate at a
+ * barrier. On disk everything is by ASN: the AS's ASN, a record per
+ * destination it has state for (destination ASN, adj-out state, candidate
+ * routes), the dirty destination ASNs, then the pending updates in mailbox
+ * order. Routes are written against a PathTable shared by the whole
+ * checkpoint file, so each distinct route (and each suffix of one) is spelled
+ * out once, the first time it comes up, and is a single int after that. See
+ * writePath for the encoding.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class ASCheckpoint {
+
+	private final AS owner;
+	private final int ribStart;
+	private final DestRib[] ribs;
+	private final byte[] advStates;
+	private final BitSet dirty;
+	private final List<BGPUpdate> pending;
+
+	/*
+	 * Path references that introduce a new path instead of naming one already
+	 * in the table
+	 */
+	private static final int NEW_ORIGIN = -1;
+	private static final int NEW_PREPEND = -2;
+
+	/**
+	 * The routes already written to (or read from) one checkpoint file, each
+	 * is numbered in the order it was first seen. Routes already seen are
+	 * found by value, so copies of a route that aren't the canonical one
+	 * (BGPPathTable was cleared since) still share a number.
+	 */
+	public static class PathTable {
+
+		private BGPPath[] slots;
+		private int[] slotIDs;
+		private BGPPath[] pathByID;
+		private int count;
+
+		private static final int START_SIZE = 1024;
+
+		public PathTable() {
+			this.slots = new BGPPath[PathTable.START_SIZE];
+			this.slotIDs = new int[PathTable.START_SIZE];
+			this.pathByID = new BGPPath[PathTable.START_SIZE];
+			this.count = 0;
+		}
+
+		/**
+		 * Fetches the number a route was given, used while writing.
+		 * 
+		 * @return - the route's number, or -1 if it hasn't been seen
+		 */
+		private int getID(BGPPath path) {
+			int mask = this.slots.length - 1;
+			int pos = path.hashCode() & mask;
+			while (this.slots[pos] != null) {
+				if (this.slots[pos].equals(path)) {
+					return this.slotIDs[pos];
+				}
+				pos = (pos + 1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Fetches a route by number, used while reading.
+		 */
+		private BGPPath getPath(int pathID) throws IOException {
+			if (pathID < 0 || pathID >= this.count) {
+				throw new IOException("Checkpoint names route " + pathID + " before it was written");
+			}
+			return this.pathByID[pathID];
+		}
+
+		/**
+		 * Gives a route the next number, it must not already have one.
+		 */
+		private void add(BGPPath path) {
+			if (this.count == this.pathByID.length) {
+				this.pathByID = Arrays.copyOf(this.pathByID, this.count * 2);
+			}
+			this.pathByID[this.count] = path;
+			this.insert(path, this.count);
+			this.count++;
+			if (this.count * 2 > this.slots.length) {
+				this.grow();
+			}
+		}
+
+		private void insert(BGPPath path, int pathID) {
+			int mask = this.slots.length - 1;
+			int pos = path.hashCode() & mask;
+			while (this.slots[pos] != null) {
+				pos = (pos + 1) & mask;
+			}
+			this.slots[pos] = path;
+			this.slotIDs[pos] = pathID;
+		}
+
+		private void grow() {
+			BGPPath[] oldSlots = this.slots;
+			int[] oldIDs = this.slotIDs;
+			this.slots = new BGPPath[oldSlots.length * 2];
+			this.slotIDs = new int[oldSlots.length * 2];
+			for (int pos = 0; pos < oldSlots.length; pos++) {
+				if (oldSlots[pos] != null) {
+					this.insert(oldSlots[pos], oldIDs[pos]);
+				}
+			}
+		}
+	}
+
+	ASCheckpoint(AS owner, int ribStart, DestRib[] ribs, byte[] advStates, BitSet dirty, List<BGPUpdate> pending) {
+		this.owner = owner;
+		this.ribStart = ribStart;
+		this.ribs = ribs;
+		this.advStates = advStates;
+		this.dirty = dirty;
+		this.pending = pending;
+	}
+
+	/**
+	 * Fetches the AS this is the state of.
+	 * 
+	 * @return - the AS
+	 */
+	public AS getOwner() {
+		return this.owner;
+	}
+
+	/**
+	 * Writes the state out, this can run on any thread while the AS keeps
+	 * routing.
+	 * 
+	 * @param out
+	 *            - where to write
+	 * @param pathTable
+	 *            - the routes already written to this file
+	 * @throws IOException
+	 *             - if the write fails
+	 */
+	public void write(ChannelWriter out, PathTable pathTable) throws IOException {
+		ASNIndex asnIndex = this.owner.getASNIndex();
+		out.writeInt(this.owner.getASN());
+
+		int destCount = 0;
+		for (int ribIdx = 0; ribIdx < this.ribs.length; ribIdx++) {
+			if (this.hasState(ribIdx)) {
+				destCount++;
+			}
+		}
+		out.writeInt(destCount);
+		for (int ribIdx = 0; ribIdx < this.ribs.length; ribIdx++) {
+			if (!this.hasState(ribIdx)) {
+				continue;
+			}
+			out.writeInt(asnIndex.getASN(this.ribStart + ribIdx));
+			out.writeByte(this.advStates[ribIdx]);
+			if (this.ribs[ribIdx] == null) {
+				out.writeInt(0);
+			} else {
+				List<BGPPath> candidates = this.ribs[ribIdx].getPaths();
+				out.writeInt(candidates.size());
+				for (BGPPath tPath : candidates) {
+					ASCheckpoint.writePath(out, tPath, pathTable);
+				}
+			}
+		}
+
+		out.writeInt(this.dirty.cardinality());
+		for (int tDestID = this.dirty.nextSetBit(0); tDestID >= 0; tDestID = this.dirty.nextSetBit(tDestID + 1)) {
+			out.writeInt(asnIndex.getASN(tDestID));
+		}
+
+		out.writeInt(this.pending.size());
+		for (BGPUpdate tUpdate : this.pending) {
+			out.writeInt(asnIndex.getASN(tUpdate.getDestID()));
+			out.writeBoolean(tUpdate.isWithdrawal());
+			if (tUpdate.isWithdrawal()) {
+				out.writeInt(tUpdate.getWithdrawer().getASN());
+			} else {
+				ASCheckpoint.writePath(out, tUpdate.getPath(), pathTable);
+			}
+		}
+	}
+
+	/**
+	 * Reads the state of one AS written by write and installs it in that AS
+	 * of the given topology, replacing its RIB state for the destinations in
+	 * the checkpoint and appending the pending updates to its mailbox.
+	 * 
+	 * @param in
+	 *            - where to read from
+	 * @param asnIndex
+	 *            - the index of the topology, it must be the one the
+	 *            checkpoint was taken of
+	 * @param pathTable
+	 *            - the routes already read from this file
+	 * @return - the AS the state was installed in
+	 * @throws IOException
+	 *             - if the read fails or names ASes not in the topology
+	 */
+	public static AS read(ChannelReader in, ASNIndex asnIndex, PathTable pathTable) throws IOException {
+		AS tAS = ASCheckpoint.lookup(asnIndex, in.readInt());
+
+		List<BGPPath> candidates = new ArrayList<BGPPath>();
+		int destCount = in.readInt();
+		for (int counter = 0; counter < destCount; counter++) {
+			int destASN = in.readInt();
+			int destID = ASCheckpoint.lookup(asnIndex, destASN).getDenseID();
+			byte advState = in.readByte();
+			int candidateCount = in.readInt();
+			candidates.clear();
+			for (int candCounter = 0; candCounter < candidateCount; candCounter++) {
+				candidates.add(ASCheckpoint.readPath(in, pathTable));
+			}
+			tAS.loadRoutes(destID, candidates);
+			tAS.restoreAdvState(destID, advState);
+		}
+
+		BitSet dirty = new BitSet();
+		int dirtyCount = in.readInt();
+		for (int counter = 0; counter < dirtyCount; counter++) {
+			dirty.set(ASCheckpoint.lookup(asnIndex, in.readInt()).getDenseID());
+		}
+		tAS.markDirty(dirty);
+
+		int pendingCount = in.readInt();
+		for (int counter = 0; counter < pendingCount; counter++) {
+			int destASN = in.readInt();
+			int destID = ASCheckpoint.lookup(asnIndex, destASN).getDenseID();
+			if (in.readBoolean()) {
+				tAS.receiveUpdate(new BGPUpdate(destASN, destID, ASCheckpoint.lookup(asnIndex, in.readInt())));
+			} else {
+				tAS.receiveUpdate(new BGPUpdate(ASCheckpoint.readPath(in, pathTable), destID));
+			}
+		}
+		return tAS;
+	}
+
+	private boolean hasState(int ribIdx) {
+		return this.ribs[ribIdx] != null || this.advStates[ribIdx] != 0;
+	}
+
+	/**
+	 * A route already in the table is just its number. A new one is
+	 * NEW_ORIGIN and the destination ASN for an origin route, otherwise
+	 * NEW_PREPEND, the route it extends (written the same way, so only the
+	 * part of it not already in the table is spelled out), and its first hop.
+	 * The route is numbered once it is written, after any new suffixes.
+	 */
+	private static void writePath(ChannelWriter out, BGPPath path, PathTable pathTable) throws IOException {
+		int pathID = pathTable.getID(path);
+		if (pathID >= 0) {
+			out.writeInt(pathID);
+			return;
+		}
+
+		if (path.getPathLength() == 0) {
+			out.writeInt(ASCheckpoint.NEW_ORIGIN);
+			out.writeInt(path.getDest());
+		} else {
+			out.writeInt(ASCheckpoint.NEW_PREPEND);
+			ASCheckpoint.writePath(out, path.getTail(), pathTable);
+			out.writeInt(path.getNextHop());
+		}
+		pathTable.add(path);
+	}
+
+	/**
+	 * Reads a route written by writePath, numbering new ones in the same order
+	 * they were numbered when written.
+	 */
+	private static BGPPath readPath(ChannelReader in, PathTable pathTable) throws IOException {
+		int pathID = in.readInt();
+		BGPPath path;
+		if (pathID == ASCheckpoint.NEW_ORIGIN) {
+			path = BGPPath.buildOriginPath(in.readInt());
+		} else if (pathID == ASCheckpoint.NEW_PREPEND) {
+			BGPPath tail = ASCheckpoint.readPath(in, pathTable);
+			path = tail.prependASToPath(in.readInt());
+		} else {
+			return pathTable.getPath(pathID);
+		}
+		pathTable.add(path);
+		return path;
+	}
+
+	private static AS lookup(ASNIndex asnIndex, int asn) throws IOException {
+		int id = asnIndex.getID(asn);
+		if (id == ASNIndex.NO_ID) {
+			throw new IOException("Checkpoint names AS " + asn + " which is not in the topology");
+		}
+		return asnIndex.getAS(id);
+	}
+}
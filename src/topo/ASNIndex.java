@@ -0,0 +1,267 @@
+package topo;
+
+import java.util.*;
+
+import util.IntIntMap;
+
+/**
+ * Mapping between ASNs and dense ids (0 to N - 1) for every AS in a topology.
+ * This is built while parsing, and lets per-AS and per-destination state live
+ * in plain arrays instead of maps keyed on boxed ASNs. ASNs are treated as
+ * unsigned 32 bit values, so 4 byte ASNs above 2^31 are fine, they are just
+ * stored in an int.
+ * 
+ * Once the topology is pruned the index is frozen, which renumbers it so that
+ * the ASes that actually route (and are therefore the only destinations) get
+ * ids 0 to getRoutedCount() - 1, in ASN order. RIBs are sized by the routed
+ * count, the pruned ASes get the ids after that.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class ASNIndex {
+
+	private IntIntMap idByASN;
+	private AS[] asByID;
+	private int size;
+	private int routedCount;
+	private int ribStart;
+	private int ribEnd;
+
+	/**
+	 * Bumped each time a checkpoint of the topology is started, ASes capture
+	 * their state the first time they change after a bump (see
+	 * AS.takeCheckpoint)
+	 */
+	private volatile int checkpointEpoch;
+
+	/**
+	 * Marker returned for ASNs that are not in the index
+	 */
+	public static final int NO_ID = -1;
+
+	public ASNIndex() {
+		this.idByASN = new IntIntMap(1024, ASNIndex.NO_ID);
+		this.asByID = new AS[1024];
+		this.size = 0;
+		this.routedCount = 0;
+		this.ribStart = 0;
+		this.ribEnd = 0;
+		this.checkpointEpoch = 0;
+	}
+
+	/**
+	 * Parses an ASN, accepting the full unsigned 32 bit range.
+	 * 
+	 * @param asnString
+	 *            - the ASN in asplain notation
+	 * @return - the ASN as it is stored in the simulator
+	 */
+	public static int parseASN(String asnString) {
+		return Integer.parseUnsignedInt(asnString.trim());
+	}
+
+	/**
+	 * Adds an AS to the index, giving it the next dense id.
+	 * 
+	 * @param newAS
+	 *            - the AS to add, must not already be in the index
+	 */
+	public void addAS(AS newAS) {
+		if (this.idByASN.containsKey(newAS.getASN())) {
+			throw new RuntimeException("AS added to ASN index twice: " + newAS);
+		}
+
+		if (this.size == this.asByID.length) {
+			this.asByID = Arrays.copyOf(this.asByID, this.size * 2);
+		}
+		this.asByID[this.size] = newAS;
+		this.idByASN.put(newAS.getASN(), this.size);
+		newAS.setDenseID(this, this.size);
+		this.size++;
+	}
+
+	/**
+	 * Renumbers the index so that the supplied ASes (the ones left after
+	 * pruning) get the lowest ids, in ASN order, followed by everyone else,
+	 * again in ASN order.
+	 * 
+	 * @param routedASes
+	 *            - the ASes that are part of the routing topology
+	 */
+	public void freeze(Collection<? extends AS> routedASes) {
+		List<AS> routedList = new ArrayList<AS>(routedASes);
+		Set<AS> routedSet = new HashSet<AS>(routedASes);
+		List<AS> otherList = new ArrayList<AS>();
+		for (int counter = 0; counter < this.size; counter++) {
+			if (!routedSet.contains(this.asByID[counter])) {
+				otherList.add(this.asByID[counter]);
+			}
+		}
+		Comparator<AS> asnOrder = new Comparator<AS>() {
+			public int compare(AS lhs, AS rhs) {
+				return Integer.compareUnsigned(lhs.getASN(), rhs.getASN());
+			}
+		};
+		Collections.sort(routedList, asnOrder);
+		Collections.sort(otherList, asnOrder);
+
+		this.idByASN = new IntIntMap(this.size, ASNIndex.NO_ID);
+		this.size = 0;
+		for (AS tAS : routedList) {
+			this.addAS(tAS);
+		}
+		this.routedCount = this.size;
+		for (AS tAS : otherList) {
+			this.addAS(tAS);
+		}
+		this.ribStart = 0;
+		this.ribEnd = this.routedCount;
+	}
+
+	/**
+	 * Fetches the dense id of an ASN.
+	 * 
+	 * @param asn
+	 *            - the ASN to look up
+	 * @return - the dense id, or NO_ID if the ASN is not in the topology
+	 */
+	public int getID(int asn) {
+		return this.idByASN.get(asn);
+	}
+
+	/**
+	 * Fetches the ASN that has a given dense id.
+	 * 
+	 * @param id
+	 *            - the dense id
+	 * @return - the ASN of the AS with that id
+	 */
+	public int getASN(int id) {
+		return this.asByID[id].getASN();
+	}
+
+	/**
+	 * Fetches the AS object that has a given dense id.
+	 * 
+	 * @param id
+	 *            - the dense id
+	 * @return - the AS object with that id
+	 */
+	public AS getAS(int id) {
+		return this.asByID[id];
+	}
+
+	/**
+	 * Fetches the number of ASes in the index, both routed and pruned.
+	 * 
+	 * @return - the number of dense ids handed out
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Fetches the number of ASes that are part of the routing topology, these
+	 * have ids 0 to getRoutedCount() - 1. Before the index is frozen this is
+	 * 0.
+	 * 
+	 * @return - the number of routed ASes
+	 */
+	public int getRoutedCount() {
+		return this.routedCount;
+	}
+
+	/**
+	 * Predicate to test if a dense id belongs to a routed AS (and so can be a
+	 * destination in the RIBs).
+	 * 
+	 * @param id
+	 *            - the dense id
+	 * @return - true if the AS with that id is in the routing topology
+	 */
+	public boolean isRouted(int id) {
+		return id >= 0 && id < this.routedCount;
+	}
+
+	/**
+	 * Restricts the destinations ASes keep RIB state for to the routed ids in
+	 * [start, end), so a process that only converges some of the destinations
+	 * only pays memory for those. This must be set before any AS allocates
+	 * its RIBs (before BGP starts), by default it covers every routed AS.
+	 * 
+	 * @param start
+	 *            - the first destination id with RIB state
+	 * @param end
+	 *            - one past the last destination id with RIB state
+	 */
+	public void setRIBRange(int start, int end) {
+		if (start < 0 || end > this.routedCount || start > end) {
+			throw new RuntimeException("Bad RIB range [" + start + ", " + end + ") for " + this.routedCount
+					+ " routed ASes");
+		}
+		this.ribStart = start;
+		this.ribEnd = end;
+	}
+
+	/**
+	 * Fetches the first destination id ASes keep RIB state for.
+	 * 
+	 * @return - the start of the RIB range
+	 */
+	public int getRIBStart() {
+		return this.ribStart;
+	}
+
+	/**
+	 * Fetches the number of destinations ASes keep RIB state for.
+	 * 
+	 * @return - the size of the RIB range
+	 */
+	public int getRIBSize() {
+		return this.ribEnd - this.ribStart;
+	}
+
+	/**
+	 * Predicate to test if ASes keep RIB state for a destination.
+	 * 
+	 * @param id
+	 *            - the dense id of the destination
+	 * @return - true if the id is in the RIB range
+	 */
+	public boolean isInRIBRange(int id) {
+		return id >= this.ribStart && id < this.ribEnd;
+	}
+
+	/**
+	 * Starts a checkpoint of the topology. This must be called at a barrier,
+	 * when no AS is handling or being sent updates, and not again until every
+	 * AS's state has been taken with AS.takeCheckpoint.
+	 * 
+	 * @return - the epoch to hand to AS.takeCheckpoint
+	 */
+	public int beginCheckpoint() {
+		this.checkpointEpoch++;
+		return this.checkpointEpoch;
+	}
+
+	/**
+	 * Fetches the epoch of the most recently started checkpoint.
+	 * 
+	 * @return - the checkpoint epoch, 0 if none was ever started
+	 */
+	public int getCheckpointEpoch() {
+		return this.checkpointEpoch;
+	}
+
+	/**
+	 * Helper to fetch the index shared by the ASes in a topology map.
+	 * 
+	 * @param asMap
+	 *            - a non-empty mapping of ASN to AS objects
+	 * @return - the index those ASes belong to
+	 */
+	public static ASNIndex fromTopo(Map<Integer, ? extends AS> asMap) {
+		return asMap.values().iterator().next().getASNIndex();
+	}
+}
@@ -45,7 +45,9 @@ public class ASTopoParser {
 
 	/**
 	 * Simple static call to do the network prune. This servers as a single
-	 * entry point to prune, allowing changes to the pruning strategy.
+	 * entry point to prune, allowing changes to the pruning strategy. Once
+	 * pruned the ASN index is frozen and the remaining ASes have their
+	 * relationships frozen.
 	 * 
 	 * @param workingMap
 	 *            - the unpruned AS map, this will be altered as a side effect
@@ -53,7 +55,20 @@ public class ASTopoParser {
 	 * @return - a mapping between ASN and AS object of PRUNED ASes
 	 */
 	public static HashMap<Integer, DecoyAS> doNetworkPrune(HashMap<Integer, DecoyAS> workingMap) {
-		return ASTopoParser.pruneNoCustomerAS(workingMap);
+		HashMap<Integer, DecoyAS> purgeMap = ASTopoParser.pruneNoCustomerAS(workingMap);
+
+		/*
+		 * Topology is now fixed, renumber the dense ids so routed ASes come
+		 * first and build the relationship lookup tables
+		 */
+		if (!workingMap.isEmpty()) {
+			ASNIndex.fromTopo(workingMap).freeze(workingMap.values());
+		}
+		for (DecoyAS tAS : workingMap.values()) {
+			tAS.freezeRelations();
+		}
+
+		return purgeMap;
 	}
 
 	/**
@@ -71,6 +86,7 @@ public class ASTopoParser {
 	private static HashMap<Integer, DecoyAS> parseFile(String asRelFile, String wardenFile) throws IOException {
 
 		HashMap<Integer, DecoyAS> retMap = new HashMap<Integer, DecoyAS>();
+		ASNIndex asnIndex = new ASNIndex();
 
 		String pollString;
 		StringTokenizer pollToks;
@@ -98,8 +114,8 @@ public class ASTopoParser {
 			 * Parse line
 			 */
 			pollToks = new StringTokenizer(pollString, "|");
-			lhsASN = Integer.parseInt(pollToks.nextToken());
-			rhsASN = Integer.parseInt(pollToks.nextToken());
+			lhsASN = ASNIndex.parseASN(pollToks.nextToken());
+			rhsASN = ASNIndex.parseASN(pollToks.nextToken());
 			rel = Integer.parseInt(pollToks.nextToken());
 
 			/*
@@ -107,9 +123,11 @@ public class ASTopoParser {
 			 */
 			if (!retMap.containsKey(lhsASN)) {
 				retMap.put(lhsASN, new DecoyAS(lhsASN));
+				asnIndex.addAS(retMap.get(lhsASN));
 			}
 			if (!retMap.containsKey(rhsASN)) {
 				retMap.put(rhsASN, new DecoyAS(rhsASN));
+				asnIndex.addAS(retMap.get(rhsASN));
 			}
 
 			retMap.get(lhsASN).addRelation(retMap.get(rhsASN), rel);
@@ -123,7 +141,7 @@ public class ASTopoParser {
 		while (fBuff.ready()) {
 			pollString = fBuff.readLine().trim();
 			if (pollString.length() > 0) {
-				int asn = Integer.parseInt(pollString);
+				int asn = ASNIndex.parseASN(pollString);
 				retMap.get(asn).toggleWardenAS();
 			}
 		}
@@ -148,7 +166,7 @@ public class ASTopoParser {
 			String pollString = fBuff.readLine();
 			Matcher tMatch = csvPattern.matcher(pollString);
 			tMatch.find();
-			int tAS = Integer.parseInt(tMatch.group(1));
+			int tAS = ASNIndex.parseASN(tMatch.group(1));
 			int score = Integer.parseInt(tMatch.group(2));
 			asMap.get(tAS).setIPCount(score);
 		}
@@ -5,17 +5,64 @@ import java.util.*;
 /**
  * Class that represents a BPG route in a RIB/Update message.
  * 
+ * Paths are immutable and share structure. Each path stores only its first
+ * hop and a reference to the path it was built from (the rest of the hops),
+ * so prepending an ASN is a single small allocation instead of a copy of the
+ * whole hop list. Since nothing can edit a path once built, the same object
+ * can be handed to every neighbor and sit in any number of RIBs at once. All
+ * paths are interned in BGPPathTable, so two equal paths are almost always
+ * the same object.
+ * 
  * @author pendgaft
  * 
  */
-public class BGPPath {
+public class BGPPath implements Iterable<Integer> {
+
+	private final int destASN;
 
-	private int destASN;
-	private LinkedList<Integer> path;
+	/**
+	 * The first hop of the path, only meaningful if the path has length > 0
+	 */
+	private final int headASN;
 
-	public BGPPath(int dest) {
+	/**
+	 * The remainder of the path after the first hop, null for the empty path
+	 * to ourself
+	 */
+	private final BGPPath tail;
+	private final int length;
+
+	/**
+	 * Hash of the path, computed once when the path is interned
+	 */
+	private final int hash;
+
+	/**
+	 * Constructor used ONLY by BGPPathTable, everyone else gets paths through
+	 * buildOriginPath or prependASToPath so that they are canonical.
+	 */
+	BGPPath(int hash, int dest, int frontASN, BGPPath tail) {
+		this.hash = hash;
 		this.destASN = dest;
-		this.path = new LinkedList<Integer>();
+		this.headASN = frontASN;
+		this.tail = tail;
+		if (tail == null) {
+			this.length = 0;
+		} else {
+			this.length = tail.length + 1;
+		}
+	}
+
+	/**
+	 * Fetches the path an AS uses to reach itself, which is what it
+	 * originates into BGP.
+	 * 
+	 * @param dest
+	 *            - the ASN of the originating AS
+	 * @return - the empty path to that destination
+	 */
+	public static BGPPath buildOriginPath(int dest) {
+		return BGPPathTable.internOrigin(dest);
 	}
 
 	/**
@@ -29,8 +76,8 @@ public class BGPPath {
 	 *         path, false otherwise
 	 */
 	public boolean containsAnyOf(HashSet<Integer> testASNs) {
-		for (int tHop : this.path) {
-			if (testASNs.contains(tHop)) {
+		for (BGPPath tNode = this; tNode.length > 0; tNode = tNode.tail) {
+			if (testASNs.contains(tNode.headASN)) {
 				return true;
 			}
 		}
@@ -44,29 +91,54 @@ public class BGPPath {
 	 * @return - length of the path
 	 */
 	public int getPathLength() {
-		return this.path.size();
+		return this.length;
 	}
 
 	/**
-	 * Getter that fetches the List of ASNs on the path. This is a DIRECT
-	 * REFERENCE, so for the love of god don't edit it...
+	 * Getter that builds a List of the ASNs on the path. This is a fresh copy,
+	 * so editing it does nothing to the path, if all you want to do is walk
+	 * the hops iterate over the path itself instead.
 	 * 
-	 * @return - a direct reference to the list of asns that comprise the path
+	 * @return - a list of the asns that comprise the path, in order
 	 */
-	//TODO make this a clone, as this seems a bit dangerous
 	public List<Integer> getPath() {
-		return this.path;
+		List<Integer> hopList = new ArrayList<Integer>(this.length);
+		for (BGPPath tNode = this; tNode.length > 0; tNode = tNode.tail) {
+			hopList.add(tNode.headASN);
+		}
+		return hopList;
 	}
 
 	/**
-	 * Prepends the given ASN to the path, used to extend paths for
-	 * advertisement.
+	 * Builds the path that results from prepending the given ASN to this path,
+	 * used to extend paths for advertisement. This path is NOT altered, the
+	 * returned path shares all of this path's hops.
 	 * 
 	 * @param frontASN
 	 *            - the ASN to be added to the front of the path
+	 * @return - the extended path
+	 */
+	public BGPPath prependASToPath(int frontASN) {
+		return BGPPathTable.internPrepend(frontASN, this);
+	}
+
+	/**
+	 * Fetches the path this one extends by its first hop, null for the empty
+	 * path to ourself.
 	 */
-	public void prependASToPath(int frontASN) {
-		this.path.addFirst(frontASN);
+	BGPPath getTail() {
+		return this.tail;
+	}
+
+	/**
+	 * Predicate used by the interning table to test if this path is the one
+	 * that would be built from the given parts.
+	 */
+	boolean isBuiltFrom(int dest, int frontASN, BGPPath tail) {
+		if (tail == null) {
+			return this.tail == null && this.destASN == dest;
+		}
+		return this.tail == tail && this.headASN == frontASN;
 	}
 
 	/**
@@ -77,8 +149,8 @@ public class BGPPath {
 	 * @return - true if the ASN appears in the path already, false otherwise
 	 */
 	public boolean containsLoop(int testASN) {
-		for (int tASN : this.path) {
-			if (tASN == testASN) {
+		for (BGPPath tNode = this; tNode.length > 0; tNode = tNode.tail) {
+			if (tNode.headASN == testASN) {
 				return true;
 			}
 		}
@@ -94,11 +166,11 @@ public class BGPPath {
 		/*
 		 * hack for paths to ourself
 		 */
-		if (this.path.size() == 0) {
+		if (this.length == 0) {
 			return this.destASN;
 		}
 
-		return this.path.getFirst();
+		return this.headASN;
 	}
 
 	/**
@@ -113,7 +185,8 @@ public class BGPPath {
 	/**
 	 * Predicate to test if two routes are the same route. This tests that the
 	 * destinations are identical and that the paths used are identical. All
-	 * comparisons are done based off of ASN.
+	 * comparisons are done based off of ASN. As paths are interned this is
+	 * almost always answered by the identity or hash check.
 	 * 
 	 * @param rhs
 	 *            - the second route to test against
@@ -121,44 +194,80 @@ public class BGPPath {
 	 *         otherwise
 	 */
 	public boolean equals(BGPPath rhs) {
-		if (rhs.path.size() != this.path.size() || rhs.destASN != this.destASN) {
+		if (rhs == this) {
+			return true;
+		}
+		if (rhs.hash != this.hash || rhs.length != this.length || rhs.destASN != this.destASN) {
 			return false;
 		}
 
-		for (int counter = 0; counter < this.path.size(); counter++) {
-			if (this.path.get(counter) != rhs.path.get(counter)) {
+		/*
+		 * Walk both paths together, once we hit a shared suffix the rest is
+		 * trivially the same
+		 */
+		BGPPath lhsNode = this;
+		BGPPath rhsNode = rhs;
+		while (lhsNode != rhsNode && lhsNode.length > 0) {
+			if (lhsNode.headASN != rhsNode.headASN) {
 				return false;
 			}
+			lhsNode = lhsNode.tail;
+			rhsNode = rhsNode.tail;
 		}
 
 		return true;
 	}
 
 	/**
-	 * Creates a deep copy of the given BGP route.
-	 * 
-	 * @return - a copy of the BGP route with copies of all class vars
+	 * Equality test used by hash based collections, same semantics as
+	 * equals(BGPPath)
 	 */
-	public BGPPath deepCopy() {
-		BGPPath newPath = new BGPPath(this.destASN);
-		for (int counter = 0; counter < this.path.size(); counter++) {
-			newPath.path.addLast(this.path.get(counter));
+	public boolean equals(Object rhs) {
+		if (rhs == this) {
+			return true;
 		}
-		return newPath;
+		if (!(rhs instanceof BGPPath)) {
+			return false;
+		}
+		return this.equals((BGPPath) rhs);
+	}
+
+	/**
+	 * Iterates over the ASNs on the path, in order, without building a list.
+	 */
+	public Iterator<Integer> iterator() {
+		return new Iterator<Integer>() {
+			private BGPPath nextNode = BGPPath.this;
+
+			public boolean hasNext() {
+				return this.nextNode.length > 0;
+			}
+
+			public Integer next() {
+				if (this.nextNode.length == 0) {
+					throw new NoSuchElementException();
+				}
+				int hop = this.nextNode.headASN;
+				this.nextNode = this.nextNode.tail;
+				return hop;
+			}
+		};
 	}
 
 	public String toString() {
-		String base = "dst: " + this.destASN + " path:";
-		for (int tAS : this.path) {
-			base = base + " " + tAS;
+		StringBuilder base = new StringBuilder();
+		base.append("dst: ").append(Integer.toUnsignedString(this.destASN)).append(" path:");
+		for (BGPPath tNode = this; tNode.length > 0; tNode = tNode.tail) {
+			base.append(' ').append(Integer.toUnsignedString(tNode.headASN));
 		}
-		return base;
+		return base.toString();
 	}
 
 	/**
-	 * Hash code based on hash code of the print string
+	 * Hash code, computed from the destination and hops when the path was
+	 * interned
 	 */
 	public int hashCode() {
-		return this.toString().hashCode();
+		return this.hash;
 	}
 }
@@ -0,0 +1,194 @@
+package topo;
+
+/**
+ * Global interning table for BGP paths. Every BGPPath is built through here,
+ * so there is exactly one canonical object for each (destination, hop
+ * sequence) pair. Since paths share suffixes, a path is identified by its
+ * first hop plus the (already canonical) path it extends, which makes lookups
+ * constant time and lets us skip allocating a path that already exists.
+ * 
+ * The table is split into stripes, each with its own lock, so BGPSlave
+ * threads building advertisements at the same time rarely wait on each other.
+ * Paths are held until BGP converges, so identical routes learned by
+ * thousands of ASes are stored once. The table is then cleared (see
+ * BGPMaster.converge), which drops the paths that were only seen during path
+ * exploration, while the ones in RIBs are kept alive by the RIBs and go on
+ * sharing their suffixes with whatever later gets built from them. So a long
+ * session of reconvergences holds only the paths it uses, not every path it
+ * ever saw.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class BGPPathTable {
+
+	/**
+	 * Number of independently locked stripes, MUST be a power of 2
+	 */
+	private static final int STRIPE_COUNT = 64;
+	private static final int STRIPE_BITS = 6;
+	private static final int START_STRIPE_SIZE = 1024;
+
+	private static final Stripe[] stripes = BGPPathTable.buildStripes();
+
+	/**
+	 * Fetches the canonical path to ourself for the given destination.
+	 * 
+	 * @param dest
+	 *            - the ASN of the destination network
+	 * @return - the canonical empty path to that destination
+	 */
+	static BGPPath internOrigin(int dest) {
+		int hash = BGPPathTable.mix(dest);
+		return BGPPathTable.stripes[hash & (STRIPE_COUNT - 1)].intern(hash, dest, 0, null);
+	}
+
+	/**
+	 * Fetches the canonical path built by prepending the given ASN to the
+	 * given (canonical) path.
+	 * 
+	 * @param frontASN
+	 *            - the ASN at the front of the path
+	 * @param tail
+	 *            - the canonical path being extended
+	 * @return - the canonical extended path
+	 */
+	static BGPPath internPrepend(int frontASN, BGPPath tail) {
+		int hash = BGPPathTable.mix(tail.hashCode() * 31 + frontASN);
+		return BGPPathTable.stripes[hash & (STRIPE_COUNT - 1)].intern(hash, tail.getDest(), frontASN, tail);
+	}
+
+	/**
+	 * Builds a path to ourself without interning it, for routes that are
+	 * rebuilt on demand and dropped once used (see MappedRIB), which would
+	 * otherwise sit in the table until it is next cleared. The path equals
+	 * (and hashes the same as) the canonical one.
+	 * 
+	 * @param dest
+	 *            - the ASN of the destination network
+	 * @return - an empty path to that destination
+	 */
+	static BGPPath buildOrigin(int dest) {
+		return new BGPPath(BGPPathTable.mix(dest), dest, 0, null);
+	}
+
+	/**
+	 * Builds the path made by prepending the given ASN to the given path,
+	 * without interning it, see buildOrigin.
+	 * 
+	 * @param frontASN
+	 *            - the ASN at the front of the path
+	 * @param tail
+	 *            - the path being extended
+	 * @return - the extended path
+	 */
+	static BGPPath buildPrepend(int frontASN, BGPPath tail) {
+		return new BGPPath(BGPPathTable.mix(tail.hashCode() * 31 + frontASN), tail.getDest(), frontASN, tail);
+	}
+
+	/**
+	 * Fetches the number of distinct paths currently interned.
+	 * 
+	 * @return - the number of canonical paths in the table
+	 */
+	public static long size() {
+		long total = 0;
+		for (Stripe tStripe : BGPPathTable.stripes) {
+			total += tStripe.size();
+		}
+		return total;
+	}
+
+	/**
+	 * Empties the table, once routing is quiet or every path held by the ASes
+	 * has been thrown away (say between destination slices). Paths already
+	 * handed out stay valid and still compare equal to newly interned
+	 * copies, they are just no longer canonical. Not safe while anyone is
+	 * building paths.
+	 */
+	public static void clear() {
+		for (Stripe tStripe : BGPPathTable.stripes) {
+			tStripe.clear();
+		}
+	}
+
+	private static Stripe[] buildStripes() {
+		Stripe[] retArray = new Stripe[BGPPathTable.STRIPE_COUNT];
+		for (int counter = 0; counter < retArray.length; counter++) {
+			retArray[counter] = new Stripe();
+		}
+		return retArray;
+	}
+
+	/**
+	 * Finalizer from murmur3, spreads the bits so stripe and slot selection
+	 * both get good entropy
+	 */
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+	/**
+	 * One locked open addressing hash table (linear probing) of paths.
+	 */
+	private static class Stripe {
+
+		private BGPPath[] slots;
+		private int count;
+
+		private Stripe() {
+			this.slots = new BGPPath[BGPPathTable.START_STRIPE_SIZE];
+			this.count = 0;
+		}
+
+		private synchronized BGPPath intern(int hash, int dest, int frontASN, BGPPath tail) {
+			int mask = this.slots.length - 1;
+			int pos = (hash >>> BGPPathTable.STRIPE_BITS) & mask;
+			while (this.slots[pos] != null) {
+				BGPPath tPath = this.slots[pos];
+				if (tPath.hashCode() == hash && tPath.isBuiltFrom(dest, frontASN, tail)) {
+					return tPath;
+				}
+				pos = (pos + 1) & mask;
+			}
+
+			BGPPath newPath = new BGPPath(hash, dest, frontASN, tail);
+			this.slots[pos] = newPath;
+			this.count++;
+			if (this.count * 2 > this.slots.length) {
+				this.grow();
+			}
+			return newPath;
+		}
+
+		private void grow() {
+			BGPPath[] oldSlots = this.slots;
+			this.slots = new BGPPath[oldSlots.length * 2];
+			int mask = this.slots.length - 1;
+			for (BGPPath tPath : oldSlots) {
+				if (tPath == null) {
+					continue;
+				}
+				int pos = (tPath.hashCode() >>> BGPPathTable.STRIPE_BITS) & mask;
+				while (this.slots[pos] != null) {
+					pos = (pos + 1) & mask;
+				}
+				this.slots[pos] = tPath;
+			}
+		}
+
+		private synchronized void clear() {
+			this.slots = new BGPPath[BGPPathTable.START_STRIPE_SIZE];
+			this.count = 0;
+		}
+
+		private synchronized int size() {
+			return this.count;
+		}
+	}
+}
@@ -13,28 +13,34 @@ public class BGPUpdate {
 	private AS withrdawlSource;
 	private BGPPath path;
 	private boolean withdrawal;
+	private int destID;
 
 	/**
 	 * Constructor used to build an advertisement message.
 	 * 
 	 * @param path
 	 *            - the path we're advertising
+	 * @param destID
+	 *            - the dense id of the path's destination
 	 */
-	public BGPUpdate(BGPPath path) {
+	public BGPUpdate(BGPPath path, int destID) {
 		this.path = path;
 		this.withdrawal = false;
+		this.destID = destID;
 	}
 
 	/**
 	 * Constructor used to build a withdrawal update message.
 	 * 
 	 * @param withdrawalDest
+	 * @param destID
 	 * @param updateSrc
 	 */
-	public BGPUpdate(int dest, AS src) {
+	public BGPUpdate(int dest, int destID, AS src) {
 		this.withdrawlDest = dest;
 		this.withrdawlSource = src;
 		this.withdrawal = true;
+		this.destID = destID;
 	}
 
 	/**
@@ -73,6 +79,16 @@ public class BGPUpdate {
 		return this.withdrawlDest;
 	}
 
+	/**
+	 * Fetches the dense id (see ASNIndex) of the destination this update is
+	 * about, valid for both advertisements and withdrawals.
+	 * 
+	 * @return - the dense id of the destination
+	 */
+	public int getDestID() {
+		return this.destID;
+	}
+
 	/**
 	 * Fetches the ASN that is reporting the loss of a route (which peer sent
 	 * this message).
@@ -0,0 +1,99 @@
+package topo;
+
+import java.util.Collection;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mailbox that only keeps the newest pending update for each (peer,
+ * destination) pair. BGP state is per peer and per destination, a new
+ * advertisement or withdrawal from a peer completely replaces what that peer
+ * told us before, so an update that is superseded before it is processed can
+ * be dropped without changing the RIBs we converge to. The surviving update
+ * keeps the place in line of the first update for its pair.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class CoalescingMailbox implements UpdateMailbox {
+
+	/**
+	 * The newest pending update for each (peer, dest) key
+	 */
+	private ConcurrentHashMap<Long, BGPUpdate> pending;
+
+	/**
+	 * Order in which keys became pending, each pending key is in here exactly
+	 * once
+	 */
+	private ConcurrentLinkedQueue<Long> order;
+
+	private AtomicLong absorbed;
+
+	public CoalescingMailbox() {
+		this.pending = new ConcurrentHashMap<Long, BGPUpdate>();
+		this.order = new ConcurrentLinkedQueue<Long>();
+		this.absorbed = new AtomicLong(0);
+	}
+
+	public void add(BGPUpdate update) {
+		Long key = CoalescingMailbox.buildKey(update);
+
+		/*
+		 * If something was already pending for this key it is still in the
+		 * order queue, so we just took its place, otherwise queue the key
+		 */
+		if (this.pending.put(key, update) != null) {
+			this.absorbed.incrementAndGet();
+		} else {
+			this.order.add(key);
+		}
+	}
+
+	public BGPUpdate poll() {
+		Long key;
+		while ((key = this.order.poll()) != null) {
+			BGPUpdate update = this.pending.remove(key);
+			if (update != null) {
+				return update;
+			}
+		}
+		return null;
+	}
+
+	public int drainTo(Collection<? super BGPUpdate> target, int maxUpdates) {
+		int drained = 0;
+		BGPUpdate update;
+		while ((maxUpdates <= 0 || drained < maxUpdates) && (update = this.poll()) != null) {
+			target.add(update);
+			drained++;
+		}
+		return drained;
+	}
+
+	public boolean isEmpty() {
+		return this.order.isEmpty();
+	}
+
+	public long size() {
+		return (long) this.pending.size();
+	}
+
+	public long getAbsorbedCount() {
+		return this.absorbed.get();
+	}
+
+	/**
+	 * Builds the (peer, dest) key for an update, peer ASN in the high bits,
+	 * destination dense id in the low bits.
+	 */
+	private static Long buildKey(BGPUpdate update) {
+		int peer;
+		if (update.isWithdrawal()) {
+			peer = update.getWithdrawer().getASN();
+		} else {
+			peer = update.getPath().getNextHop();
+		}
+		return ((long) peer << 32) | (update.getDestID() & 0xffffffffL);
+	}
+}
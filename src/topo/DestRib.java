@@ -0,0 +1,324 @@
+package topo;
+
+import java.util.*;
+
+/**
+ * The candidate routes an AS holds for one destination. This is both the
+ * Adj-RIB-In and the inRib entry for that destination, each candidate is
+ * stored under the neighbor slot (see NeighborIndex) of the AS that
+ * advertised it, so a new advertisement from a neighbor replaces its old
+ * route in place and a withdrawal removes it, without touching any other
+ * destination. Candidates for a destination number at most the degree of the
+ * AS and are usually a handful, so finding a slot is a short scan of an int
+ * array. Once there are more than INDEX_THRESHOLD of them (which for the
+ * big transit ASes can run into the thousands) a small open addressing table
+ * from slot to position is kept alongside, so replacing or withdrawing a
+ * route stays constant time whatever the degree.
+ * 
+ * Each candidate is also stored along with a packed rank key that encodes the
+ * whole BGP decision process (relationship, path length, next hop tie break),
+ * smaller keys are better routes. The position of the best candidate is
+ * tracked as candidates come and go, so adding a route is a single compare,
+ * and we only rescan the candidates when the current best route is the one
+ * removed or made worse.
+ * 
+ * @author pendgaft
+ * 
+ */
+class DestRib {
+
+	private BGPPath[] paths;
+	private long[] keys;
+	private int[] slots;
+	private int size;
+	private int bestPos;
+
+	/**
+	 * Linear probing table of candidate position + 1 (0 is empty) by slot,
+	 * null while we hold few enough candidates to just scan
+	 */
+	private int[] slotIndex;
+
+	/**
+	 * Set once a RIBFork holds this, after which it is never changed, the
+	 * owning AS takes a copy before applying any more updates
+	 */
+	private boolean shared;
+
+	private static final int START_SIZE = 2;
+	private static final int INDEX_THRESHOLD = 8;
+
+	DestRib() {
+		this.paths = new BGPPath[DestRib.START_SIZE];
+		this.keys = new long[DestRib.START_SIZE];
+		this.slots = new int[DestRib.START_SIZE];
+		this.size = 0;
+		this.bestPos = -1;
+		this.slotIndex = null;
+		this.shared = false;
+	}
+
+	/**
+	 * Builds an unshared copy of the candidates, for changing a shared
+	 * DestRib.
+	 * 
+	 * @return - the copy
+	 */
+	DestRib copy() {
+		DestRib newRib = new DestRib();
+		int capacity = Math.max(this.size, DestRib.START_SIZE);
+		newRib.paths = Arrays.copyOf(this.paths, capacity);
+		newRib.keys = Arrays.copyOf(this.keys, capacity);
+		newRib.slots = Arrays.copyOf(this.slots, capacity);
+		newRib.size = this.size;
+		newRib.bestPos = this.bestPos;
+		if (this.size > DestRib.INDEX_THRESHOLD) {
+			newRib.buildIndex();
+		}
+		return newRib;
+	}
+
+	/**
+	 * Marks the candidates as shared, they must not be changed from here on.
+	 */
+	void share() {
+		this.shared = true;
+	}
+
+	/**
+	 * Predicate to test if the candidates are shared (and so read only).
+	 * 
+	 * @return - true if shared
+	 */
+	boolean isShared() {
+		return this.shared;
+	}
+
+	/**
+	 * Builds the rank key for a route. The key is ordered so that the best
+	 * route has the smallest key: relationship class in the top bits (self,
+	 * then customer, peer, provider), then path length, then next hop ASN
+	 * (lowest wins, compared the same way BGPPath next hops always have been).
+	 * 
+	 * @param rel
+	 *            - the relationship code of the next hop (see AS.getRel)
+	 * @param path
+	 *            - the route
+	 * @return - the packed rank key
+	 */
+	static long buildKey(int rel, BGPPath path) {
+		long relClass = 2 - rel;
+		long length = path.getPathLength();
+		long nextHop = (path.getNextHop() ^ Integer.MIN_VALUE) & 0xffffffffL;
+		return (relClass << 56) | (length << 32) | nextHop;
+	}
+
+	/**
+	 * Installs the route advertised by the neighbor in the given slot,
+	 * replacing whatever route that neighbor advertised before.
+	 * 
+	 * @param slot
+	 *            - the neighbor slot the route was learned from
+	 * @param path
+	 *            - the route
+	 * @param key
+	 *            - the route's rank key
+	 */
+	void put(int slot, BGPPath path, long key) {
+		int pos = this.findSlot(slot);
+		if (pos == -1) {
+			this.add(slot, path, key);
+			return;
+		}
+
+		long oldKey = this.keys[pos];
+		this.paths[pos] = path;
+		this.keys[pos] = key;
+		if (pos == this.bestPos) {
+			if (key > oldKey) {
+				this.rescan();
+			}
+		} else if (key < this.keys[this.bestPos]) {
+			this.bestPos = pos;
+		}
+	}
+
+	/**
+	 * Removes the route learned from the neighbor in the given slot, if there
+	 * is one.
+	 * 
+	 * @param slot
+	 *            - the neighbor slot the route was learned from
+	 * @return - true if a route was removed
+	 */
+	boolean removeSlot(int slot) {
+		int pos = this.findSlot(slot);
+		if (pos == -1) {
+			return false;
+		}
+		this.remove(pos);
+		return true;
+	}
+
+	/**
+	 * Predicate to test if we hold a route from the neighbor in the given
+	 * slot.
+	 * 
+	 * @param slot
+	 *            - the neighbor slot
+	 * @return - true if that neighbor has a candidate route here
+	 */
+	boolean hasSlot(int slot) {
+		return this.findSlot(slot) != -1;
+	}
+
+	private int findSlot(int slot) {
+		if (this.slotIndex != null) {
+			int idx = this.findIndex(slot);
+			return (idx == -1) ? -1 : this.slotIndex[idx] - 1;
+		}
+		for (int counter = 0; counter < this.size; counter++) {
+			if (this.slots[counter] == slot) {
+				return counter;
+			}
+		}
+		return -1;
+	}
+
+	private void add(int slot, BGPPath path, long key) {
+		boolean grew = false;
+		if (this.size == this.paths.length) {
+			this.paths = Arrays.copyOf(this.paths, this.size * 2);
+			this.keys = Arrays.copyOf(this.keys, this.size * 2);
+			this.slots = Arrays.copyOf(this.slots, this.size * 2);
+			grew = true;
+		}
+		this.paths[this.size] = path;
+		this.keys[this.size] = key;
+		this.slots[this.size] = slot;
+		if (this.bestPos == -1 || key < this.keys[this.bestPos]) {
+			this.bestPos = this.size;
+		}
+		this.size++;
+
+		if ((this.slotIndex == null) ? this.size > DestRib.INDEX_THRESHOLD : grew) {
+			this.buildIndex();
+		} else if (this.slotIndex != null) {
+			this.indexPut(slot, this.size - 1);
+		}
+	}
+
+	/**
+	 * Removes the candidate at a position, filling the hole with the last
+	 * candidate.
+	 */
+	private void remove(int pos) {
+		int last = this.size - 1;
+		if (this.slotIndex != null) {
+			this.indexRemove(this.findIndex(this.slots[pos]));
+			if (pos != last) {
+				this.slotIndex[this.findIndex(this.slots[last])] = pos + 1;
+			}
+		}
+		this.paths[pos] = this.paths[last];
+		this.keys[pos] = this.keys[last];
+		this.slots[pos] = this.slots[last];
+		this.paths[last] = null;
+		this.size--;
+
+		if (this.bestPos == pos) {
+			this.rescan();
+		} else if (this.bestPos == last) {
+			this.bestPos = pos;
+		}
+	}
+
+	/**
+	 * (Re)builds the slot index, sized to stay at most half full however many
+	 * candidates the arrays have room for.
+	 */
+	private void buildIndex() {
+		this.slotIndex = new int[Integer.highestOneBit(this.paths.length * 2 - 1) << 1];
+		for (int counter = 0; counter < this.size; counter++) {
+			this.indexPut(this.slots[counter], counter);
+		}
+	}
+
+	private int indexHome(int slot) {
+		int hash = slot * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & (this.slotIndex.length - 1);
+	}
+
+	/**
+	 * Fetches where in the slot index a slot's entry is, -1 if it has none.
+	 */
+	private int findIndex(int slot) {
+		int mask = this.slotIndex.length - 1;
+		for (int idx = this.indexHome(slot); this.slotIndex[idx] != 0; idx = (idx + 1) & mask) {
+			if (this.slots[this.slotIndex[idx] - 1] == slot) {
+				return idx;
+			}
+		}
+		return -1;
+	}
+
+	private void indexPut(int slot, int pos) {
+		int mask = this.slotIndex.length - 1;
+		int idx = this.indexHome(slot);
+		while (this.slotIndex[idx] != 0) {
+			idx = (idx + 1) & mask;
+		}
+		this.slotIndex[idx] = pos + 1;
+	}
+
+	/**
+	 * Empties an entry of the slot index, shifting later entries of the probe
+	 * run back so lookups never stop early at the hole.
+	 */
+	private void indexRemove(int idx) {
+		int mask = this.slotIndex.length - 1;
+		int gap = idx;
+		for (int next = (idx + 1) & mask; this.slotIndex[next] != 0; next = (next + 1) & mask) {
+			int home = this.indexHome(this.slots[this.slotIndex[next] - 1]);
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				this.slotIndex[gap] = this.slotIndex[next];
+				gap = next;
+			}
+		}
+		this.slotIndex[gap] = 0;
+	}
+
+	/**
+	 * Full pass over the candidates to find the best, only needed when the
+	 * current best goes away.
+	 */
+	private void rescan() {
+		this.bestPos = -1;
+		for (int counter = 0; counter < this.size; counter++) {
+			if (this.bestPos == -1 || this.keys[counter] < this.keys[this.bestPos]) {
+				this.bestPos = counter;
+			}
+		}
+	}
+
+	/**
+	 * Fetches the best candidate route.
+	 * 
+	 * @return - the best route, or null if there are no candidates
+	 */
+	BGPPath getBest() {
+		if (this.bestPos == -1) {
+			return null;
+		}
+		return this.paths[this.bestPos];
+	}
+
+	/**
+	 * Fetches a read only view of all candidate routes.
+	 * 
+	 * @return - the candidate routes, in no particular order
+	 */
+	List<BGPPath> getPaths() {
+		return Collections.unmodifiableList(Arrays.asList(this.paths).subList(0, this.size));
+	}
+}
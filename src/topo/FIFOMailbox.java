@@ -0,0 +1,46 @@
+package topo;
+
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Plain first in first out mailbox, every update sent is processed.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class FIFOMailbox implements UpdateMailbox {
+
+	private LinkedBlockingQueue<BGPUpdate> queue;
+
+	public FIFOMailbox() {
+		this.queue = new LinkedBlockingQueue<BGPUpdate>();
+	}
+
+	public void add(BGPUpdate update) {
+		this.queue.add(update);
+	}
+
+	public BGPUpdate poll() {
+		return this.queue.poll();
+	}
+
+	public int drainTo(Collection<? super BGPUpdate> target, int maxUpdates) {
+		if (maxUpdates <= 0) {
+			return this.queue.drainTo(target);
+		}
+		return this.queue.drainTo(target, maxUpdates);
+	}
+
+	public boolean isEmpty() {
+		return this.queue.isEmpty();
+	}
+
+	public long size() {
+		return (long) this.queue.size();
+	}
+
+	public long getAbsorbedCount() {
+		return 0;
+	}
+}
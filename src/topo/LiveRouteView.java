@@ -0,0 +1,35 @@
+package topo;
+
+import java.util.*;
+
+/**
+ * RouteView that reads the RIBs of a fully converged topology.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class LiveRouteView implements RouteView {
+
+	private List<AS> wardenASes;
+
+	public LiveRouteView(Map<Integer, ? extends AS> activeMap) {
+		this.wardenASes = new ArrayList<AS>();
+		for (AS tAS : activeMap.values()) {
+			if (tAS.isWardenAS()) {
+				this.wardenASes.add(tAS);
+			}
+		}
+	}
+
+	public Collection<BGPPath> getWardenPaths(int destASN) {
+		Set<BGPPath> paths = new HashSet<BGPPath>();
+		for (AS tWarden : this.wardenASes) {
+			paths.addAll(tWarden.getAllPathsTo(destASN));
+		}
+		return paths;
+	}
+
+	public boolean hasPath(AS src, int destASN) {
+		return src.hasPathTo(destASN);
+	}
+}
@@ -0,0 +1,248 @@
+package topo;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lock free mailbox for the case we actually have, lots of threads adding
+ * updates (neighbors whose MRAI fired) but only the one thread handling this
+ * AS taking them out. Updates are stored in fixed size array segments linked
+ * into a list, producers claim a spot in the tail segment with a single
+ * atomic increment, and whoever overflows the tail links the next segment.
+ * The consumer reads segments front to back without any atomics beyond a
+ * volatile read of the slot it is on.
+ * 
+ * The mailbox starts out with no segments at all, and when the consumer
+ * drains it completely it closes the segment it was on and goes back to that
+ * empty state, so the tens of thousands of idle ASes in a topology don't
+ * each hold on to a buffer.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class MPSCMailbox implements UpdateMailbox {
+
+	private static final int SEGMENT_SIZE = 64;
+
+	/**
+	 * Marker put in the next pointer of a segment the consumer has closed, a
+	 * producer that sees it has to start over from the (now empty) tail
+	 */
+	private static final Segment CLOSED = new Segment();
+
+	/**
+	 * Segment producers are adding to, null when the mailbox is empty
+	 */
+	private final AtomicReference<Segment> tail;
+
+	/**
+	 * Hand off of a freshly allocated first segment from the producer that
+	 * created it to the consumer
+	 */
+	private final AtomicReference<Segment> firstSegment;
+
+	/*
+	 * Consumer side state, only touched by the thread polling
+	 */
+	private Segment head;
+	private int readIdx;
+
+	public MPSCMailbox() {
+		this.tail = new AtomicReference<Segment>(null);
+		this.firstSegment = new AtomicReference<Segment>(null);
+		this.head = null;
+		this.readIdx = 0;
+	}
+
+	public void add(BGPUpdate update) {
+		while (true) {
+			Segment seg = this.tail.get();
+
+			/*
+			 * Empty mailbox, try to be the one who creates the first segment
+			 */
+			if (seg == null) {
+				Segment newSeg = new Segment();
+				if (this.tail.compareAndSet(null, newSeg)) {
+					this.firstSegment.set(newSeg);
+				}
+				continue;
+			}
+
+			int idx = seg.writeIdx.getAndIncrement();
+			if (idx < MPSCMailbox.SEGMENT_SIZE) {
+				seg.items.set(idx, update);
+				return;
+			}
+
+			/*
+			 * Segment is full, make sure there is a next one and move the tail
+			 * to it. If the consumer closed this segment the mailbox is empty,
+			 * and the tail may just have been moved onto the closed segment by
+			 * a slow producer, so help reset it.
+			 */
+			Segment next = seg.next.get();
+			if (next == null) {
+				Segment newSeg = new Segment();
+				if (seg.next.compareAndSet(null, newSeg)) {
+					next = newSeg;
+				} else {
+					next = seg.next.get();
+				}
+			}
+			if (next == MPSCMailbox.CLOSED) {
+				this.tail.compareAndSet(seg, null);
+			} else {
+				this.tail.compareAndSet(seg, next);
+			}
+		}
+	}
+
+	public BGPUpdate poll() {
+		while (this.advance()) {
+			BGPUpdate update = this.head.items.get(this.readIdx);
+			if (update == null) {
+				/*
+				 * The spot is claimed but the producer hasn't written it yet,
+				 * we'll get it next time
+				 */
+				return null;
+			}
+			this.head.items.lazySet(this.readIdx, null);
+			this.readIdx++;
+			return update;
+		}
+		return null;
+	}
+
+	/**
+	 * Moves the consumer to the next readable slot, freeing finished segments
+	 * as it goes.
+	 * 
+	 * @return - true if head/readIdx now point at a claimed slot, false if the
+	 *         mailbox is empty
+	 */
+	private boolean advance() {
+		while (true) {
+			if (this.head == null) {
+				this.head = this.firstSegment.getAndSet(null);
+				this.readIdx = 0;
+				if (this.head == null) {
+					return false;
+				}
+			}
+
+			if (this.readIdx < MPSCMailbox.SEGMENT_SIZE) {
+				if (this.readIdx < this.head.writeIdx.get()) {
+					return true;
+				}
+
+				/*
+				 * Caught up with the producers, try to seal the rest of this
+				 * segment so we can drop it, if someone snuck in an update we
+				 * go read it
+				 */
+				if (!this.head.writeIdx.compareAndSet(this.readIdx, MPSCMailbox.SEGMENT_SIZE)) {
+					continue;
+				}
+				this.readIdx = MPSCMailbox.SEGMENT_SIZE;
+			}
+
+			/*
+			 * Done with this segment, move on to the next one, or close the
+			 * mailbox out if there isn't one
+			 */
+			Segment next = this.head.next.get();
+			if (next == null) {
+				if (this.head.next.compareAndSet(null, MPSCMailbox.CLOSED)) {
+					this.tail.compareAndSet(this.head, null);
+					this.head = null;
+					return false;
+				}
+				next = this.head.next.get();
+			}
+			this.head = next;
+			this.readIdx = 0;
+		}
+	}
+
+	public int drainTo(Collection<? super BGPUpdate> target, int maxUpdates) {
+		int drained = 0;
+		while ((maxUpdates <= 0 || drained < maxUpdates) && this.advance()) {
+			Segment seg = this.head;
+			int end = Math.min(seg.writeIdx.get(), MPSCMailbox.SEGMENT_SIZE);
+			if (maxUpdates > 0) {
+				end = Math.min(end, this.readIdx + maxUpdates - drained);
+			}
+			while (this.readIdx < end) {
+				BGPUpdate update = seg.items.get(this.readIdx);
+				if (update == null) {
+					return drained;
+				}
+				seg.items.lazySet(this.readIdx, null);
+				target.add(update);
+				this.readIdx++;
+				drained++;
+			}
+		}
+		return drained;
+	}
+
+	public boolean isEmpty() {
+		Segment seg = this.head;
+		int idx = this.readIdx;
+		if (seg == null) {
+			seg = this.firstSegment.get();
+			idx = 0;
+		}
+		while (seg != null && seg != MPSCMailbox.CLOSED) {
+			if (idx < Math.min(seg.writeIdx.get(), MPSCMailbox.SEGMENT_SIZE)) {
+				return false;
+			}
+			seg = seg.next.get();
+			idx = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Counts pending updates by walking the segments, this is exact when no
+	 * one is adding or polling at the same time.
+	 */
+	public long size() {
+		long count = 0;
+		Segment seg = this.head;
+		int idx = this.readIdx;
+		if (seg == null) {
+			seg = this.firstSegment.get();
+			idx = 0;
+		}
+		while (seg != null && seg != MPSCMailbox.CLOSED) {
+			count += Math.max(0, Math.min(seg.writeIdx.get(), MPSCMailbox.SEGMENT_SIZE) - idx);
+			seg = seg.next.get();
+			idx = 0;
+		}
+		return count;
+	}
+
+	public long getAbsorbedCount() {
+		return 0;
+	}
+
+	/**
+	 * One block of update slots, writeIdx counts claims and so can run past
+	 * the end of the block once it fills up.
+	 */
+	private static class Segment {
+
+		private final AtomicReferenceArray<BGPUpdate> items;
+		private final AtomicInteger writeIdx;
+		private final AtomicReference<Segment> next;
+
+		private Segment() {
+			this.items = new AtomicReferenceArray<BGPUpdate>(MPSCMailbox.SEGMENT_SIZE);
+			this.writeIdx = new AtomicInteger(0);
+			this.next = new AtomicReference<Segment>(null);
+		}
+	}
+}
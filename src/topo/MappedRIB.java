@@ -0,0 +1,581 @@
+package topo;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import util.ChannelWriter;
+
+/**
+ * Converged RIBs of a whole topology saved to disk, so later runs on the same
+ * topology can skip BGP entirely. The file is memory mapped and ASes with no
+ * RIBs of their own answer getPath and getAllPathsTo straight from it, so
+ * only the parts of the file the analyses actually touch are ever paged in,
+ * and nothing is copied onto the heap until a route is asked for.
+ * 
+ * Routes aren't stored hop by hop. In a converged topology the route an AS
+ * holds from a neighbor is always that neighbor's installed route with the
+ * neighbor prepended, so for every AS and destination we only keep the dense
+ * ids of the neighbors it holds routes from, the one it installed first (an
+ * AS's own id stands for its origin route). A route is rebuilt by following
+ * installed next hops to the destination, which also keeps the file to a few
+ * bytes per candidate no matter how long the paths are.
+ * 
+ * Layout, everything big endian: a header (magic, version, routed AS count,
+ * RIB range start and size, topology fingerprint), the ASN of every routed AS
+ * by dense id, the file offset of every AS's block (plus the end of the
+ * file), then the blocks. A block is RIB size + 1 running offsets into the
+ * block's candidate list (so a destination's candidates are between its
+ * offset and the next), then the candidate list. The fingerprint covers the
+ * ASNs, relationships and warden flags, a file for any other topology (or
+ * format version) is ignored.
+ * 
+ * A file holds whatever RIB range was set when it was written, so the shards
+ * of a sharded run (see sim.ShardCoordinator) each write their own
+ * destinations, and the coordinator maps all of the shard files as one
+ * MappedRIB instead of loading them, the merged RIBs never have to fit in a
+ * single heap. A MappedRIB is also a RouteView of the routes it holds.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class MappedRIB implements RouteView {
+
+	private final ASNIndex asnIndex;
+	private final List<AS> wardenASes;
+	private final int ribStart;
+
+	/**
+	 * The mapped files, and the one holding each destination, by dense id
+	 * less the start of the RIB range
+	 */
+	private final List<Part> parts;
+	private final Part[] partOf;
+
+	private static final int MAGIC = 0x4e57524d;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 28;
+	private static final long SEGMENT_LIMIT = 1L << 30;
+
+	/**
+	 * One mapped file, holding every routed AS's routes to a range of
+	 * destinations
+	 */
+	private static class Part {
+
+		private final FileChannel channel;
+		private final int ribStart;
+		private final int ribSize;
+
+		/**
+		 * File offset of each AS's block, by dense id, with the end of the
+		 * file last
+		 */
+		private final long[] blockOffsets;
+
+		/**
+		 * Blocks are mapped a segment (run of ASes whose blocks total at most
+		 * SEGMENT_LIMIT bytes) at a time, the first time one of them is read
+		 */
+		private final int[] segmentOf;
+		private final int[] segmentFirstAS;
+		private final AtomicReferenceArray<ByteBuffer> segments;
+
+		private Part(FileChannel channel, int ribStart, int ribSize, long[] blockOffsets) {
+			this.channel = channel;
+			this.ribStart = ribStart;
+			this.ribSize = ribSize;
+			this.blockOffsets = blockOffsets;
+
+			int asCount = blockOffsets.length - 1;
+			this.segmentOf = new int[asCount];
+			List<Integer> firstASes = new ArrayList<Integer>();
+			for (int tID = 0; tID < asCount; tID++) {
+				long segmentStart = firstASes.isEmpty() ? 0 : blockOffsets[firstASes.get(firstASes.size() - 1)];
+				if (firstASes.isEmpty() || blockOffsets[tID + 1] - segmentStart > MappedRIB.SEGMENT_LIMIT) {
+					firstASes.add(tID);
+				}
+				this.segmentOf[tID] = firstASes.size() - 1;
+			}
+			this.segmentFirstAS = new int[firstASes.size()];
+			for (int counter = 0; counter < this.segmentFirstAS.length; counter++) {
+				this.segmentFirstAS[counter] = firstASes.get(counter);
+			}
+			this.segments = new AtomicReferenceArray<ByteBuffer>(this.segmentFirstAS.length);
+		}
+
+		private int getCandidateCount(int asID, int destID) {
+			ByteBuffer segment = this.getSegment(asID);
+			int base = this.getBlockBase(asID);
+			int ribIdx = destID - this.ribStart;
+			return segment.getInt(base + 4 * (ribIdx + 1)) - segment.getInt(base + 4 * ribIdx);
+		}
+
+		private int getCandidate(int asID, int destID, int pos) {
+			ByteBuffer segment = this.getSegment(asID);
+			int base = this.getBlockBase(asID);
+			int offset = segment.getInt(base + 4 * (destID - this.ribStart));
+			return segment.getInt(base + 4 * (this.ribSize + 1) + 4 * (offset + pos));
+		}
+
+		/**
+		 * Fetches where an AS's block starts within its segment.
+		 */
+		private int getBlockBase(int asID) {
+			int firstAS = this.segmentFirstAS[this.segmentOf[asID]];
+			return (int) (this.blockOffsets[asID] - this.blockOffsets[firstAS]);
+		}
+
+		/**
+		 * Fetches the segment holding an AS's block, mapping it if this is the
+		 * first time it is needed. Only absolute reads are done on segments,
+		 * so any number of threads can share them.
+		 */
+		private ByteBuffer getSegment(int asID) {
+			int segmentIdx = this.segmentOf[asID];
+			ByteBuffer segment = this.segments.get(segmentIdx);
+			if (segment != null) {
+				return segment;
+			}
+
+			int firstAS = this.segmentFirstAS[segmentIdx];
+			int endAS = (segmentIdx + 1 < this.segmentFirstAS.length) ? this.segmentFirstAS[segmentIdx + 1]
+					: this.segmentOf.length;
+			try {
+				segment = this.channel.map(FileChannel.MapMode.READ_ONLY, this.blockOffsets[firstAS],
+						this.blockOffsets[endAS] - this.blockOffsets[firstAS]);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not map RIB file segment", e);
+			}
+			this.segments.compareAndSet(segmentIdx, null, segment);
+			return this.segments.get(segmentIdx);
+		}
+	}
+
+	private MappedRIB(ASNIndex asnIndex, List<Part> parts) {
+		this.asnIndex = asnIndex;
+		this.ribStart = asnIndex.getRIBStart();
+		this.parts = parts;
+		this.partOf = new Part[asnIndex.getRIBSize()];
+		for (Part tPart : parts) {
+			for (int tDestID = tPart.ribStart; tDestID < tPart.ribStart + tPart.ribSize; tDestID++) {
+				this.partOf[tDestID - this.ribStart] = tPart;
+			}
+		}
+
+		this.wardenASes = new ArrayList<AS>();
+		for (int tID = 0; tID < asnIndex.getRoutedCount(); tID++) {
+			AS tAS = asnIndex.getAS(tID);
+			if (tAS.isWardenAS()) {
+				this.wardenASes.add(tAS);
+			}
+			tAS.attachMappedRIB(this);
+		}
+	}
+
+	/**
+	 * Computes a fingerprint of everything about a topology that affects
+	 * converged routing: the routed ASNs in dense id order, each AS's
+	 * relationships, and which ASes are warden ASes (they don't originate).
+	 * 
+	 * @param asnIndex
+	 *            - the index of the topology
+	 * @return - the fingerprint
+	 */
+	public static long fingerprint(ASNIndex asnIndex) {
+		long hash = 0xcbf29ce484222325L;
+		for (int tID = 0; tID < asnIndex.getRoutedCount(); tID++) {
+			AS tAS = asnIndex.getAS(tID);
+			hash = MappedRIB.mix(hash, tAS.getASN());
+			hash = MappedRIB.mix(hash, tAS.isWardenAS() ? 1 : 0);
+			hash = MappedRIB.mixNeighbors(hash, tAS.getProviders(), AS.PROIVDER_CODE);
+			hash = MappedRIB.mixNeighbors(hash, tAS.getPeers(), AS.PEER_CODE);
+			hash = MappedRIB.mixNeighbors(hash, tAS.getCustomers(), AS.CUSTOMER_CODE);
+		}
+		return hash;
+	}
+
+	private static long mixNeighbors(long hash, Set<AS> neighbors, int rel) {
+		int[] asns = new int[neighbors.size()];
+		int pos = 0;
+		for (AS tAS : neighbors) {
+			asns[pos++] = tAS.getASN();
+		}
+		Arrays.sort(asns);
+		hash = MappedRIB.mix(hash, rel);
+		hash = MappedRIB.mix(hash, asns.length);
+		for (int tASN : asns) {
+			hash = MappedRIB.mix(hash, tASN);
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, int value) {
+		for (int shift = 0; shift < 32; shift += 8) {
+			hash ^= (value >>> shift) & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Saves the converged RIBs of every routed AS, for the destinations in the
+	 * current RIB range. The file is written to a temp file and renamed into
+	 * place, so a reader never sees half of one.
+	 * 
+	 * @param outFile
+	 *            - the file to write
+	 * @param asMap
+	 *            - the routed ASes, converged
+	 * @return - the number of candidate routes saved
+	 * @throws IOException
+	 *             - if writing the file fails
+	 */
+	public static long write(File outFile, Map<Integer, ? extends AS> asMap) throws IOException {
+		ASNIndex asnIndex = ASNIndex.fromTopo(asMap);
+		int asCount = asnIndex.getRoutedCount();
+		int ribStart = asnIndex.getRIBStart();
+		int ribSize = asnIndex.getRIBSize();
+
+		/*
+		 * Size every block first so the directory can go ahead of them
+		 */
+		long[] blockOffsets = new long[asCount + 1];
+		blockOffsets[0] = MappedRIB.HEADER_SIZE + 4L * asCount + 8L * (asCount + 1);
+		for (int tID = 0; tID < asCount; tID++) {
+			AS tAS = asnIndex.getAS(tID);
+			long candidateCount = 0;
+			for (int tDestID = ribStart; tDestID < ribStart + ribSize; tDestID++) {
+				candidateCount += tAS.getAllPathsTo(asnIndex.getASN(tDestID)).size();
+			}
+			blockOffsets[tID + 1] = blockOffsets[tID] + 4L * (ribSize + 1) + 4L * candidateCount;
+		}
+
+		long routeCount = 0;
+		File tempFile = new File(outFile.getPath() + ".tmp");
+		ChannelWriter out = new ChannelWriter(FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), 1 << 20);
+		try {
+			out.writeInt(MappedRIB.MAGIC);
+			out.writeInt(MappedRIB.VERSION);
+			out.writeInt(asCount);
+			out.writeInt(ribStart);
+			out.writeInt(ribSize);
+			out.writeLong(MappedRIB.fingerprint(asnIndex));
+			for (int tID = 0; tID < asCount; tID++) {
+				out.writeInt(asnIndex.getASN(tID));
+			}
+			for (long tOffset : blockOffsets) {
+				out.writeLong(tOffset);
+			}
+
+			int[] offsets = new int[ribSize + 1];
+			int[] candidates = new int[16];
+			for (int tID = 0; tID < asCount; tID++) {
+				AS tAS = asnIndex.getAS(tID);
+				int candidateCount = 0;
+				for (int ribIdx = 0; ribIdx < ribSize; ribIdx++) {
+					offsets[ribIdx] = candidateCount;
+					int[] hops = MappedRIB.candidateHops(tAS, ribStart + ribIdx, asnIndex);
+					if (candidateCount + hops.length > candidates.length) {
+						candidates = Arrays.copyOf(candidates, Math.max(candidates.length * 2, candidateCount
+								+ hops.length));
+					}
+					System.arraycopy(hops, 0, candidates, candidateCount, hops.length);
+					candidateCount += hops.length;
+				}
+				offsets[ribSize] = candidateCount;
+
+				for (int tOffset : offsets) {
+					out.writeInt(tOffset);
+				}
+				for (int counter = 0; counter < candidateCount; counter++) {
+					out.writeInt(candidates[counter]);
+				}
+				routeCount += candidateCount;
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		return routeCount;
+	}
+
+	/**
+	 * Fetches the dense ids of the neighbors an AS holds routes to a
+	 * destination from, the installed one first, checking that each route is
+	 * the neighbor's installed route (which only holds once BGP converged).
+	 */
+	private static int[] candidateHops(AS tAS, int destID, ASNIndex asnIndex) {
+		int destASN = asnIndex.getASN(destID);
+		List<BGPPath> paths = tAS.getAllPathsTo(destASN);
+		int[] hops = new int[paths.size()];
+		if (hops.length == 0) {
+			return hops;
+		}
+
+		BGPPath best = tAS.getPath(destASN);
+		int pos = 0;
+		for (BGPPath tPath : paths) {
+			int hopID;
+			if (tPath.getNextHop() == tAS.getASN()) {
+				hopID = tAS.getDenseID();
+			} else {
+				AS nextHop = asnIndex.getAS(asnIndex.getID(tPath.getNextHop()));
+				BGPPath nextHopBest = nextHop.getPath(destASN);
+				if (nextHopBest == null || !nextHopBest.equals(tPath.getTail())) {
+					throw new RuntimeException("Route " + tPath + " held by AS " + tAS.getASN()
+							+ " is not its next hop's installed route, BGP has not converged");
+				}
+				hopID = nextHop.getDenseID();
+			}
+
+			/*
+			 * Keep the installed route's next hop up front
+			 */
+			hops[pos] = hopID;
+			if (tPath.equals(best)) {
+				hops[pos] = hops[0];
+				hops[0] = hopID;
+			}
+			pos++;
+		}
+		return hops;
+	}
+
+	/**
+	 * Opens a saved RIB file and has every routed AS without RIBs of its own
+	 * answer route lookups from it.
+	 * 
+	 * @param inFile
+	 *            - the file to open
+	 * @param asMap
+	 *            - the routed ASes
+	 * @return - the mapped RIBs, or null if the file is missing or was saved
+	 *         for another topology, RIB range or format version
+	 * @throws IOException
+	 *             - if the file can't be read
+	 */
+	public static MappedRIB open(File inFile, Map<Integer, ? extends AS> asMap) throws IOException {
+		if (!inFile.isFile()) {
+			return null;
+		}
+		ASNIndex asnIndex = ASNIndex.fromTopo(asMap);
+		Part filePart = MappedRIB.openPart(inFile, asnIndex);
+		if (filePart == null) {
+			return null;
+		}
+		if (filePart.ribStart != asnIndex.getRIBStart() || filePart.ribSize != asnIndex.getRIBSize()) {
+			filePart.channel.close();
+			System.out.println("RIB file " + inFile + " holds other destinations, ignoring it.");
+			return null;
+		}
+		return new MappedRIB(asnIndex, Collections.singletonList(filePart));
+	}
+
+	/**
+	 * Opens the RIB files written by the shards of a sharded run as one
+	 * MappedRIB, and has every routed AS answer route lookups from it.
+	 * 
+	 * @param inFiles
+	 *            - the shard files, between them they must hold every
+	 *            destination in the RIB range exactly once
+	 * @param asnIndex
+	 *            - the index of the topology the shards converged
+	 * @return - the mapped RIBs
+	 * @throws IOException
+	 *             - if a file can't be read, is for another topology, or the
+	 *             files don't cover the RIB range
+	 */
+	public static MappedRIB openShards(List<File> inFiles, ASNIndex asnIndex) throws IOException {
+		List<Part> shardParts = new ArrayList<Part>();
+		for (File tFile : inFiles) {
+			Part tPart = MappedRIB.openPart(tFile, asnIndex);
+			if (tPart == null) {
+				throw new IOException("Shard RIB file " + tFile + " does not match this topology");
+			}
+			shardParts.add(tPart);
+		}
+		Collections.sort(shardParts, new Comparator<Part>() {
+			public int compare(Part lhs, Part rhs) {
+				return Integer.compare(lhs.ribStart, rhs.ribStart);
+			}
+		});
+
+		int nextDestID = asnIndex.getRIBStart();
+		for (Part tPart : shardParts) {
+			if (tPart.ribStart != nextDestID) {
+				throw new IOException("Shard RIB files do not cover destination ids [" + nextDestID + ", "
+						+ tPart.ribStart + ")");
+			}
+			nextDestID += tPart.ribSize;
+		}
+		if (nextDestID != asnIndex.getRIBStart() + asnIndex.getRIBSize()) {
+			throw new IOException("Shard RIB files end at destination id " + nextDestID);
+		}
+		return new MappedRIB(asnIndex, shardParts);
+	}
+
+	/**
+	 * Maps the header and directory of a RIB file.
+	 * 
+	 * @return - the part, or null (with the reason printed) if the file is for
+	 *         another topology or format version
+	 */
+	private static Part openPart(File inFile, ASNIndex asnIndex) throws IOException {
+		int asCount = asnIndex.getRoutedCount();
+		FileChannel channel = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+		long headerEnd = MappedRIB.HEADER_SIZE + 4L * asCount + 8L * (asCount + 1);
+		if (channel.size() < headerEnd) {
+			channel.close();
+			System.out.println("RIB file " + inFile + " is for another topology, ignoring it.");
+			return null;
+		}
+		MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerEnd);
+		if (header.getInt() != MappedRIB.MAGIC || header.getInt() != MappedRIB.VERSION
+				|| header.getInt() != asCount) {
+			channel.close();
+			System.out.println("RIB file " + inFile + " is stale or for another topology, ignoring it.");
+			return null;
+		}
+		int ribStart = header.getInt();
+		int ribSize = header.getInt();
+		if (ribStart < 0 || ribSize < 0 || ribStart + ribSize > asCount
+				|| header.getLong() != MappedRIB.fingerprint(asnIndex)) {
+			channel.close();
+			System.out.println("RIB file " + inFile + " is stale or for another topology, ignoring it.");
+			return null;
+		}
+		for (int tID = 0; tID < asCount; tID++) {
+			if (header.getInt() != asnIndex.getASN(tID)) {
+				channel.close();
+				System.out.println("RIB file " + inFile + " numbers ASes differently, ignoring it.");
+				return null;
+			}
+		}
+		long[] blockOffsets = new long[asCount + 1];
+		for (int tID = 0; tID <= asCount; tID++) {
+			blockOffsets[tID] = header.getLong();
+		}
+		if (blockOffsets[asCount] != channel.size()) {
+			channel.close();
+			throw new IOException("RIB file " + inFile + " is truncated");
+		}
+		return new Part(channel, ribStart, ribSize, blockOffsets);
+	}
+
+	/**
+	 * Unmaps nothing (the JVM does that once the buffers are collected) but
+	 * closes the files, ASes must no longer read from us.
+	 * 
+	 * @throws IOException
+	 *             - if a close fails
+	 */
+	public void close() throws IOException {
+		for (Part tPart : this.parts) {
+			tPart.channel.close();
+		}
+	}
+
+	public Collection<BGPPath> getWardenPaths(int destASN) {
+		Set<BGPPath> paths = new HashSet<BGPPath>();
+		int destID = this.asnIndex.getID(destASN);
+		if (!this.inRange(destID)) {
+			return paths;
+		}
+		for (AS tWarden : this.wardenASes) {
+			paths.addAll(this.getAllPaths(tWarden.getDenseID(), destID));
+		}
+		return paths;
+	}
+
+	public boolean hasPath(AS src, int destASN) {
+		int destID = this.asnIndex.getID(destASN);
+		if (!this.inRange(destID) || !this.asnIndex.isRouted(src.getDenseID())) {
+			return false;
+		}
+		return this.hasPath(src.getDenseID(), destID);
+	}
+
+	/**
+	 * Predicate to test if an AS has a route to a destination.
+	 */
+	boolean hasPath(int asID, int destID) {
+		return this.getPart(destID).getCandidateCount(asID, destID) > 0;
+	}
+
+	/**
+	 * Rebuilds the installed route of an AS to a destination.
+	 * 
+	 * @return - the route, or null if the AS has none
+	 */
+	BGPPath getPath(int asID, int destID) {
+		if (this.getPart(destID).getCandidateCount(asID, destID) == 0) {
+			return null;
+		}
+		return this.buildPath(asID, destID);
+	}
+
+	/**
+	 * Rebuilds every candidate route an AS holds to a destination.
+	 * 
+	 * @return - the routes, empty if the AS has none
+	 */
+	List<BGPPath> getAllPaths(int asID, int destID) {
+		Part destPart = this.getPart(destID);
+		int count = destPart.getCandidateCount(asID, destID);
+		List<BGPPath> paths = new ArrayList<BGPPath>(count);
+		for (int counter = 0; counter < count; counter++) {
+			int hopID = destPart.getCandidate(asID, destID, counter);
+			if (hopID == asID) {
+				paths.add(BGPPathTable.buildOrigin(this.asnIndex.getASN(destID)));
+			} else {
+				paths.add(BGPPathTable.buildPrepend(this.asnIndex.getASN(hopID), this.buildPath(hopID, destID)));
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Follows installed next hops from an AS to the destination, then builds
+	 * the route from the origin out. Routes aren't interned, nothing clears
+	 * BGPPathTable when BGP never ran, so every route an analysis (or write)
+	 * asked for would stay on the heap.
+	 */
+	private BGPPath buildPath(int asID, int destID) {
+		Part destPart = this.getPart(destID);
+		int[] hops = new int[8];
+		int length = 0;
+		int currentID = asID;
+		while (currentID != destID) {
+			if (destPart.getCandidateCount(currentID, destID) == 0 || length > this.asnIndex.getRoutedCount()) {
+				throw new RuntimeException("RIB file has no loop free route from AS " + this.asnIndex.getASN(asID)
+						+ " to AS " + this.asnIndex.getASN(destID));
+			}
+			currentID = destPart.getCandidate(currentID, destID, 0);
+			if (length == hops.length) {
+				hops = Arrays.copyOf(hops, length * 2);
+			}
+			hops[length++] = currentID;
+		}
+
+		BGPPath path = BGPPathTable.buildOrigin(this.asnIndex.getASN(destID));
+		for (int counter = length - 1; counter >= 0; counter--) {
+			path = BGPPathTable.buildPrepend(this.asnIndex.getASN(hops[counter]), path);
+		}
+		return path;
+	}
+
+	private boolean inRange(int destID) {
+		return destID != ASNIndex.NO_ID && destID >= this.ribStart && destID < this.ribStart + this.partOf.length;
+	}
+
+	private Part getPart(int destID) {
+		return this.partOf[destID - this.ribStart];
+	}
+}
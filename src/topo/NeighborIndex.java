@@ -0,0 +1,97 @@
+package topo;
+
+import util.IntIntMap;
+
+/**
+ * Frozen view of an AS's neighbors. Every neighbor gets a "slot" number
+ * (0 to degree - 1) along with the relationship code for that neighbor, so
+ * relationship lookups by ASN are a single hash probe instead of scans over
+ * the provider, peer, and customer sets. This is rebuilt whenever the
+ * relationships of the AS change, so it is immutable once built.
+ * 
+ * @author pendgaft
+ * 
+ */
+class NeighborIndex {
+
+	/**
+	 * Marker returned for ASNs that are not neighbors
+	 */
+	static final int NOT_NEIGHBOR = -1;
+
+	private final IntIntMap slotByASN;
+	private final AS[] neighbors;
+	private final int[] rels;
+
+	/**
+	 * Builds the index for an AS from its current relationship sets.
+	 * 
+	 * @param owner
+	 *            - the AS this index is for
+	 */
+	NeighborIndex(AS owner) {
+		this.slotByASN = new IntIntMap(owner.getDegree(), NeighborIndex.NOT_NEIGHBOR);
+		this.neighbors = new AS[owner.getDegree()];
+		this.rels = new int[owner.getDegree()];
+
+		int slot = 0;
+		for (AS tAS : owner.getProviders()) {
+			slot = this.addNeighbor(tAS, AS.PROIVDER_CODE, slot);
+		}
+		for (AS tAS : owner.getPeers()) {
+			slot = this.addNeighbor(tAS, AS.PEER_CODE, slot);
+		}
+		for (AS tAS : owner.getCustomers()) {
+			slot = this.addNeighbor(tAS, AS.CUSTOMER_CODE, slot);
+		}
+	}
+
+	private int addNeighbor(AS neighbor, int rel, int slot) {
+		this.slotByASN.put(neighbor.getASN(), slot);
+		this.neighbors[slot] = neighbor;
+		this.rels[slot] = rel;
+		return slot + 1;
+	}
+
+	/**
+	 * Fetches the slot of a neighbor.
+	 * 
+	 * @param asn
+	 *            - the ASN of the neighbor
+	 * @return - the neighbor's slot, or NOT_NEIGHBOR
+	 */
+	int getSlot(int asn) {
+		return this.slotByASN.get(asn);
+	}
+
+	/**
+	 * Fetches the relationship code of the neighbor in a slot.
+	 * 
+	 * @param slot
+	 *            - the slot of the neighbor
+	 * @return - the relationship code (same codes as AS.getRel)
+	 */
+	int getRel(int slot) {
+		return this.rels[slot];
+	}
+
+	/**
+	 * Fetches the neighbor AS object in a slot.
+	 * 
+	 * @param slot
+	 *            - the slot of the neighbor
+	 * @return - the neighbor's AS object
+	 */
+	AS getNeighbor(int slot) {
+		return this.neighbors[slot];
+	}
+
+	/**
+	 * Fetches the number of slots (the degree at the time of freezing).
+	 * 
+	 * @return - the number of neighbors in the index
+	 */
+	int size() {
+		return this.neighbors.length;
+	}
+}
@@ -0,0 +1,329 @@
+package topo;
+
+import java.util.*;
+
+/**
+ * A frozen copy of the converged routing state of every routed AS, which
+ * scenarios that start from the same converged state can branch from instead
+ * of each converging from scratch. The state is kept in per destination pages
+ * (every AS's candidates, installed route and adj-out state for one
+ * destination), and a branch shares every page with its parent except for the
+ * destinations whose routing actually differs, so a fork costs memory in
+ * proportion to how far it has diverged. Pages are themselves split into
+ * blocks of ASes by dense id, and only the changed blocks of a page are
+ * copied, as a link change alone touches every destination at the two ends
+ * of the link. The neighbor relationships of every AS are kept alongside,
+ * again sharing the (immutable) NeighborIndex of any AS whose relationships
+ * did not change.
+ * 
+ * Only one routing state lives in the ASes at a time. To build a scenario,
+ * checkout the fork to start from, change and reconverge the live ASes (see
+ * sim.IncrementalBGP), then branch to capture the result. The candidates a
+ * fork holds are marked shared, so the live ASes copy a destination's
+ * candidates the first time they change them after a checkout or branch, and
+ * nothing a fork holds is ever changed. Forks are RouteViews, so any number
+ * of them can be analyzed in parallel, while the ASes go on to other
+ * scenarios.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class RIBFork implements RouteView {
+
+	private final ASNIndex asnIndex;
+	private final List<AS> wardenASes;
+	private final int ribStart;
+
+	/**
+	 * Neighbor index of each routed AS, by dense id
+	 */
+	private final NeighborIndex[] relations;
+
+	/**
+	 * Page for each destination in the RIB range
+	 */
+	private final Page[] pages;
+
+	/**
+	 * Number of pages and blocks this fork built rather than shared with its
+	 * parent
+	 */
+	private final int ownedPages;
+	private final int ownedBlocks;
+
+	/**
+	 * Number of ASes (by dense id) in a page block
+	 */
+	private static final int BLOCK_SIZE = 64;
+
+	/**
+	 * One destination's routing state, for every routed AS
+	 */
+	private static class Page {
+
+		private final Block[] blocks;
+
+		private Page(int blockCount) {
+			this.blocks = new Block[blockCount];
+		}
+	}
+
+	/**
+	 * One destination's routing state for BLOCK_SIZE ASes, starting at a
+	 * multiple of BLOCK_SIZE
+	 */
+	private static class Block {
+
+		private final DestRib[] ribs;
+		private final BGPPath[] installed;
+		private final byte[] advStates;
+
+		private Block(int asCount) {
+			this.ribs = new DestRib[asCount];
+			this.installed = new BGPPath[asCount];
+			this.advStates = new byte[asCount];
+		}
+	}
+
+	private RIBFork(ASNIndex asnIndex, List<AS> wardenASes, RIBFork parent) {
+		this.asnIndex = asnIndex;
+		this.wardenASes = wardenASes;
+		this.ribStart = asnIndex.getRIBStart();
+
+		int asCount = asnIndex.getRoutedCount();
+		this.relations = new NeighborIndex[asCount];
+		for (int tID = 0; tID < asCount; tID++) {
+			this.relations[tID] = asnIndex.getAS(tID).shareRelations();
+		}
+
+		int blockCount = (asCount + RIBFork.BLOCK_SIZE - 1) / RIBFork.BLOCK_SIZE;
+		int pageCount = 0;
+		int blockTotal = 0;
+		this.pages = new Page[asnIndex.getRIBSize()];
+		for (int pageIdx = 0; pageIdx < this.pages.length; pageIdx++) {
+			int destID = this.ribStart + pageIdx;
+			Page parentPage = (parent == null) ? null : parent.pages[pageIdx];
+			Page newPage = null;
+			for (int blockIdx = 0; blockIdx < blockCount; blockIdx++) {
+				Block parentBlock = (parentPage == null) ? null : parentPage.blocks[blockIdx];
+				if (parentBlock != null && this.matchesLive(parentBlock, blockIdx, destID)) {
+					continue;
+				}
+
+				if (newPage == null) {
+					newPage = new Page(blockCount);
+					if (parentPage != null) {
+						System.arraycopy(parentPage.blocks, 0, newPage.blocks, 0, blockCount);
+					}
+				}
+				newPage.blocks[blockIdx] = this.buildBlock(blockIdx, destID);
+				blockTotal++;
+			}
+
+			if (newPage == null) {
+				this.pages[pageIdx] = parentPage;
+			} else {
+				this.pages[pageIdx] = newPage;
+				pageCount++;
+			}
+		}
+		this.ownedPages = pageCount;
+		this.ownedBlocks = blockTotal;
+	}
+
+	/**
+	 * Captures the converged routing state of a topology as a root fork.
+	 * 
+	 * @param asMap
+	 *            - the routed ASes, converged and with no pending work
+	 * @return - the fork
+	 */
+	public static RIBFork snapshot(Map<Integer, ? extends AS> asMap) {
+		RIBFork.checkQuiet(asMap.values());
+		List<AS> wardenASes = new ArrayList<AS>();
+		for (AS tAS : asMap.values()) {
+			if (tAS.isWardenAS()) {
+				wardenASes.add(tAS);
+			}
+		}
+		return new RIBFork(ASNIndex.fromTopo(asMap), wardenASes, null);
+	}
+
+	/**
+	 * Captures the current routing state of the ASes as a child of this fork,
+	 * sharing every page that did not change since this fork was checked out.
+	 * 
+	 * @return - the new fork
+	 */
+	public RIBFork branch() {
+		this.checkRange();
+		RIBFork.checkQuiet(this.routedASes());
+		return new RIBFork(this.asnIndex, this.wardenASes, this);
+	}
+
+	/**
+	 * Puts this fork's routing state (and relationships) back in the ASes,
+	 * replacing whatever they held. The ASes must have no pending work.
+	 */
+	public void checkout() {
+		this.checkRange();
+		RIBFork.checkQuiet(this.routedASes());
+
+		for (int tID = 0; tID < this.relations.length; tID++) {
+			AS tAS = this.asnIndex.getAS(tID);
+			if (tAS.shareRelations() != this.relations[tID]) {
+				tAS.restoreRelations(this.relations[tID]);
+			}
+		}
+
+		for (int pageIdx = 0; pageIdx < this.pages.length; pageIdx++) {
+			int destID = this.ribStart + pageIdx;
+			Block[] blocks = this.pages[pageIdx].blocks;
+			for (int blockIdx = 0; blockIdx < blocks.length; blockIdx++) {
+				Block tBlock = blocks[blockIdx];
+				int firstID = blockIdx * RIBFork.BLOCK_SIZE;
+				for (int offset = 0; offset < tBlock.ribs.length; offset++) {
+					this.asnIndex.getAS(firstID + offset).restoreDest(destID, tBlock.ribs[offset],
+							tBlock.installed[offset], tBlock.advStates[offset]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fetches how many destination pages this fork holds itself, rather than
+	 * sharing with the fork it branched from.
+	 * 
+	 * @return - the number of pages built for this fork
+	 */
+	public int getOwnedPageCount() {
+		return this.ownedPages;
+	}
+
+	/**
+	 * Fetches how many AS blocks (across all pages) this fork holds itself,
+	 * rather than sharing with the fork it branched from.
+	 * 
+	 * @return - the number of blocks built for this fork
+	 */
+	public int getOwnedBlockCount() {
+		return this.ownedBlocks;
+	}
+
+	/**
+	 * Fetches the number of destination pages in the fork.
+	 * 
+	 * @return - the page count
+	 */
+	public int getPageCount() {
+		return this.pages.length;
+	}
+
+	public Collection<BGPPath> getWardenPaths(int destASN) {
+		Set<BGPPath> paths = new HashSet<BGPPath>();
+		Page destPage = this.getPage(destASN);
+		if (destPage == null) {
+			return paths;
+		}
+		for (AS tWarden : this.wardenASes) {
+			Block wardenBlock = RIBFork.getBlock(destPage, tWarden);
+			DestRib wardenRib = wardenBlock.ribs[tWarden.getDenseID() % RIBFork.BLOCK_SIZE];
+			if (wardenRib != null) {
+				paths.addAll(wardenRib.getPaths());
+			}
+		}
+		return paths;
+	}
+
+	public boolean hasPath(AS src, int destASN) {
+		Page destPage = this.getPage(destASN);
+		if (destPage == null || !this.asnIndex.isRouted(src.getDenseID())) {
+			return false;
+		}
+		return RIBFork.getBlock(destPage, src).installed[src.getDenseID() % RIBFork.BLOCK_SIZE] != null;
+	}
+
+	/**
+	 * Fetches the installed route of an AS to a destination in this fork.
+	 * 
+	 * @param src
+	 *            - the AS
+	 * @param destASN
+	 *            - the ASN of the destination
+	 * @return - the route, or null if the AS has none in this fork
+	 */
+	public BGPPath getPath(AS src, int destASN) {
+		Page destPage = this.getPage(destASN);
+		if (destPage == null || !this.asnIndex.isRouted(src.getDenseID())) {
+			return null;
+		}
+		return RIBFork.getBlock(destPage, src).installed[src.getDenseID() % RIBFork.BLOCK_SIZE];
+	}
+
+	private Page getPage(int destASN) {
+		int destID = this.asnIndex.getID(destASN);
+		if (destID == ASNIndex.NO_ID || destID < this.ribStart || destID >= this.ribStart + this.pages.length) {
+			return null;
+		}
+		return this.pages[destID - this.ribStart];
+	}
+
+	private static Block getBlock(Page destPage, AS tAS) {
+		return destPage.blocks[tAS.getDenseID() / RIBFork.BLOCK_SIZE];
+	}
+
+	/**
+	 * Copies the live routing state for a destination of one block of ASes.
+	 */
+	private Block buildBlock(int blockIdx, int destID) {
+		int firstID = blockIdx * RIBFork.BLOCK_SIZE;
+		Block newBlock = new Block(Math.min(RIBFork.BLOCK_SIZE, this.relations.length - firstID));
+		for (int offset = 0; offset < newBlock.ribs.length; offset++) {
+			AS tAS = this.asnIndex.getAS(firstID + offset);
+			newBlock.ribs[offset] = tAS.shareDestRib(destID);
+			newBlock.installed[offset] = tAS.getInstalledPath(destID);
+			newBlock.advStates[offset] = tAS.getAdvState(destID);
+		}
+		return newBlock;
+	}
+
+	/**
+	 * Predicate to test if the live ASes of a block still hold exactly what a
+	 * block of our parent holds for a destination.
+	 */
+	private boolean matchesLive(Block parentBlock, int blockIdx, int destID) {
+		int firstID = blockIdx * RIBFork.BLOCK_SIZE;
+		for (int offset = 0; offset < parentBlock.ribs.length; offset++) {
+			AS tAS = this.asnIndex.getAS(firstID + offset);
+			if (tAS.shareDestRib(destID) != parentBlock.ribs[offset]
+					|| tAS.getInstalledPath(destID) != parentBlock.installed[offset]
+					|| tAS.getAdvState(destID) != parentBlock.advStates[offset]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private List<AS> routedASes() {
+		List<AS> asList = new ArrayList<AS>(this.relations.length);
+		for (int tID = 0; tID < this.relations.length; tID++) {
+			asList.add(this.asnIndex.getAS(tID));
+		}
+		return asList;
+	}
+
+	private void checkRange() {
+		if (this.asnIndex.getRIBStart() != this.ribStart || this.asnIndex.getRIBSize() != this.pages.length) {
+			throw new RuntimeException("RIB range changed since the fork was taken");
+		}
+	}
+
+	private static void checkQuiet(Collection<? extends AS> asSet) {
+		for (AS tAS : asSet) {
+			if (tAS.hasWorkToDo() || tAS.hasDirtyPrefixes()) {
+				throw new RuntimeException("AS " + tAS.getASN() + " has routing work pending, it must be converged "
+						+ "before forking");
+			}
+		}
+	}
+}
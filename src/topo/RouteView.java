@@ -0,0 +1,37 @@
+package topo;
+
+import java.util.Collection;
+
+/**
+ * The slice of converged routing state the analyses look at: the routes the
+ * warden holds to each destination, and who can reach whom. Lets an analysis
+ * run either straight off the ASes' RIBs (LiveRouteView) or off what was
+ * recorded while destinations were converged a slice at a time, after the
+ * RIBs themselves are gone.
+ * 
+ * @author pendgaft
+ * 
+ */
+public interface RouteView {
+
+	/**
+	 * Fetches every candidate route any warden AS holds to a destination.
+	 * 
+	 * @param destASN
+	 *            - the ASN of the destination
+	 * @return - the distinct routes, empty if the warden has none (or the
+	 *         destination does not route)
+	 */
+	public Collection<BGPPath> getWardenPaths(int destASN);
+
+	/**
+	 * Predicate to test if an AS has a route installed to a destination.
+	 * 
+	 * @param src
+	 *            - the AS
+	 * @param destASN
+	 *            - the ASN of the destination
+	 * @return - true if the AS has a best path to the destination
+	 */
+	public boolean hasPath(AS src, int destASN);
+}
@@ -0,0 +1,64 @@
+package topo;
+
+import java.util.Collection;
+
+/**
+ * Interface for the incoming BGP update queue of an AS. Any number of threads
+ * may add updates (neighbors sending advertisements when their MRAI fires),
+ * but only one thread at a time polls, the one handling messages for the AS.
+ * 
+ * @author pendgaft
+ * 
+ */
+public interface UpdateMailbox {
+
+	/**
+	 * Adds an update to the mailbox.
+	 * 
+	 * @param update
+	 *            - the update sent to this AS
+	 */
+	public void add(BGPUpdate update);
+
+	/**
+	 * Removes the next update from the mailbox.
+	 * 
+	 * @return - the next update to process, or null if the mailbox is empty
+	 */
+	public BGPUpdate poll();
+
+	/**
+	 * Removes a batch of updates from the mailbox in one go, in the order they
+	 * would have been polled.
+	 * 
+	 * @param target
+	 *            - the collection the updates are added to
+	 * @param maxUpdates
+	 *            - the most updates to remove, 0 or less for all of them
+	 * @return - the number of updates moved into target
+	 */
+	public int drainTo(Collection<? super BGPUpdate> target, int maxUpdates);
+
+	/**
+	 * Predicate to test if there are no updates waiting.
+	 * 
+	 * @return - true if the mailbox is empty, false otherwise
+	 */
+	public boolean isEmpty();
+
+	/**
+	 * Fetches the number of updates waiting to be processed.
+	 * 
+	 * @return - the number of pending updates
+	 */
+	public long size();
+
+	/**
+	 * Fetches the number of updates that were dropped because a later update
+	 * from the same peer about the same destination replaced them before they
+	 * were processed. Always 0 for mailboxes that don't coalesce.
+	 * 
+	 * @return - the number of updates absorbed so far
+	 */
+	public long getAbsorbedCount();
+}
@@ -0,0 +1,22 @@
+package topo;
+
+/**
+ * Where an AS hands the updates it sends when its MRAI fires. The default just
+ * drops the update in the neighbor's mailbox, schedulers can supply their own
+ * to learn which ASes just got work.
+ * 
+ * @author pendgaft
+ * 
+ */
+public interface UpdateSink {
+
+	/**
+	 * Delivers an update to a neighbor, may be called by many threads at once.
+	 * 
+	 * @param target
+	 *            - the AS the update is sent to
+	 * @param update
+	 *            - the update
+	 */
+	public void deliver(AS target, BGPUpdate update);
+}
@@ -0,0 +1,72 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffered binary input from a file channel, reads what ChannelWriter
+ * writes.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class ChannelReader {
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+
+	/**
+	 * Builds a reader that starts at the channel's current position.
+	 * 
+	 * @param channel
+	 *            - the channel to read from, closed when the reader is
+	 * @param bufferSize
+	 *            - bytes read from the channel at a time
+	 */
+	public ChannelReader(FileChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		this.buffer.flip();
+	}
+
+	public int readInt() throws IOException {
+		this.ensure(4);
+		return this.buffer.getInt();
+	}
+
+	public long readLong() throws IOException {
+		this.ensure(8);
+		return this.buffer.getLong();
+	}
+
+	public byte readByte() throws IOException {
+		this.ensure(1);
+		return this.buffer.get();
+	}
+
+	public boolean readBoolean() throws IOException {
+		return this.readByte() != 0;
+	}
+
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	/**
+	 * Refills the buffer until it holds at least the given number of bytes.
+	 */
+	private void ensure(int bytes) throws IOException {
+		if (this.buffer.remaining() >= bytes) {
+			return;
+		}
+		this.buffer.compact();
+		while (this.buffer.position() < bytes) {
+			if (this.channel.read(this.buffer) < 0) {
+				throw new EOFException("State file ended early");
+			}
+		}
+		this.buffer.flip();
+	}
+}
@@ -0,0 +1,86 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffered binary output to a file channel, the NIO counterpart of a
+ * DataOutputStream for the handful of types the simulator's state files use.
+ * Values are big endian, same as DataOutputStream.
+ * 
+ * @author pendgaft
+ * 
+ */
+public class ChannelWriter {
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+
+	/**
+	 * Builds a writer that appends at the channel's current position.
+	 * 
+	 * @param channel
+	 *            - the channel to write to, closed when the writer is
+	 * @param bufferSize
+	 *            - bytes buffered between writes to the channel
+	 */
+	public ChannelWriter(FileChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	public void writeInt(int value) throws IOException {
+		this.ensure(4);
+		this.buffer.putInt(value);
+	}
+
+	public void writeLong(long value) throws IOException {
+		this.ensure(8);
+		this.buffer.putLong(value);
+	}
+
+	public void writeByte(byte value) throws IOException {
+		this.ensure(1);
+		this.buffer.put(value);
+	}
+
+	public void writeBoolean(boolean value) throws IOException {
+		this.writeByte(value ? (byte) 1 : (byte) 0);
+	}
+
+	/**
+	 * Pushes everything buffered out to the channel.
+	 * 
+	 * @throws IOException
+	 *             - if the write fails
+	 */
+	public void flush() throws IOException {
+		this.buffer.flip();
+		while (this.buffer.hasRemaining()) {
+			this.channel.write(this.buffer);
+		}
+		this.buffer.clear();
+	}
+
+	/**
+	 * Flushes, forces the file's contents to disk, and closes the channel.
+	 * 
+	 * @throws IOException
+	 *             - if the write fails
+	 */
+	public void close() throws IOException {
+		try {
+			this.flush();
+			this.channel.force(true);
+		} finally {
+			this.channel.close();
+		}
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (this.buffer.remaining() < bytes) {
+			this.flush();
+		}
+	}
+}
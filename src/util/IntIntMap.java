@@ -0,0 +1,131 @@
+package util;
+
+/**
+ * Bare bones hash map from int to int that avoids boxing. Open addressing
+ * with linear probing, no removal. Meant for the lookup tables the simulator
+ * builds once and then hits constantly (relationships, ASN remapping).
+ * 
+ * @author pendgaft
+ * 
+ */
+public class IntIntMap {
+
+	private int[] keys;
+	private int[] values;
+	private boolean[] filled;
+	private int size;
+	private final int missingValue;
+
+	/**
+	 * Builds an empty map sized for roughly the expected number of entries.
+	 * 
+	 * @param expectedSize
+	 *            - the number of entries we think will be stored
+	 * @param missingValue
+	 *            - the value returned by get for keys that are not in the map
+	 */
+	public IntIntMap(int expectedSize, int missingValue) {
+		int capacity = 4;
+		while (capacity < expectedSize * 2) {
+			capacity *= 2;
+		}
+		this.keys = new int[capacity];
+		this.values = new int[capacity];
+		this.filled = new boolean[capacity];
+		this.size = 0;
+		this.missingValue = missingValue;
+	}
+
+	/**
+	 * Maps the key to the given value, replacing any existing mapping.
+	 * 
+	 * @param key
+	 *            - the key
+	 * @param value
+	 *            - the value to map it to
+	 */
+	public void put(int key, int value) {
+		int pos = this.find(key);
+		if (!this.filled[pos]) {
+			this.filled[pos] = true;
+			this.keys[pos] = key;
+			this.size++;
+		}
+		this.values[pos] = value;
+
+		if (this.size * 2 > this.keys.length) {
+			this.grow();
+		}
+	}
+
+	/**
+	 * Fetches the value mapped to a key.
+	 * 
+	 * @param key
+	 *            - the key to look up
+	 * @return - the value, or the missing value supplied at construction if
+	 *         the key is not in the map
+	 */
+	public int get(int key) {
+		int pos = this.find(key);
+		if (this.filled[pos]) {
+			return this.values[pos];
+		}
+		return this.missingValue;
+	}
+
+	/**
+	 * Predicate to test if a key is in the map.
+	 * 
+	 * @param key
+	 *            - the key to test
+	 * @return - true if the key has a mapping, false otherwise
+	 */
+	public boolean containsKey(int key) {
+		return this.filled[this.find(key)];
+	}
+
+	/**
+	 * Fetches the number of keys in the map.
+	 * 
+	 * @return - the number of mappings
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Finds either the slot that holds the key, or the empty slot it would go
+	 * in.
+	 */
+	private int find(int key) {
+		int mask = this.keys.length - 1;
+		int pos = IntIntMap.spread(key) & mask;
+		while (this.filled[pos] && this.keys[pos] != key) {
+			pos = (pos + 1) & mask;
+		}
+		return pos;
+	}
+
+	private void grow() {
+		int[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		boolean[] oldFilled = this.filled;
+		this.keys = new int[oldKeys.length * 2];
+		this.values = new int[oldKeys.length * 2];
+		this.filled = new boolean[oldKeys.length * 2];
+		for (int counter = 0; counter < oldKeys.length; counter++) {
+			if (oldFilled[counter]) {
+				int pos = this.find(oldKeys[counter]);
+				this.filled[pos] = true;
+				this.keys[pos] = oldKeys[counter];
+				this.values[pos] = oldValues[counter];
+			}
+		}
+	}
+
+	private static int spread(int key) {
+		int hash = key * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}